@@ -37,6 +37,7 @@ import org.eclipse.core.runtime.IExtension;
 import org.eclipse.core.runtime.IExtensionPoint;
 import org.eclipse.core.runtime.IExtensionRegistry;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.jface.action.Action;
@@ -283,8 +284,8 @@ public final class HexEditor extends EditorPart implements ISelectionProvider {
 		File file = getManager().getContentFile();
 		if (file == null) {
 			doSaveAs();
-		} else {
-			saveToFile(file, false, monitor);
+		} else if (!saveToFile(file, false) && monitor != null) {
+			monitor.setCanceled(true);
 		}
 	}
 
@@ -405,43 +406,60 @@ public final class HexEditor extends EditorPart implements ISelectionProvider {
 		}
 	}
 
-	void saveAsToFile(final boolean selection) {
-		final File file = getManager().showSaveAsDialog(getEditorSite().getShell(), selection);
+	void saveAsToFile(boolean selection) {
+		File file = getManager().showSaveAsDialog(getEditorSite().getShell(), selection);
 		if (file == null) {
 			return;
 		}
+		saveToFile(file, selection);
+	}
 
+	/*
+	 * Writes in a worker thread, so the editor stays responsive and the save can
+	 * be canceled. Returns false if the file has not been saved.
+	 */
+	boolean saveToFile(final File file, final boolean selection) {
+		final IOException[] exception = new IOException[1];
 		IRunnableWithProgress runnable = new IRunnableWithProgress() {
 			@Override
-			public void run(IProgressMonitor monitor) {
-				saveToFile(file, selection, monitor);
+			public void run(IProgressMonitor monitor) throws InterruptedException {
+				try {
+					writeToFile(file, selection, monitor);
+				} catch (IOException ex) {
+					exception[0] = ex;
+				} catch (OperationCanceledException ex) {
+					throw new InterruptedException();
+				} finally {
+					monitor.done();
+				}
 			}
 		};
 		ProgressMonitorDialog monitorDialog = new ProgressMonitorDialog(getEditorSite().getShell());
 		try {
-			monitorDialog.run(false, false, runnable);
+			monitorDialog.run(true, true, runnable);
 		} catch (InvocationTargetException ex) {
 			throw new RuntimeException(ex);
 		} catch (InterruptedException ex) {
-			throw new RuntimeException(ex);
+			// canceled, the file has not been touched
+			return false;
 		}
+		if (exception[0] != null) {
+			statusLineManager.setErrorMessage(exception[0].getMessage());
+			return false;
+		}
+		savedToFile(file, selection);
+		return true;
 	}
 
-	void saveToFile(File file, boolean selection, IProgressMonitor monitor) {
-		monitor.beginTask(Texts.EDITOR_MESSAGE_SAVING_FILE_PLEASE_WAIT, IProgressMonitor.UNKNOWN);
-		try {
-			if (selection) {
-				manager.doSaveSelectionAs(file);
-			} else {
-				manager.saveAsFile(file, monitor);
-			}
-		} catch (IOException ex) {
-			monitor.setCanceled(true);
-			monitor.done();
-			statusLineManager.setErrorMessage(ex.getMessage());
-			return;
+	private void writeToFile(File file, boolean selection, IProgressMonitor monitor) throws IOException {
+		if (selection) {
+			manager.doSaveSelectionAs(file, monitor);
+		} else {
+			manager.saveAsFile(file, monitor);
 		}
-		monitor.done();
+	}
+
+	private void savedToFile(File file, boolean selection) {
 		if (!selection) {
 			setPartName(file.getName());
 			firePropertyChange(PROP_DIRTY);
@@ -211,6 +211,54 @@ public final class HexEditorActionBarContributor extends EditorActionBarContribu
 			// Eclipse standard even has the correct accelerator.
 			// goToAction.setAccelerator(SWT.CTRL + 'L');
 			menu.appendToGroup(MenuIds.ADDITIONS, goToAction);
+
+			Action compareAction = new Action() {
+
+				@Override
+				public boolean isEnabled() {
+					return activeEditor.getManager().isValid();
+				}
+
+				@Override
+				public void run() {
+					activeEditor.getManager().doCompare();
+				}
+			};
+			compareAction.setText(Texts.EDITOR_COMPARE_MENU_ITEM_LABEL);
+			menu.appendToGroup(MenuIds.ADDITIONS, compareAction);
+
+			Action nextDifferenceAction = new Action() {
+
+				@Override
+				public boolean isEnabled() {
+					return activeEditor.getManager().hasDifferences();
+				}
+
+				@Override
+				public void run() {
+					activeEditor.getManager().doSelectNextDifference();
+				}
+			};
+			// declared in org.eclipse.ui plugin.xml, bound to Ctrl+. and Ctrl+,
+			nextDifferenceAction.setActionDefinitionId(ITextEditorActionDefinitionIds.GOTO_NEXT_ANNOTATION);
+			nextDifferenceAction.setText(Texts.EDITOR_NEXT_DIFFERENCE_MENU_ITEM_LABEL);
+			menu.appendToGroup(MenuIds.ADDITIONS, nextDifferenceAction);
+
+			Action previousDifferenceAction = new Action() {
+
+				@Override
+				public boolean isEnabled() {
+					return activeEditor.getManager().hasDifferences();
+				}
+
+				@Override
+				public void run() {
+					activeEditor.getManager().doSelectPreviousDifference();
+				}
+			};
+			previousDifferenceAction.setActionDefinitionId(ITextEditorActionDefinitionIds.GOTO_PREVIOUS_ANNOTATION);
+			previousDifferenceAction.setText(Texts.EDITOR_PREVIOUS_DIFFERENCE_MENU_ITEM_LABEL);
+			menu.appendToGroup(MenuIds.ADDITIONS, previousDifferenceAction);
 		}
 	}
 
@@ -61,6 +61,7 @@ import net.sourceforge.javahexeditor.FileToucher;
 import net.sourceforge.javahexeditor.HelpResources;
 import net.sourceforge.javahexeditor.Manager;
 import net.sourceforge.javahexeditor.PreferencesManager;
+import net.sourceforge.javahexeditor.common.Log;
 import net.sourceforge.javahexeditor.common.SWTUtility;
 import net.sourceforge.javahexeditor.common.TextUtility;
 import net.sourceforge.javahexeditor.standalone.HexEditorMenu.Actions;
@@ -314,6 +315,10 @@ public final class HexEditor {
 
 		menu.pushGoTo.setEnabled(manager.isFilled());
 		menu.pushFind.setEnabled(manager.isFilled());
+
+		menu.pushCompare.setEnabled(manager.isValid());
+		menu.pushNextDifference.setEnabled(manager.hasDifferences());
+		menu.pushPreviousDifference.setEnabled(manager.hasDifferences());
 	}
 
 	void performAction(int actionId) {
@@ -376,6 +381,16 @@ public final class HexEditor {
 			manager.doFind();
 			break;
 
+		case Actions.COMPARE:
+			manager.doCompare();
+			break;
+		case Actions.NEXT_DIFFERENCE:
+			manager.doSelectNextDifference();
+			break;
+		case Actions.PREVIOUS_DIFFERENCE:
+			manager.doSelectPreviousDifference();
+			break;
+
 		case Actions.PREFERENCES:
 			doPreferences();
 			break;
@@ -414,14 +429,7 @@ public final class HexEditor {
 			return doSaveAs();
 		}
 
-		try {
-			manager.saveAsFile(file, null);
-		} catch (IOException ex) {
-			SWTUtility.showErrorMessage(shell, Texts.SAVE_ERROR_TITLE, Texts.SAVE_ERROR_MESSAGE, ex.getMessage());
-			return false;
-		}
-
-		return true;
+		return saveAsFile(file);
 	}
 
 	boolean doClose() {
@@ -451,10 +459,38 @@ public final class HexEditor {
 			return false;
 		}
 
+		return saveAsFile(file);
+	}
+
+	private boolean saveAsFile(final File file) {
+		// write in a worker thread, so the window keeps repainting during long
+		// saves, but does not accept changes in the meantime. Anything the
+		// worker throws means the file has not been saved.
+		final Exception[] exception = new Exception[1];
+		shell.setEnabled(false);
 		try {
-			manager.saveAsFile(file, null);
-		} catch (IOException ex) {
-			SWTUtility.showErrorMessage(shell, Texts.SAVE_ERROR_TITLE, Texts.SAVE_ERROR_MESSAGE, ex.getMessage());
+			SWTUtility.blockUntilFinished(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						manager.saveAsFile(file, null);
+					} catch (IOException ex) {
+						exception[0] = ex;
+					} catch (RuntimeException ex) {
+						Log.logError("Cannot save file '{0}'.", new Object[] { file.getAbsolutePath() }, ex);
+						exception[0] = ex;
+					}
+				}
+			});
+		} finally {
+			shell.setEnabled(true);
+		}
+		if (exception[0] != null) {
+			String message = exception[0].getMessage();
+			if (message == null) {
+				message = exception[0].toString();
+			}
+			SWTUtility.showErrorMessage(shell, Texts.SAVE_ERROR_TITLE, Texts.SAVE_ERROR_MESSAGE, message);
 			return false;
 		}
 
@@ -52,6 +52,9 @@ public final class HexEditorMenu {
 		public static final int TRIM = 18;
 		public static final int UNDO = 19;
 		public static final int SELECT_BLOCK = 20;
+		public static final int COMPARE = 21;
+		public static final int NEXT_DIFFERENCE = 22;
+		public static final int PREVIOUS_DIFFERENCE = 23;
 	}
 
 	private final class MySelectionAdapter extends SelectionAdapter {
@@ -78,6 +81,9 @@ public final class HexEditorMenu {
 	public final MenuItem pushDelete;
 	public final MenuItem pushFind;
 	public final MenuItem pushGoTo;
+	public final MenuItem pushCompare;
+	public final MenuItem pushNextDifference;
+	public final MenuItem pushPreviousDifference;
 	public final MenuItem pushPaste;
 	public final MenuItem pushRedo;
 	public final MenuItem saveMenuItem;
@@ -149,6 +155,18 @@ public final class HexEditorMenu {
 				Actions.GO_TO);
 		pushGoTo.setAccelerator(SWT.CONTROL | 'L');
 
+		createMenuSeparator(editSubMenu);
+		pushCompare = createMenuItem(editSubMenu, net.sourceforge.javahexeditor.Texts.EDITOR_COMPARE_MENU_ITEM_LABEL,
+				Actions.COMPARE);
+
+		pushNextDifference = createMenuItem(editSubMenu,
+				net.sourceforge.javahexeditor.Texts.EDITOR_NEXT_DIFFERENCE_MENU_ITEM_LABEL, Actions.NEXT_DIFFERENCE);
+		pushNextDifference.setAccelerator(SWT.CONTROL | '.');
+
+		pushPreviousDifference = createMenuItem(editSubMenu,
+				net.sourceforge.javahexeditor.Texts.EDITOR_PREVIOUS_DIFFERENCE_MENU_ITEM_LABEL,
+				Actions.PREVIOUS_DIFFERENCE);
+		pushPreviousDifference.setAccelerator(SWT.CONTROL | ',');
 
 		createMenuSeparator(editSubMenu);
 		createMenuItem(editSubMenu, Texts.HEX_EDITOR_PREFERENCES_MENU_ITEM_LABEL, Actions.PREFERENCES);
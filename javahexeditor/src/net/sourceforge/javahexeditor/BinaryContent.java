@@ -22,26 +22,36 @@ package net.sourceforge.javahexeditor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.EventListener;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
+import java.util.Set;
 import java.util.TreeSet;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+
 import net.sourceforge.javahexeditor.BinaryContentActionHistory.Entry;
+import net.sourceforge.javahexeditor.common.Log;
 
 /**
  * A binary content provider. Content backed by files has no effect on memory
  * footprint. Content backed by memory buffers is limited by amount of memory.
  * Notifies ModifyListeners when it has been modified. Keeps track of the
  * positions where changes have been done. Files that back this content must not
- * be modified while the content is still in use.
+ * be modified while the content is still in use. Optionally the edits are
+ * journaled to a session file, from which they are restored after a crash.
  *
  * @author Jordi Bergenthal
  */
@@ -57,6 +67,26 @@ public final class BinaryContent {
 		public void modified();
 	}
 
+	/**
+	 * Used to notify changes in content together with the bytes that changed
+	 */
+	public static interface RangeModifyListener extends EventListener {
+		/**
+		 * Notifies the listener that bytes of the content have just been replaced.
+		 * The bytes before the position are unchanged, the bytes after the removed
+		 * ones have moved by <code>inserted - removed</code>. An overwrite removes
+		 * and inserts the same number of bytes.
+		 *
+		 * @param position
+		 *            start of the change
+		 * @param removed
+		 *            number of bytes removed
+		 * @param inserted
+		 *            number of bytes inserted
+		 */
+		public void modified(long position, long removed, long inserted);
+	}
+
 	public static final class RangeSelection {
 		public final long start;
 		public final long end;
@@ -87,14 +117,16 @@ public final class BinaryContent {
 	}
 
 	/**
-	 * A subset of data contained in a ByteBuffer or a File
+	 * A subset of data contained in a ByteBuffer, a File or a fill pattern. While
+	 * a Range is stored in the {@link BinaryContentPieceTree} its position is not
+	 * maintained, the tree derives it.
 	 */
 	final static class Range implements Comparable<Range>, Cloneable {
 		long position = -1L;
 		long length = -1L;
 		boolean dirty = true;
 		long dataOffset;
-		Object data; // ByteBuffer or RandomAccessFile
+		Object data; // ByteBuffer, RandomAccessFile or BinaryContentFill
 		File file; // used when data is a RandomAccessFile since we cannot get a
 		// File from it
 
@@ -109,6 +141,12 @@ public final class BinaryContent {
 			dirty = isDirty;
 		}
 
+		Range(long aPosition, long aLength, BinaryContentFill aFill, boolean isDirty) {
+			this(aPosition, aLength);
+			data = aFill;
+			dirty = isDirty;
+		}
+
 		Range(long position, File file, boolean isDirty) throws IOException {
 			this(position, file.length());
 			if (length < 0L) {
@@ -116,7 +154,7 @@ public final class BinaryContent {
 			}
 
 			this.file = file;
-			data = RandomAccessFileFactory.createRandomAccessFile(this.file, "r");
+			data = RandomAccessFileFactory.acquireRandomAccessFile(this.file);
 			dirty = isDirty;
 		}
 
@@ -168,24 +206,48 @@ public final class BinaryContent {
 	public static final long mappedFileBufferLength = 2048 * 1024; // for mapped
 	// file I/O
 
+	/**
+	 * Default number of pieces above which adjacent in-memory pieces are merged.
+	 * Current value is 4096.
+	 */
+	public static final int DEFAULT_FRAGMENTATION_THRESHOLD = 4096;
+
+	/**
+	 * Maximum length of a piece created by merging in-memory pieces. Larger
+	 * pieces are left alone. Current value is 64 KB.
+	 */
+	static final int COMPACTED_PIECE_LENGTH = 64 * 1024;
+
 	BinaryContentActionHistory actions; // undo/redo actions history
 	BinaryContentActionHistory actionsTemp;
+	final BinaryContentArena arena = new BinaryContentArena(); // inserted and typed in bytes
+	BinaryContentActionHistory batchActions; // history while a batch is open
+	int batchDepth;
+	long batchEnd; // exclusive end of the modified bytes of the batch
+	long batchLength; // length before the batch
+	BinaryContentPieceTree batchRanges; // pieces before the batch
+	long batchStart = -1L; // start of the modified bytes of the batch
+	int compactionTrigger = DEFAULT_FRAGMENTATION_THRESHOLD;
 	boolean dirty;
 	boolean dirtySize;
-	long exclusiveEnd = -1L;
+	final ArrayList<RandomAccessFile> files = new ArrayList<RandomAccessFile>(); // one per file Range created
+	int fragmentationThreshold = DEFAULT_FRAGMENTATION_THRESHOLD;
 	long lastUpperNibblePosition = -1L;
 	ArrayList<ModifyListener> listeners;
-	List<Integer> myChanges;
+	BinaryContentGapBuffer myChanges;
 	boolean myChangesInserted = false;
 	long myChangesPosition = -1L;
-	TreeSet<Range> myRanges;
-	Iterator<Range> tailTree;
+	BinaryContentPieceTree myRanges;
+	BinaryContentPageCache pageCache;
+	ArrayList<RangeModifyListener> rangeListeners;
+	BinaryContentSession session;
+	BinaryContentWindowCache windowCache = new BinaryContentWindowCache();
 
 	/**
 	 * Create new empty content.
 	 */
 	public BinaryContent() {
-		myRanges = new TreeSet<Range>();
+		myRanges = new BinaryContentPieceTree();
 	}
 
 	/**
@@ -202,12 +264,41 @@ public final class BinaryContent {
 			return;
 		}
 
-		myRanges.add(new Range(0L, aFile, false));
+		myRanges.insert(0L, createFileRange(0L, aFile, false));
+	}
+
+	/**
+	 * Create new content from a file and journal the edits to a session file. If
+	 * the session file has been left by a previous content of the file, which
+	 * was not saved and has not been modified since, the unsaved state and the
+	 * undo history are restored from it. Otherwise a new session is started. The
+	 * restored content is dirty if it has unsaved changes.
+	 *
+	 * @param aFile
+	 *            the backing content provider, not <code>null</code>
+	 * @param sessionFile
+	 *            the session file, for example {@link #getSessionFile(File)}.
+	 *            Not <code>null</code>.
+	 * @throws IOException
+	 *             when i/o problems occur, for example if a file that the
+	 *             session references does not exist anymore. The session file
+	 *             stays untouched then.
+	 */
+	public BinaryContent(File aFile, File sessionFile) throws IOException {
+		this(aFile);
+		try {
+			session = BinaryContentSession.open(this, aFile, sessionFile);
+		} catch (IOException ex) {
+			dispose();
+			throw ex;
+		}
+		arena.setSession(session);
 	}
 
 	void actionsOn(boolean on) {
 		if (on) {
-			if (actions == null) {
+			// the history of an open batch is restored by endBatch()
+			if (actions == null && batchDepth == 0) {
 				actions = actionsTemp;
 			}
 		} else {
@@ -231,6 +322,49 @@ public final class BinaryContent {
 		listeners.add(listener);
 	}
 
+	/**
+	 * Add a listener to the list of listeners to be notified with the changed
+	 * bytes when there is a change in the content
+	 *
+	 * @param listener
+	 *            to be notified of the change
+	 */
+	public void addRangeModifyListener(RangeModifyListener listener) {
+		if (rangeListeners == null) {
+			rangeListeners = new ArrayList<RangeModifyListener>();
+		}
+
+		rangeListeners.add(listener);
+	}
+
+	/**
+	 * Starts a batch of changes. Until the matching {@link #endBatch()} the
+	 * listeners are not notified and no undo actions are recorded. Then the whole
+	 * batch is reported as one modification and can be undone as one action.
+	 * Batches can be nested, only the outermost one counts. Undo and redo are not
+	 * possible while a batch is open.
+	 */
+	public void beginBatch() {
+		if (batchDepth > 0) {
+			++batchDepth;
+			return;
+		}
+
+		if (actions != null) {
+			actions.endAction();
+		}
+		commitChanges();
+		lastUpperNibblePosition = -1L;
+		batchActions = actions;
+		actions = null;
+		if (batchActions != null) {
+			batchRanges = myRanges.copy();
+		}
+		batchLength = length();
+		batchStart = -1L;
+		batchDepth = 1;
+	}
+
 	/**
 	 * Tells whether a redo is possible
 	 *
@@ -254,21 +388,95 @@ public final class BinaryContent {
 			return;
 		}
 
-		ByteBuffer store = ByteBuffer.allocate(myChanges.size());
-		for (Iterator<Integer> iterator = myChanges.iterator(); iterator.hasNext();) {
-			store.put(iterator.next().byteValue());
-		}
-		store.position(0);
+		Range range = arena.append(myChangesPosition, myChanges.toByteBuffer(), true);
 		myChanges = null;
 		if (myChangesInserted) {
-			insertRange(new Range(myChangesPosition, store, true));
+			insertRange(range);
 		} else {
-			overwriteRange(new Range(myChangesPosition, store, true));
+			overwriteRange(range);
 		}
 		myChangesInserted = false;
 		myChangesPosition = -1L;
 	}
 
+	/**
+	 * Merges adjacent in-memory pieces into larger ones, so reading the content
+	 * does not have to visit each of the small pieces left by single byte edits.
+	 * The bytes of the content do not change. The undo history stays valid, but
+	 * the current action is ended, so following edits are not merged into it.
+	 * Called automatically when the number of pieces exceeds the fragmentation
+	 * threshold.
+	 */
+	public void compact() {
+		if (actions != null) {
+			actions.endAction();
+		}
+		actionsOn(false);
+		commitChanges();
+		actionsOn(true);
+
+		BinaryContentPieceTree result = new BinaryContentPieceTree();
+		List<Range> run = new ArrayList<Range>();
+		long runLength = 0L;
+		for (BinaryContentPieceTree.Cursor i = myRanges.cursor(0L); i.hasNext();) {
+			Range range = i.next();
+			boolean small = range.data instanceof ByteBuffer && range.length < COMPACTED_PIECE_LENGTH;
+			if (!small || runLength + range.length > COMPACTED_PIECE_LENGTH
+					|| !run.isEmpty() && run.get(0).dirty != range.dirty) {
+				compactRun(result, run, runLength);
+				run.clear();
+				runLength = 0L;
+			}
+			if (small) {
+				run.add(range);
+				runLength += range.length;
+			} else {
+				// the pieces may be shared with snapshots
+				result.insert(result.length(), range.clone());
+			}
+		}
+		compactRun(result, run, runLength);
+		myRanges = result;
+		updateCompactionTrigger();
+	}
+
+	/*
+	 * Appends the pieces of a run to the tree, as a single piece if there is more
+	 * than one. The pieces are gathered in a pooled direct buffer and copied
+	 * from there into the arena, so compacting does not allocate on the heap.
+	 */
+	private void compactRun(BinaryContentPieceTree tree, List<Range> run, long runLength) {
+		if (run.size() == 1) {
+			tree.insert(tree.length(), run.get(0).clone());
+		} else if (run.size() > 1) {
+			ByteBuffer store = BinaryContentBufferPool.acquire((int) runLength);
+			try {
+				for (int i = 0; i < run.size(); ++i) {
+					Range range = run.get(i);
+					ByteBuffer src = ((ByteBuffer) range.data).duplicate();
+					src.limit((int) (range.dataOffset + range.length));
+					src.position((int) range.dataOffset);
+					store.put(src);
+				}
+				store.flip();
+				tree.insert(tree.length(), arena.append(tree.length(), store, run.get(0).dirty));
+			} finally {
+				BinaryContentBufferPool.release(store);
+			}
+		}
+	}
+
+	/*
+	 * Creates a Range for a file. The shared file instance is released when this
+	 * content is disposed.
+	 */
+	private Range createFileRange(long position, File file, boolean isDirty) throws IOException {
+		Range result = new Range(position, file, isDirty);
+		files.add((RandomAccessFile) result.data);
+
+		return result;
+	}
+
 	/**
 	 * Deletes length bytes from the content at the given position
 	 *
@@ -294,87 +502,39 @@ public final class BinaryContent {
 		if (myChanges != null && myChangesInserted && myChangesPosition <= position
 				&& myChangesPosition + myChanges.size() >= position + length) {
 			int deleteStart = (int) (position - myChangesPosition);
-			List<Integer> subList = myChanges.subList(deleteStart, deleteStart + (int) length);
 			if (actions != null) {
-				actions.addDeleted(position, subList, length == 1L);
+				actions.addDeleted(position, myChanges, deleteStart, (int) length, length == 1L);
 				if (length > 1) {
 					actions.endAction();
 				}
 			}
 			if (length < myChanges.size()) {
-				subList.clear();
+				myChanges.remove(deleteStart, (int) length);
 			} else { // length == myChanges.size()
 				myChanges = null;
 				// splitAndShift(position, 0); // mark them as dirty
 			}
 		} else {
 			commitChanges();
-			deleteAndShift(position, length);
+			deleteInternal(position, length);
 		}
-		notifyListeners();
-	}
-
-	void deleteAndShift(long start, long length) {
-		deleteInternal(start, length);
-		initSubtreeTraversing(start, 0L);
-		shiftRemainingRanges(-length);
+		notifyListeners(position, length, 0L);
 	}
 
+	/*
+	 * Removes the bytes and shifts the remaining ones. The removed pieces are
+	 * added to the action history.
+	 */
 	void deleteInternal(long startPosition, long length) {
-		if (length < 1L) {
-			return;
-		}
-		initSubtreeTraversing(startPosition, length);
-		if (!tailTree.hasNext()) {
+		if (length < 1L || startPosition >= myRanges.length()) {
 			return;
 		}
 
-		ArrayList<Range> deleted = new ArrayList<Range>();
-		Range firstRange = tailTree.next();
-		Range secondRange = firstRange.clone(); // will be tail part of
-		// firstRange
-		Range lastRange = null;
-		if (firstRange.position < startPosition) {
-			firstRange.length = startPosition - firstRange.position;
-
-			secondRange.length = secondRange.exclusiveEnd() - startPosition; // actions
-			secondRange.dataOffset += startPosition - secondRange.position; // actions
-			secondRange.position = startPosition; // actions
-		} else { // firstRange.position == startPosition
-			tailTree.remove();
-		}
-		long endSoFar = secondRange.exclusiveEnd();
-		boolean toBeAdded = false;
-		if (endSoFar > exclusiveEnd) {
-			lastRange = secondRange.clone();
-			toBeAdded = true;
-			secondRange.length = exclusiveEnd - secondRange.position; // actions
-		}
-		deleted.add(secondRange); // actions
-		if (endSoFar < exclusiveEnd) {
-			while (tailTree.hasNext() && lastRange == null) {
-				lastRange = tailTree.next();
-				if (lastRange.exclusiveEnd() <= exclusiveEnd) {
-					tailTree.remove();
-					deleted.add(lastRange); // actions
-					lastRange = null;
-				}
-			}
-			if (lastRange != null && lastRange.position < exclusiveEnd) { // actions
-				Range beforeLastRange = lastRange.clone();
-				beforeLastRange.length = exclusiveEnd - beforeLastRange.position;
-				deleted.add(beforeLastRange);
-			}
-		}
-		if (lastRange != null && lastRange.position < exclusiveEnd && lastRange.exclusiveEnd() > exclusiveEnd) {
-			long delta = exclusiveEnd - lastRange.position;
-			lastRange.position += delta;
-			lastRange.length -= delta;
-			lastRange.dataOffset += delta;
-			if (toBeAdded) {
-				myRanges.add(lastRange);
-			}
+		List<Range> deleted = null;
+		if (actions != null) {
+			deleted = new ArrayList<Range>();
 		}
+		myRanges.remove(startPosition, length, deleted);
 		if (actions != null) {
 			actions.addLostRanges(deleted);
 		}
@@ -384,12 +544,23 @@ public final class BinaryContent {
 		long[] result = new long[2];
 		result[0] = result[1] = (currentAction.get(0)).position;
 		actionsOn(false);
-		deleteAndShift(result[0], (currentAction.get(currentAction.size() - 1)).exclusiveEnd() - result[0]);
+		deleteInternal(result[0], (currentAction.get(currentAction.size() - 1)).exclusiveEnd() - result[0]);
 		actionsOn(true);
 
 		return result;
 	}
 
+	/**
+	 * Stops journaling the edits. The session file is deleted when this content
+	 * is disposed, for example because the changes have been saved or
+	 * abandoned.
+	 */
+	public void discardSession() {
+		if (session != null) {
+			session.discard();
+		}
+	}
+
 	/**
 	 * Closes all files before termination. After this call the object is no longer
 	 * valid. Calling dispose() is optional, but it will let use of files
@@ -403,22 +574,94 @@ public final class BinaryContent {
 			return;
 		}
 
-		for (Iterator<Range> i = myRanges.iterator(); i.hasNext();) {
-			Range value = i.next();
-			if (value.data instanceof RandomAccessFile) {
+		for (int i = 0; i < files.size(); ++i) {
+			RandomAccessFile file = files.get(i);
+			try {
+				if (RandomAccessFileFactory.releaseRandomAccessFile(file) && pageCache != null) {
+					pageCache.invalidate(file);
+				}
+			} catch (IOException e) {
+				// ok, leave this file alone and close the rest
+			}
+		}
+		files.clear();
+		RandomAccessFile journal = arena.dispose();
+		if (journal != null && pageCache != null) {
+			pageCache.invalidate(journal);
+		}
+		if (session != null) {
+			// unsaved changes stay in the session
+			boolean keep = dirty && batchDepth == 0;
+			if (keep) {
 				try {
-					((RandomAccessFile) value.data).close();
-				} catch (IOException e) {
-					// ok, leave this file alone and close the rest
+					syncSession();
+				} catch (IOException ex) {
+					Log.logError("Cannot write to session file '{0}'",
+							new Object[] { session.getFile().getAbsolutePath() }, ex);
 				}
 			}
+			journal = session.close(keep);
+			if (pageCache != null) {
+				pageCache.invalidate(journal);
+			}
+			session = null;
 		}
 
 		if (actions != null) {
 			actions.finalize();
 		}
+		if (batchActions != null) {
+			batchActions.finalize();
+		}
+		windowCache.clear();
 		myRanges = null;
 		listeners = null;
+		rangeListeners = null;
+	}
+
+	/**
+	 * Ends a batch of changes started with {@link #beginBatch()}. If the batch
+	 * changed the content, the listeners are notified once and the changes are
+	 * recorded as one action.
+	 *
+	 * @throws IllegalStateException
+	 *             if no batch is open
+	 */
+	public void endBatch() {
+		if (batchDepth == 0) {
+			throw new IllegalStateException("No batch has been started.");
+		}
+		if (--batchDepth > 0) {
+			return;
+		}
+
+		commitChanges();
+		lastUpperNibblePosition = -1L;
+		actions = batchActions;
+		batchActions = null;
+		BinaryContentPieceTree rangesBefore = batchRanges;
+		batchRanges = null;
+		if (batchStart < 0L) {
+			return;
+		}
+
+		long position = batchStart;
+		long inserted = batchEnd - batchStart;
+		long removed = inserted - (length() - batchLength);
+		batchStart = -1L;
+		if (actions != null) {
+			// only the modified bytes are needed to undo and redo the batch
+			BinaryContentPieceTree rangesAfter = myRanges.copy();
+			retainInterval(rangesBefore, position, position + removed);
+			retainInterval(rangesAfter, position, position + inserted);
+			actions.addBatch(rangesBefore, rangesAfter, position, position + removed, position + inserted);
+		}
+		notifyListeners(position, removed, inserted);
+	}
+
+	private static void retainInterval(BinaryContentPieceTree ranges, long start, long exclusiveEnd) {
+		ranges.remove(exclusiveEnd, ranges.length() - exclusiveEnd, null);
+		ranges.remove(0L, start, null);
 	}
 
 	int fillWithChanges(ByteBuffer dst, long position) {
@@ -428,20 +671,15 @@ public final class BinaryContent {
 			return 0;
 		}
 
-		int remaining = dst.remaining();
-		int i = (int) relativePosition;
-		for (; remaining > 0 && i < changesSize; ++i, --remaining) {
-			dst.put((myChanges.get(i)).byteValue());
-		}
-
-		return i - (int) relativePosition;
+		return myChanges.get((int) relativePosition, dst);
 	}
 
 	int fillWithPartOfRange(ByteBuffer dst, Range sourceRange, long overlapBytes, int maxCopyLength)
 			throws IOException {
 		int dstInitialPosition = dst.position();
 		if (sourceRange.data instanceof ByteBuffer) {
-			ByteBuffer src = (ByteBuffer) sourceRange.data;
+			// buffers are shared with snapshots read by other threads
+			ByteBuffer src = ((ByteBuffer) sourceRange.data).duplicate();
 			src.limit((int) (sourceRange.dataOffset + sourceRange.length));
 			src.position((int) (sourceRange.dataOffset + overlapBytes));
 			if (src.remaining() > dst.remaining() || src.remaining() > maxCopyLength) {
@@ -449,18 +687,16 @@ public final class BinaryContent {
 			}
 			dst.put(src);
 		} else if (sourceRange.data instanceof RandomAccessFile) {
-			RandomAccessFile src = (RandomAccessFile) sourceRange.data;
 			long start = sourceRange.dataOffset + overlapBytes;
-			int length = (int) Math.min(sourceRange.length - overlapBytes, maxCopyLength);
-			int limit = -1;
-			if (dst.remaining() > length) {
-				limit = dst.limit();
-				dst.limit(dst.position() + length);
-			}
-			src.getChannel().read(dst, start);
-			if (limit > 0) {
-				dst.limit(limit);
+			int length = (int) Math.min(sourceRange.length - overlapBytes, Math.min(maxCopyLength, dst.remaining()));
+			if (pageCache != null) {
+				pageCache.read((RandomAccessFile) sourceRange.data, start, dst, length);
+			} else {
+				windowCache.read((RandomAccessFile) sourceRange.data, start, dst, length);
 			}
+		} else if (sourceRange.data instanceof BinaryContentFill) {
+			int length = (int) Math.min(sourceRange.length - overlapBytes, Math.min(maxCopyLength, dst.remaining()));
+			((BinaryContentFill) sourceRange.data).get(dst, sourceRange.dataOffset + overlapBytes, length);
 		}
 
 		return dst.position() - dstInitialPosition;
@@ -479,7 +715,13 @@ public final class BinaryContent {
 		long changesPosition = positionSoFar;
 		if (myChanges != null && positionSoFar >= myChangesPosition
 				&& positionSoFar < myChangesPosition + myChanges.size() && overlapBytes < sourceRange.length) {
+			int limit = dst.limit();
+			if (!myChangesInserted) {
+				// overwritten bytes may continue in the next range
+				dst.limit((int) Math.min(limit, dst.position() + sourceRange.length - overlapBytes));
+			}
 			changesAdded = fillWithChanges(dst, positionSoFar);
+			dst.limit(limit);
 			if (myChangesInserted) {
 				positionSoFar += changesAdded;
 			} else {
@@ -557,13 +799,17 @@ public final class BinaryContent {
 		}
 
 		long positionSoFar = position - positionShift;
-		initSubtreeTraversing(positionSoFar, dst.remaining());
-
-		Range partialRange = null;
-		while (tailTree.hasNext() && (partialRange = tailTree.next()).position < exclusiveEnd) {
-			fillWithRange(dst, partialRange, positionSoFar - partialRange.position, positionSoFar + positionShift,
+		long exclusiveEnd = Math.min(positionSoFar + dst.remaining(), length());
+		BinaryContentPieceTree.Cursor cursor = myRanges.cursor(positionSoFar);
+		while (cursor.hasNext()) {
+			Range partialRange = cursor.next();
+			long rangePosition = cursor.position();
+			if (rangePosition >= exclusiveEnd) {
+				break;
+			}
+			fillWithRange(dst, partialRange, positionSoFar - rangePosition, positionSoFar + positionShift,
 					rangesModified); // throws IOException
-			positionSoFar = partialRange.exclusiveEnd();
+			positionSoFar = rangePosition + partialRange.length;
 			if (myChanges != null && myChangesInserted && positionSoFar + positionShift > myChangesPosition) {
 				positionShift = myChanges.size();
 			}
@@ -593,7 +839,11 @@ public final class BinaryContent {
 	}
 
 	/**
-	 * Reads a sequence of bytes from this content into the given file
+	 * Reads a sequence of bytes from this content into the given file. The bytes
+	 * are written to a temporary file in the same directory first, which then
+	 * replaces the given file. So the given file stays intact if writing fails,
+	 * even if it backs this content. After replacing a file that backs this
+	 * content, the content has to be reopened on it.
 	 *
 	 * @param destinationFile
 	 *            where to write the read result to
@@ -605,71 +855,166 @@ public final class BinaryContent {
 	 * @throws IOException
 	 */
 	public long get(File destinationFile, long start, long length) throws IOException {
+		return get(destinationFile, start, length, null);
+	}
+
+	/**
+	 * Reads a sequence of bytes from this content into the given file, reporting
+	 * the progress. The bytes are written to a temporary file in the same
+	 * directory first, which then replaces the given file. So the given file
+	 * stays intact if writing fails or is canceled, even if it backs this
+	 * content. After replacing a file that backs this content, the content has to
+	 * be reopened on it.
+	 *
+	 * @param destinationFile
+	 *            where to write the read result to
+	 * @param start
+	 *            first byte in sequence
+	 * @param length
+	 *            number of bytes to read
+	 * @param monitor
+	 *            receives one unit of work per kilobyte written and is checked
+	 *            for cancellation, may be <code>null</code>
+	 * @return number of bytes read
+	 * @throws IOException
+	 * @throws OperationCanceledException
+	 *             if the monitor has been canceled, the given file is untouched
+	 */
+	public long get(File destinationFile, long start, long length, IProgressMonitor monitor) throws IOException {
 		if (start < 0L || length < 0L || start + length > length()) {
 			return 0L;
 		}
 
+		endChanges();
+		return write(myRanges, destinationFile, start, length, monitor);
+	}
+
+	/*
+	 * Ends the current action and moves the bytes being typed in into the tree.
+	 * Called before saving, so the saved state is a clean cut in the undo
+	 * history.
+	 */
+	void endChanges() {
 		if (actions != null) {
 			actions.endAction();
 		}
 		commitChanges();
-		RandomAccessFile dst = RandomAccessFileFactory.createRandomAccessFile(destinationFile, "rws");
+	}
+
+	/*
+	 * Writes a sequence of bytes of the given pieces to a temporary file in the
+	 * same directory as the destination file, which then replaces it. Reads the
+	 * pieces only, so it can be called from any thread for the pieces of a
+	 * snapshot.
+	 */
+	long write(BinaryContentPieceTree ranges, File destinationFile, long start, long length,
+			IProgressMonitor monitor) throws IOException {
+		// the prefix must have at least three characters, also for short names
+		File tempFile = File.createTempFile("." + destinationFile.getName() + ".save", ".tmp",
+				destinationFile.getAbsoluteFile().getParentFile());
+		RandomAccessFile dst = RandomAccessFileFactory.createRandomAccessFile(tempFile, "rw");
 		IOException preCloseException = null;
+		OperationCanceledException canceledException = null;
 		try {
-			dst.setLength(length);
 			FileChannel channel = dst.getChannel();
-
-			ByteBuffer buffer = null;
-			for (long position = 0L; position < length; position += mappedFileBufferLength) {
-				int partLength = (int) Math.min(mappedFileBufferLength, length - position);
-				boolean bufferFromMap = true;
-				try {
-					buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, partLength);
-				} catch (IOException e) {
-					// gcj 4.3.0 channel maps work differently than sun's:
-					// gcj won't accept two calls to channel.map with a
-					// different position, sun does
-					// gcj will happily accept maps of size bigger than
-					// available memory, sun won't
-					// to access past the 2Gb barrier there is no choice but use
-					// plain ByteBuffers in gcj
-					bufferFromMap = false;
-					if (buffer == null) {
-						buffer = ByteBuffer.allocateDirect((int) mappedFileBufferLength);
-					}
-					buffer.position(0);
-					buffer.limit(partLength);
-				}
-				get(buffer, start + position);
-				if (bufferFromMap) {
-					((MappedByteBuffer) buffer).force();
-					buffer = null;
-				} else {
-					buffer.position(0);
-					buffer.limit(partLength);
-					channel.write(buffer, position);
+			SubMonitor progress = SubMonitor.convert(monitor, (int) Math.min(Integer.MAX_VALUE, length >> 10));
+
+			// walk the pieces, unmodified file parts are copied by the channels
+			long exclusiveEnd = start + length;
+			for (BinaryContentPieceTree.Cursor i = ranges.cursor(start); i.hasNext();) {
+				Range range = i.next();
+				long rangePosition = i.position();
+				if (rangePosition >= exclusiveEnd) {
+					break;
 				}
+				long offset = Math.max(0L, start - rangePosition);
+				long count = Math.min(range.length, exclusiveEnd - rangePosition) - offset;
+				writeRange(channel, range, offset, count, rangePosition + offset - start, progress);
 			}
 			channel.force(true);
 			channel.close();
 		} catch (IOException e) {
 			preCloseException = e;
+		} catch (OperationCanceledException e) {
+			canceledException = e;
 		}
 		try {
 			dst.close();
 		} catch (IOException e) {
 			if (preCloseException == null) {
-				throw e;
+				preCloseException = e;
 			}
-			throw preCloseException; // throw previous exception instead
 		}
-		if (preCloseException != null) {
+		if (preCloseException != null || canceledException != null) {
+			tempFile.delete();
+			if (canceledException != null) {
+				throw canceledException;
+			}
 			throw preCloseException;
 		}
+		replaceFile(tempFile, destinationFile);
+		RandomAccessFileFactory.detachRandomAccessFile(destinationFile);
 
 		return length;
 	}
 
+	/**
+	 * Copies a sequence of bytes of this content by reference. The clip clones
+	 * the pieces of the bytes, no data is copied, whatever the length.
+	 *
+	 * @param start
+	 *            first byte in sequence
+	 * @param length
+	 *            number of bytes
+	 * @return the clip, not <code>null</code>. It must be disposed when it is no
+	 *         longer needed, as it keeps the files it references open.
+	 * @throws IOException
+	 *             if a file that backs the bytes cannot be opened
+	 */
+	public BinaryContentClip getClip(long start, long length) throws IOException {
+		if (start < 0L || length < 0L || start + length > length()) {
+			throw new IllegalArgumentException("Parameters 'start' and 'length' must be within the content, "
+					+ "specified values are " + start + " and " + length + ".");
+		}
+
+		if (actions != null) {
+			actions.endAction();
+		}
+		commitChanges();
+		List<Range> ranges = new ArrayList<Range>();
+		long exclusiveEnd = start + length;
+		for (BinaryContentPieceTree.Cursor i = myRanges.cursor(start); i.hasNext();) {
+			Range range = i.next().clone();
+			long rangePosition = i.position();
+			if (rangePosition >= exclusiveEnd) {
+				break;
+			}
+			long offset = Math.max(0L, start - rangePosition);
+			range.position = rangePosition + offset - start;
+			range.length = Math.min(range.length, exclusiveEnd - rangePosition) - offset;
+			range.dataOffset += offset;
+			ranges.add(range);
+		}
+
+		return new BinaryContentClip(ranges);
+	}
+
+	/*
+	 * Gets the pieces of a clip for a paste. Their files are released when this
+	 * content is disposed.
+	 */
+	private List<Range> getClipRanges(BinaryContentClip clip, long position) throws IOException {
+		List<Range> result = clip.getRanges(position);
+		for (int i = 0; i < result.size(); ++i) {
+			Range range = result.get(i);
+			if (range.data instanceof RandomAccessFile) {
+				files.add((RandomAccessFile) range.data);
+			}
+		}
+
+		return result;
+	}
+
 	/*
 	 * Does not check myChanges
 	 */
@@ -678,22 +1023,45 @@ public final class BinaryContent {
 		Range range = getRangeAt(position);
 		if (range != null) {
 			Object value = range.data;
+			long dataPosition = range.dataOffset + position - range.position;
 			if (value instanceof ByteBuffer) {
-				ByteBuffer data = (ByteBuffer) value;
-				data.limit(data.capacity());
-				data.position((int) range.dataOffset);
-				result = data.get((int) (position - range.position)) & 0x0ff;
+				ByteBuffer data = ((ByteBuffer) value).duplicate();
+				data.clear();
+				result = data.get((int) dataPosition) & 0x0ff;
 			} else if (value instanceof RandomAccessFile) {
-				@SuppressWarnings("resource")
-				RandomAccessFile randomFile = (RandomAccessFile) value;
-				randomFile.seek(position);
-				result = randomFile.read();
+				if (pageCache != null) {
+					result = pageCache.get((RandomAccessFile) value, dataPosition);
+				} else {
+					result = windowCache.get((RandomAccessFile) value, dataPosition);
+				}
+			} else if (value instanceof BinaryContentFill) {
+				result = ((BinaryContentFill) value).get(dataPosition);
 			}
 		}
 
 		return result;
 	}
 
+	/**
+	 * Gets the maximum number of bytes of the backing files that are kept memory
+	 * mapped for reading.
+	 *
+	 * @return the number of bytes, 0 if memory mapping is off
+	 */
+	public long getMappedBytesBudget() {
+		return windowCache.getBudget();
+	}
+
+	/**
+	 * Gets the number of bytes of the backing files that are currently memory
+	 * mapped by this content.
+	 *
+	 * @return the number of bytes, at most the budget
+	 */
+	public long getMappedBytes() {
+		return windowCache.getMappedBytes();
+	}
+
 	/**
 	 * Get the list of files that back this object.
 	 *
@@ -705,7 +1073,7 @@ public final class BinaryContent {
 			return new ArrayList<File>(result);
 		}
 
-		for (Iterator<Range> i = myRanges.iterator(); i.hasNext();) {
+		for (BinaryContentPieceTree.Cursor i = myRanges.cursor(0L); i.hasNext();) {
 			Range value = i.next();
 			if (value.data instanceof RandomAccessFile && value.file != null) {
 				result.add(value.file);
@@ -715,24 +1083,32 @@ public final class BinaryContent {
 		return new ArrayList<File>(result);
 	}
 
-	Range getRangeAt(long position) {
-		SortedSet<Range> subSet = myRanges.tailSet(new Range(position, 1L));
-		if (subSet.isEmpty()) {
-			return null;
-		}
-
-		return subSet.first();
+	/**
+	 * Gets the page cache used to read the backing files.
+	 *
+	 * @return the cache or <code>null</code> if memory mapped windows are used
+	 */
+	public BinaryContentPageCache getPageCache() {
+		return pageCache;
 	}
 
-	SortedSet<Range> initSubtreeTraversing(long position, long length) {
-		SortedSet<Range> result = myRanges.tailSet(new Range(position, 1L));
-		tailTree = result.iterator();
-		exclusiveEnd = position + length;
-		if (exclusiveEnd > length()) {
-			exclusiveEnd = length();
-		}
+	/*
+	 * Returns a copy of the piece, with a valid position field
+	 */
+	Range getRangeAt(long position) {
+		return myRanges.getRangeAt(position);
+	}
 
-		return result;
+	/**
+	 * Gets the default session file of a file, which is next to it.
+	 *
+	 * @param aFile
+	 *            the file, not <code>null</code>
+	 * @return the session file, not <code>null</code>
+	 */
+	public static File getSessionFile(File aFile) {
+		File file = aFile.getAbsoluteFile();
+		return new File(file.getParentFile(), file.getName() + ".session");
 	}
 
 	/**
@@ -756,8 +1132,8 @@ public final class BinaryContent {
 			actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, true);
 		}
 		updateChanges(position, true);
-		myChanges.set((int) (position - myChangesPosition), Integer.valueOf(source & 0x0ff));
-		notifyListeners();
+		myChanges.set((int) (position - myChangesPosition), source);
+		notifyListeners(position, 0L, 1L);
 	}
 
 	/**
@@ -765,8 +1141,8 @@ public final class BinaryContent {
 	 * at the given position and shifting the existing ones.
 	 *
 	 * @param source
-	 *            bytes. The buffer is not copied internally, changes after this
-	 *            call will result in undefined behaviour.
+	 *            bytes. The remaining bytes are copied, the buffer can be reused
+	 *            after this call.
 	 * @param position
 	 *            starting insert point
 	 */
@@ -775,19 +1151,41 @@ public final class BinaryContent {
 			return;
 		}
 
-		dirty = true;
-		dirtySize = true;
-		lastUpperNibblePosition = -1L;
-		if (actions != null) {
-			actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, false);
+		insertInternal(arena.append(position, source, true));
+	}
+
+	/**
+	 * Inserts the bytes of a clip into this content, starting at the given
+	 * position and shifting the existing ones. The pieces of the clip are
+	 * spliced in, no data is copied. A clip of several pieces is one change in
+	 * the undo history.
+	 *
+	 * @param clip
+	 *            the clip, not disposed. It can be pasted again after this call.
+	 * @param position
+	 *            starting insert point
+	 * @throws IOException
+	 *             when a file of the clip cannot be opened. The content stays
+	 *             unchanged and valid
+	 */
+	public void insert(BinaryContentClip clip, long position) throws IOException {
+		if (clip.length() < 1L || position > length()) {
+			return;
 		}
-		commitChanges();
-		Range newRange = new Range(position, source, true);
-		insertRange(newRange);
-		if (actions != null) {
-			actions.addInserted(newRange.clone());
+
+		List<Range> ranges = getClipRanges(clip, position);
+		if (ranges.size() == 1) {
+			insertInternal(ranges.get(0));
+			return;
+		}
+		beginBatch();
+		try {
+			for (int i = 0; i < ranges.size(); ++i) {
+				insertInternal(ranges.get(i));
+			}
+		} finally {
+			endBatch();
 		}
-		notifyListeners();
 	}
 
 	/**
@@ -808,39 +1206,111 @@ public final class BinaryContent {
 			return;
 		}
 
-		Range newRange = new Range(position, aFile, true);
+		insertInternal(createFileRange(position, aFile, true));
+	}
+
+	/**
+	 * Inserts a byte pattern, repeated up to the given length, into this content
+	 * at the given position, shifting the existing ones. The fill only takes the
+	 * memory of the pattern, whatever its length.
+	 *
+	 * @param pattern
+	 *            bytes to repeat, for example a single 0x00 for zero padding. Not
+	 *            <code>null</code> and not empty, the array is copied.
+	 * @param length
+	 *            number of bytes to insert
+	 * @param position
+	 *            starting insert point
+	 */
+	public void insertFill(byte[] pattern, long length, long position) {
+		BinaryContentFill fill = new BinaryContentFill(pattern);
+		if (length < 1L || position > length()) {
+			return;
+		}
+
+		insertInternal(new Range(position, length, fill, true));
+	}
+
+	void insertInternal(Range newRange) {
 		dirty = true;
 		dirtySize = true;
 		lastUpperNibblePosition = -1L;
 		if (actions != null) {
-			actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, false);
+			actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, newRange.position, false);
 		}
 		commitChanges();
 		insertRange(newRange);
 		if (actions != null) {
 			actions.addInserted(newRange.clone());
 		}
-		notifyListeners();
+		notifyListeners(newRange.position, 0L, newRange.length);
 	}
 
 	private void insertRange(Range newRange) {
-		splitAndShift(newRange.position, newRange.length);
-		myRanges.add(newRange);
+		myRanges.insert(newRange.position, newRange);
 	}
 
 	private long[] insertRanges(List<Range> ranges) {
 		Range firstRange = ranges.get(0);
 		Range lastRange = ranges.get(ranges.size() - 1);
-		splitAndShift(firstRange.position, lastRange.exclusiveEnd() - firstRange.position);
-		ArrayList<Range> cloned = new ArrayList<Range>(ranges.size());
-		for (int i = 0; i < ranges.size(); ++i) {
-			cloned.add((ranges.get(i)).clone());
+		List<Range> cloned = cloneRanges(ranges, firstRange.position, lastRange.exclusiveEnd());
+		for (int i = 0; i < cloned.size(); ++i) {
+			Range range = cloned.get(i);
+			myRanges.insert(range.position, range);
 		}
-		myRanges.addAll(cloned);
 
 		return new long[] { firstRange.position, lastRange.exclusiveEnd() };
 	}
 
+	/*
+	 * Ranges of an action are not necessarily in position order and may overlap.
+	 * Returns clones of the ranges within start and exclusiveEnd in position
+	 * order, the first one of overlapping ranges wins.
+	 */
+	private static List<Range> cloneRanges(List<Range> ranges, long start, long exclusiveEnd) {
+		TreeSet<Range> result = new TreeSet<Range>();
+		for (int i = 0; i < ranges.size(); ++i) {
+			Range range = ranges.get(i);
+			if (range.position >= start && range.exclusiveEnd() <= exclusiveEnd) {
+				result.add(range.clone());
+			}
+		}
+
+		return new ArrayList<Range>(result);
+	}
+
+	/**
+	 * Gets the number of bytes stored in memory for inserted, typed in or
+	 * compacted content. They are kept outside of the Java heap as long as direct
+	 * memory is available.
+	 *
+	 * @return the number of bytes, including bytes that have been deleted since
+	 */
+	public long getArenaSize() {
+		return arena.size();
+	}
+
+	/**
+	 * Gets the number of bytes of inserted, typed in or compacted content that
+	 * have been written to the journal file because the spill threshold was
+	 * exceeded.
+	 *
+	 * @return the number of bytes, including bytes that have been deleted since
+	 */
+	public long getJournalSize() {
+		return arena.getJournalSize();
+	}
+
+	/**
+	 * Gets the number of pieces of memory or files that back this content.
+	 * Reading and searching get slower as this number grows.
+	 *
+	 * @return the number of pieces
+	 */
+	public int getPieceCount() {
+		return myRanges.size() + (myChanges == null ? 0 : 1);
+	}
+
 	/**
 	 * Tells whether changes have been done to the original content
 	 *
@@ -865,11 +1335,7 @@ public final class BinaryContent {
 	 * @return length of content in byte units
 	 */
 	public long length() {
-		long result = 0L;
-
-		if (myRanges.size() > 0) {
-			result = (myRanges.last()).exclusiveEnd();
-		}
+		long result = myRanges.length();
 
 		if (myChanges != null && myChangesInserted) {
 			result += myChanges.size();
@@ -878,7 +1344,65 @@ public final class BinaryContent {
 		return result;
 	}
 
-	void notifyListeners() {
+	/**
+	 * Creates a read-only channel over the current state of this content, see
+	 * {@link #snapshot()}. Reads copy the bytes in bulk, so tools like hashes or
+	 * parsers can process unsaved changes without saving them to a file first.
+	 *
+	 * @return the channel, not <code>null</code>
+	 */
+	public SeekableByteChannel newChannel() {
+		return snapshot().newChannel();
+	}
+
+	/**
+	 * Creates a stream that reads the current state of this content, see
+	 * {@link #snapshot()}.
+	 *
+	 * @return the stream, not <code>null</code>
+	 */
+	public InputStream newInputStream() {
+		return snapshot().newInputStream();
+	}
+
+	/*
+	 * Notifies the listeners after bytes have been replaced. While a batch is open
+	 * the modified bytes are only collected.
+	 */
+	void notifyListeners(long position, long removed, long inserted) {
+		if (batchDepth > 0) {
+			if (batchStart < 0L) {
+				batchStart = position;
+				batchEnd = position + inserted;
+			} else {
+				// bytes after the modified ones move, others become part of them
+				batchEnd = batchEnd >= position + removed ? batchEnd + inserted - removed : position + inserted;
+				batchStart = Math.min(batchStart, position);
+			}
+			return;
+		}
+
+		// not while the second nibble of a byte is still to be typed in
+		if (myRanges.size() > compactionTrigger && lastUpperNibblePosition < 0L) {
+			compact();
+		}
+		if (session != null) {
+			session.modified(position, removed, inserted);
+			// bytes being typed in are journaled with the next block edit or sync
+			if (myChanges == null && (actions == null || !actions.isMergingSingles())) {
+				try {
+					session.sync(false);
+				} catch (IOException ex) {
+					Log.logError("Cannot write to session file '{0}'",
+							new Object[] { session.getFile().getAbsolutePath() }, ex);
+				}
+			}
+		}
+		if (rangeListeners != null) {
+			for (int i = 0; i < rangeListeners.size(); ++i) {
+				rangeListeners.get(i).modified(position, removed, inserted);
+			}
+		}
 		if (listeners == null) {
 			return;
 		}
@@ -888,6 +1412,18 @@ public final class BinaryContent {
 		}
 	}
 
+	/*
+	 * Notifies the listeners after undo or redo replaced the bytes in the given
+	 * interval.
+	 */
+	private void notifyListeners(long[] interval, long previousLength) {
+		if (interval == null) {
+			return;
+		}
+		long inserted = interval[1] - interval[0];
+		notifyListeners(interval[0], inserted - (length() - previousLength), inserted);
+	}
+
 	/**
 	 * Writes a byte into this content at the given position
 	 *
@@ -942,13 +1478,13 @@ public final class BinaryContent {
 			length = 8 - offset;
 		}
 		Range range = updateChanges(position, false);
-		int previous = (myChanges.get((int) (position - myChangesPosition))).intValue();
+		int previous = myChanges.get((int) (position - myChangesPosition)) & 0x0ff;
 		int mask = (0x0ff >>> offset) & (0x0ff << (8 - offset - length));
 		int newValue = previous & ~mask | (source << (8 - offset - length)) & mask;
-		myChanges.set((int) (position - myChangesPosition), Integer.valueOf(newValue));
+		myChanges.set((int) (position - myChangesPosition), (byte) newValue);
 		if (actions != null) {
 			if (range == null) {
-				actions.addLostByte(position, Integer.valueOf(previous));
+				actions.addLostByte(position, (byte) previous);
 			} else {
 				Range clone = range.clone();
 				clone.position = position;
@@ -960,7 +1496,7 @@ public final class BinaryContent {
 		}
 		actionsOn(true);
 		lastUpperNibblePosition = actions != null && offset == 0 && length == 4 ? position : -1L;
-		notifyListeners();
+		notifyListeners(position, 1L, 1L);
 	}
 
 	/**
@@ -968,14 +1504,48 @@ public final class BinaryContent {
 	 * at the given position and overwriting the existing ones.
 	 *
 	 * @param source
-	 *            bytes. The buffer is not copied internally, changes after this
-	 *            call will result in undefined behaviour.
+	 *            bytes. The remaining bytes are copied, the buffer can be reused
+	 *            after this call.
 	 * @param position
 	 *            starting overwrite point
 	 */
 	public void overwrite(ByteBuffer source, long position) {
 		if (source.remaining() > 0 && position < length()) {
-			overwriteInternal(new Range(position, source, true));
+			overwriteInternal(arena.append(position, source, true));
+		}
+	}
+
+	/**
+	 * Writes the bytes of a clip into this content, starting at the given
+	 * position and overwriting the existing ones. The pieces of the clip are
+	 * spliced in, no data is copied. A clip of several pieces is one change in
+	 * the undo history.
+	 *
+	 * @param clip
+	 *            the clip, not disposed. It can be pasted again after this call.
+	 * @param position
+	 *            starting overwrite point
+	 * @throws IOException
+	 *             when a file of the clip cannot be opened. The content stays
+	 *             unchanged and valid
+	 */
+	public void overwrite(BinaryContentClip clip, long position) throws IOException {
+		if (clip.length() < 1L || position >= length()) {
+			return;
+		}
+
+		List<Range> ranges = getClipRanges(clip, position);
+		if (ranges.size() == 1) {
+			overwriteInternal(ranges.get(0));
+			return;
+		}
+		beginBatch();
+		try {
+			for (int i = 0; i < ranges.size(); ++i) {
+				overwriteInternal(ranges.get(i));
+			}
+		} finally {
+			endBatch();
 		}
 	}
 
@@ -993,7 +1563,27 @@ public final class BinaryContent {
 	 */
 	public void overwrite(File aFile, long position) throws IOException {
 		if (aFile.length() > 0L && position < length()) {
-			overwriteInternal(new Range(position, aFile, true));
+			overwriteInternal(createFileRange(position, aFile, true));
+		}
+	}
+
+	/**
+	 * Writes a byte pattern, repeated up to the given length, into this content at
+	 * the given position, overwriting the existing ones. The fill only takes the
+	 * memory of the pattern, whatever its length.
+	 *
+	 * @param pattern
+	 *            bytes to repeat, for example a single 0xFF for erased flash. Not
+	 *            <code>null</code> and not empty, the array is copied.
+	 * @param length
+	 *            number of bytes to write
+	 * @param position
+	 *            starting overwrite point
+	 */
+	public void overwriteFill(byte[] pattern, long length, long position) {
+		BinaryContentFill fill = new BinaryContentFill(pattern);
+		if (length > 0L && position < length()) {
+			overwriteInternal(new Range(position, length, fill, true));
 		}
 	}
 
@@ -1004,43 +1594,47 @@ public final class BinaryContent {
 			actions.eventPreModify(BinaryContentActionHistory.TYPE_OVERWRITE, newRange.position, false);
 		}
 		commitChanges();
+		long overwritten = Math.min(newRange.length, length() - newRange.position);
 		overwriteRange(newRange);
 		if (actions != null) {
 			actions.addRangeToCurrentAction(newRange.clone());
 		}
-		notifyListeners();
+		notifyListeners(newRange.position, overwritten, newRange.length);
 	}
 
 	private void overwriteRange(Range aRange) {
 		deleteInternal(aRange.position, aRange.length);
-		myRanges.add(aRange);
+		myRanges.insert(aRange.position, aRange);
 	}
 
 	private long[] overwriteRanges(List<Range> ranges) {
 		Range firstRange = ranges.get(0);
 		Range lastRange = ranges.get(ranges.size() - 1);
-		splitAndShift(firstRange.position, 0);
-		splitAndShift(lastRange.exclusiveEnd(), 0);
-		initSubtreeTraversing(firstRange.position, 0L);
-		if (tailTree.hasNext()) {
-			Range goingRange = tailTree.next();
-			while (goingRange != null && goingRange.exclusiveEnd() <= lastRange.exclusiveEnd()) {
-				tailTree.remove();
-				goingRange = null;
-				if (tailTree.hasNext()) {
-					goingRange = tailTree.next();
-				}
-			}
-		}
-		ArrayList<Range> cloned = new ArrayList<Range>(ranges.size());
-		for (int i = 0; i < ranges.size(); ++i) {
-			cloned.add((ranges.get(i)).clone());
+		List<Range> cloned = cloneRanges(ranges, firstRange.position, lastRange.exclusiveEnd());
+		myRanges.remove(firstRange.position, lastRange.exclusiveEnd() - firstRange.position, null);
+		for (int i = 0; i < cloned.size(); ++i) {
+			Range range = cloned.get(i);
+			myRanges.insert(range.position, range);
 		}
-		myRanges.addAll(cloned);
 
 		return new long[] { firstRange.position, lastRange.exclusiveEnd() };
 	}
 
+	/*
+	 * Replaces the bytes modified by a batch with the pieces of the other side
+	 * of the batch. The content outside of the interval is not touched.
+	 */
+	private long[] replaceRanges(BinaryContentPieceTree source, long position, long exclusiveEnd) {
+		myRanges.remove(position, exclusiveEnd - position, null);
+		for (BinaryContentPieceTree.Cursor i = source.cursor(0L); i.hasNext();) {
+			Range range = i.next().clone();
+			range.position = position + i.position();
+			myRanges.insert(range.position, range);
+		}
+
+		return new long[] { position, position + source.length() };
+	}
+
 	/**
 	 * Redoes last action on BinaryContent. Action history should be on:
 	 * setActionHistory()
@@ -1059,7 +1653,10 @@ public final class BinaryContent {
 			return null;
 		}
 
+		// a lower nibble typed in next must not continue the previous byte
+		lastUpperNibblePosition = -1L;
 		long[] result = null;
+		long previousLength = length();
 		List<Range> ranges = entry.getRanges();
 		if (entry.getActionType() == BinaryContentActionHistory.TYPE_DELETE) {
 			result = deleteRanges(ranges);
@@ -1069,8 +1666,10 @@ public final class BinaryContent {
 			// 0 to size - 1: overwritten ranges, last one: overwriter range
 			int size = ranges.size();
 			result = overwriteRanges(ranges.subList(size - 1, size));
+		} else if (entry.getActionType() == BinaryContentActionHistory.TYPE_BATCH) {
+			result = replaceRanges(entry.getRangesAfter(), entry.getPosition(), entry.getExclusiveEndBefore());
 		}
-		notifyListeners();
+		notifyListeners(result, previousLength);
 
 		return result;
 	}
@@ -1088,6 +1687,201 @@ public final class BinaryContent {
 		}
 	}
 
+	/**
+	 * Remove a listener to the list of listeners to be notified with the changed
+	 * bytes when there is a change in the content
+	 *
+	 * @param listener
+	 *            not to be notified of the change
+	 */
+	public void removeRangeModifyListener(RangeModifyListener listener) {
+		if (rangeListeners != null) {
+			rangeListeners.remove(listener);
+		}
+	}
+
+	/*
+	 * Moves the source file over the target file, atomically if the file system
+	 * supports it. If the target cannot be replaced, for example because it is
+	 * locked by another process, its content is overwritten instead.
+	 */
+	private static void replaceFile(File source, File target) throws IOException {
+		Path sourcePath = source.toPath();
+		Path targetPath = target.toPath();
+		try {
+			Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(targetPath);
+			Files.setPosixFilePermissions(sourcePath, permissions);
+		} catch (UnsupportedOperationException e) {
+			// no POSIX file system
+		} catch (IOException e) {
+			// target does not exist yet
+		}
+
+		try {
+			Files.move(sourcePath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+			return;
+		} catch (IOException e) {
+			// try again without atomic replacement
+		}
+		try {
+			Files.move(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		} catch (IOException e) {
+			// target cannot be replaced, overwrite it
+		}
+
+		RandomAccessFile src = RandomAccessFileFactory.createRandomAccessFile(source, "r");
+		try {
+			RandomAccessFile dst = RandomAccessFileFactory.createRandomAccessFile(target, "rw");
+			try {
+				FileChannel channel = dst.getChannel();
+				long length = src.length();
+				dst.setLength(length);
+				for (long done = 0L; done < length;) {
+					long transferred = src.getChannel().transferTo(done, length - done, channel);
+					if (transferred < 1L) {
+						throw new IOException("Cannot overwrite file " + target + ".");
+					}
+					done += transferred;
+				}
+				channel.force(true);
+			} finally {
+				dst.close();
+			}
+		} finally {
+			src.close();
+		}
+		source.delete();
+	}
+
+	/*
+	 * Tells whether the content can be written back to the given file in place.
+	 * This requires that the size has not changed and that nobody else reads the
+	 * file, neither other contents, nor clips, nor sessions, since they would
+	 * see the new bytes instead of the ones they have been created from. Must be
+	 * called in the thread that modifies this content.
+	 */
+	boolean canSaveInPlace(File destinationFile) {
+		return !dirtySize && destinationFile.length() == length()
+				&& RandomAccessFileFactory.isReferencedOnlyBy(destinationFile, files);
+	}
+
+	/*
+	 * Writes the content back to the file it has been loaded from by rewriting
+	 * only the modified parts at their offsets, followed by a single force. This
+	 * is possible only as long as the unmodified parts of the file have not been
+	 * moved, that is the size has not changed and no parts of the file have been
+	 * copied elsewhere, and nobody else reads the file. Save time is then
+	 * proportional to the size of the modifications instead of the size of the
+	 * file.
+	 *
+	 * The bytes of the file change under the pieces that read it, so the undo
+	 * history is cleared and the file's blocks are removed from the page cache.
+	 * Snapshots and clips taken before must no longer be used and the pieces are
+	 * still marked as modified, so the content should be disposed and reopened
+	 * on the file afterwards. If writing fails, the file is partially updated.
+	 * Returns false if nothing has been written because the content cannot be
+	 * saved in place.
+	 */
+	boolean saveInPlace(File destinationFile) throws IOException {
+		if (destinationFile == null) {
+			throw new IllegalArgumentException("Parameter 'destinationFile' must not be null.");
+		}
+
+		endChanges();
+		if (!canSaveInPlace(destinationFile) || !snapshot().saveInPlace(destinationFile, null)) {
+			return false;
+		}
+		if (actions != null) {
+			actions.restore(new ArrayList<Entry>(), 0);
+		}
+		if (pageCache != null) {
+			for (BinaryContentPieceTree.Cursor i = myRanges.cursor(0L); i.hasNext();) {
+				Range range = i.next();
+				if (range.data instanceof RandomAccessFile && destinationFile.equals(range.file)) {
+					pageCache.invalidate((RandomAccessFile) range.data);
+				}
+			}
+		}
+		dirty = false;
+
+		return true;
+	}
+
+	/**
+	 * Sets the page cache used to read the backing files. Without a page cache
+	 * the files are read through memory mapped windows. A page cache with read
+	 * ahead is preferable for slow storage like network drives.
+	 *
+	 * @param pageCache
+	 *            the cache, may be shared with other contents, or
+	 *            <code>null</code> to use memory mapped windows
+	 */
+	public void setPageCache(BinaryContentPageCache pageCache) {
+		this.pageCache = pageCache;
+	}
+
+	/**
+	 * Sets the maximum number of bytes of the backing files that are kept memory
+	 * mapped for reading. Files are mapped in windows of 32 MB, the least recently
+	 * used windows are dropped first. A dropped window is unmapped only when it
+	 * has been garbage collected. The default is 256 MB, on Windows it is 0, since
+	 * a mapped file can neither be replaced nor deleted there.
+	 *
+	 * @param budget
+	 *            the number of bytes, 0 turns memory mapping off
+	 */
+	public void setMappedBytesBudget(long budget) {
+		windowCache.setBudget(budget);
+	}
+
+	/**
+	 * Sets the size of the windows in which the backing files are memory mapped
+	 * together with the maximum number of mapped bytes. The windows mapped so far
+	 * are dropped. Must be called before snapshots of this content are read in
+	 * other threads.
+	 *
+	 * @param windowSize
+	 *            size of a window in bytes, positive
+	 * @param budget
+	 *            the number of bytes, 0 turns memory mapping off
+	 */
+	public void setMappedWindows(int windowSize, long budget) {
+		BinaryContentWindowCache oldWindowCache = windowCache;
+		windowCache = new BinaryContentWindowCache(windowSize, budget);
+		oldWindowCache.clear();
+	}
+
+	/**
+	 * Sets the number of pieces above which {@link #compact()} is called after a
+	 * modification. If compacting cannot bring the number of pieces below the
+	 * threshold, the next automatic call happens once the number has doubled. The
+	 * default is {@link #DEFAULT_FRAGMENTATION_THRESHOLD}.
+	 *
+	 * @param threshold
+	 *            the number of pieces, 0 turns automatic compaction off
+	 */
+	public void setFragmentationThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException(
+					"Parameter 'threshold' must not be negative, specified value is " + threshold + ".");
+		}
+		fragmentationThreshold = threshold;
+		compactionTrigger = threshold == 0 ? Integer.MAX_VALUE : threshold;
+	}
+
+	/**
+	 * Sets the number of bytes of inserted or typed in content that are kept in
+	 * memory. Further content is written to a temporary journal file, which is
+	 * deleted when this content is disposed. The default is 64 MB.
+	 *
+	 * @param threshold
+	 *            the number of bytes, 0 writes all further content to the journal
+	 */
+	public void setSpillThreshold(long threshold) {
+		arena.setSpillThreshold(threshold);
+	}
+
 	/**
 	 * Sets action history on. After this call the content will remember past
 	 * actions to undo and redo
@@ -1099,44 +1893,54 @@ public final class BinaryContent {
 		}
 	}
 
-	void shiftRemainingRanges(long increment) {
-		if (increment == 0L) {
+	/**
+	 * Writes the edits since the last sync to the session file and forces them to
+	 * the storage device. Ends the current action, like a pause longer than
+	 * {@link BinaryContentActionHistory#MERGE_TIME} does. Block edits are written
+	 * when they happen, bytes being typed in only with the next block edit or
+	 * call to this method. Does nothing while a batch is open or if there is no
+	 * session.
+	 *
+	 * @throws IOException
+	 *             if the session file cannot be written
+	 */
+	public void syncSession() throws IOException {
+		if (session == null || batchDepth > 0) {
 			return;
 		}
 
-		while (tailTree.hasNext()) {
-			Range currentRange = tailTree.next();
-			currentRange.position += increment;
-			// currentRange.dirty = true;
+		if (actions != null) {
+			actions.endAction();
 		}
+		actionsOn(false);
+		commitChanges();
+		actionsOn(true);
+		session.sync(true);
 	}
 
-	void splitAndShift(long position, long increment) {
-		initSubtreeTraversing(position, 0);
-		if (!tailTree.hasNext()) {
-			return;
+	/**
+	 * Creates a read-only view of the current state of this content. Creating a
+	 * snapshot neither copies data nor pieces, later changes to this content do
+	 * not affect it. Must be called in the thread that modifies this content, the
+	 * snapshot can then be read from any thread until this content is disposed.
+	 *
+	 * @return the snapshot, not <code>null</code>
+	 */
+	public BinaryContentSnapshot snapshot() {
+		BinaryContentPieceTree ranges = myRanges.copy();
+		if (myChanges != null) {
+			// bytes being typed in are not part of the tree yet, they are copied
+			// into the arena like all edits
+			ByteBuffer changes = arena.allocate(myChanges.size());
+			myChanges.get(0, changes);
+			changes.flip();
+			if (!myChangesInserted) {
+				ranges.remove(myChangesPosition, changes.remaining(), null);
+			}
+			ranges.insert(myChangesPosition, new Range(myChangesPosition, changes, true));
 		}
 
-		Range firstRange = tailTree.next();
-		Range secondRange = null;
-		if (firstRange.position < position) {
-			secondRange = firstRange.clone(); // will be tail part of
-			// firstRange
-			long delta = position - firstRange.position;
-			firstRange.length = delta;
-
-			secondRange.length -= delta;
-			secondRange.dataOffset += delta;
-			secondRange.position = secondRange.position + delta + increment;
-			// secondRange.dirty |= increment != 0;
-		} else {
-			firstRange.position += increment;
-			// firstRange.dirty |= increment != 0;
-		}
-		shiftRemainingRanges(increment);
-		if (secondRange != null) {
-			myRanges.add(secondRange);
-		}
+		return new BinaryContentSnapshot(this, ranges);
 	}
 
 	/**
@@ -1145,8 +1949,10 @@ public final class BinaryContent {
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder("BinaryContent: length=").append(length()).append("}\n");
-		for (Range range : myRanges) {
-			result.append(range.toString()).append('\n');
+		for (BinaryContentPieceTree.Cursor i = myRanges.cursor(0L); i.hasNext();) {
+			Range range = i.next();
+			result.append("Range {position:").append(i.position()).append(", length:").append(range.length)
+					.append('}').append('\n');
 		}
 		return result.toString();
 	}
@@ -1169,8 +1975,11 @@ public final class BinaryContent {
 			return null;
 		}
 
+		// a lower nibble typed in next must not continue the previous byte
+		lastUpperNibblePosition = -1L;
 		commitChanges();
 		long[] result = null;
+		long previousLength = length();
 		List<Range> ranges = entry.getRanges();
 		if (entry.getActionType() == BinaryContentActionHistory.TYPE_DELETE) {
 			result = insertRanges(ranges);
@@ -1179,12 +1988,25 @@ public final class BinaryContent {
 		} else if (entry.getActionType() == BinaryContentActionHistory.TYPE_OVERWRITE) {
 			// 0 to size - 1: overwritten ranges, last one: overwriter range
 			result = overwriteRanges(ranges.subList(0, ranges.size() - 1));
+		} else if (entry.getActionType() == BinaryContentActionHistory.TYPE_BATCH) {
+			result = replaceRanges(entry.getRangesBefore(), entry.getPosition(), entry.getExclusiveEndAfter());
 		}
-		notifyListeners();
+		notifyListeners(result, previousLength);
 
 		return result;
 	}
 
+	private void updateCompactionTrigger() {
+		if (fragmentationThreshold == 0) {
+			compactionTrigger = Integer.MAX_VALUE;
+		} else if (myRanges.size() < fragmentationThreshold) {
+			compactionTrigger = fragmentationThreshold;
+		} else {
+			// mostly file pieces, do not compact again after each modification
+			compactionTrigger = Math.min(myRanges.size(), Integer.MAX_VALUE / 2) * 2;
+		}
+	}
+
 	private Range updateChanges(long position, boolean insert) throws IOException {
 		Range result = null;
 		if (myChanges != null) {
@@ -1199,14 +2021,14 @@ public final class BinaryContent {
 			}
 			if (insert == myChangesInserted && position >= lowerLimit && position <= upperLimit) { // reuse
 				if (insert) {
-					myChanges.add((int) (position - myChangesPosition), Integer.valueOf(0));
+					myChanges.insert((int) (position - myChangesPosition), (byte) 0);
 				} else {
 					result = getRangeAt(position);
 					if (myChangesPosition > position) {
 						myChangesPosition = position;
-						myChanges.add(0, Integer.valueOf(getFromRanges(position)));
+						myChanges.insert(0, (byte) getFromRanges(position));
 					} else if (myChangesPosition + myChanges.size() <= position) {
-						myChanges.add(Integer.valueOf(getFromRanges(position)));
+						myChanges.insert(myChanges.size(), (byte) getFromRanges(position));
 					}
 				}
 				return result;
@@ -1215,8 +2037,8 @@ public final class BinaryContent {
 			commitChanges();
 
 		}
-		myChanges = new ArrayList<Integer>();
-		myChanges.add(Integer.valueOf(getFromRanges(position)));
+		myChanges = new BinaryContentGapBuffer();
+		myChanges.insert(0, (byte) getFromRanges(position));
 		myChangesInserted = insert;
 		myChangesPosition = position;
 		if (!insert) {
@@ -1225,4 +2047,61 @@ public final class BinaryContent {
 
 		return result;
 	}
+
+	/*
+	 * Writes count bytes of a piece, starting at offset within the piece, at the
+	 * given position of the channel. File backed pieces are transferred from
+	 * channel to channel, which lets the operating system copy the data without
+	 * passing it through the Java heap. Data is written in chunks, after each
+	 * chunk the written kilobytes are reported and cancellation is checked.
+	 */
+	void writeRange(FileChannel channel, Range range, long offset, long count, long dstPosition,
+			SubMonitor progress) throws IOException {
+		ByteBuffer buffer = null;
+		for (long done = 0L; done < count;) {
+			int chunk = (int) Math.min(count - done, mappedFileBufferLength);
+			long position = dstPosition + done;
+			long written = 0L;
+			if (range.data instanceof ByteBuffer) {
+				ByteBuffer src = ((ByteBuffer) range.data).duplicate();
+				src.limit((int) (range.dataOffset + offset + done + chunk));
+				src.position((int) (range.dataOffset + offset + done));
+				while (src.hasRemaining()) {
+					written += channel.write(src, position + written);
+				}
+			} else if (range.data instanceof RandomAccessFile) {
+				if (buffer == null) {
+					channel.position(position);
+					written = ((RandomAccessFile) range.data).getChannel()
+							.transferTo(range.dataOffset + offset + done, chunk, channel);
+				}
+				if (written < 1L) {
+					// channel transfer not possible, copy through a buffer
+					if (buffer == null) {
+						buffer = ByteBuffer.allocateDirect((int) Math.min(count, mappedFileBufferLength));
+					}
+					buffer.clear();
+					if (fillWithPartOfRange(buffer, range, offset + done, chunk) < 1) {
+						throw new IOException("Unexpected end of file " + range.file + ".");
+					}
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						written += channel.write(buffer, position + written);
+					}
+				}
+			} else if (range.data instanceof BinaryContentFill) {
+				((BinaryContentFill) range.data).write(channel, range.dataOffset + offset + done, chunk, position);
+				written = chunk;
+			} else {
+				return;
+			}
+			if (progress != null) {
+				if (progress.isCanceled()) {
+					throw new OperationCanceledException();
+				}
+				progress.worked((int) (((position + written) >> 10) - (position >> 10)));
+			}
+			done += written;
+		}
+	}
 }
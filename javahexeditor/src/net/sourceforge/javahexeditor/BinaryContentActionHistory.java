@@ -20,19 +20,16 @@
  */
 package net.sourceforge.javahexeditor;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 import net.sourceforge.javahexeditor.BinaryContent.Range;
-import net.sourceforge.javahexeditor.common.Log;
 
 /**
  * Keeps track of actions performed on a BinaryContent so they can be undone and
- * redone. Actions can be single or block deletes, inserts or overwrites.
+ * redone. Actions can be single or block deletes, inserts or overwrites, or
+ * batches of them.
  * Consecutive single actions are merged into a block action if they are of the
  * same type, their data is contiguous, and are performed with a time difference
  * lower than {@link #MERGE_TIME}. Block actions are sequences of Range. Single
@@ -45,6 +42,11 @@ final class BinaryContentActionHistory {
 	public final static class Entry {
 		private Integer actionType;
 		private List<Range> ranges;
+		private BinaryContentPieceTree rangesBefore;
+		private BinaryContentPieceTree rangesAfter;
+		private long position;
+		private long exclusiveEndBefore;
+		private long exclusiveEndAfter;
 
 		public Entry(Integer actionType, List<Range> ranges) {
 			if (actionType == null) {
@@ -57,13 +59,54 @@ final class BinaryContentActionHistory {
 			this.ranges = ranges;
 		}
 
+		/**
+		 * Creates a batch entry. The pieces of the modified bytes before and after
+		 * the batch are kept, so the trees must not be modified afterwards.
+		 */
+		public Entry(BinaryContentPieceTree rangesBefore, BinaryContentPieceTree rangesAfter, long position,
+				long exclusiveEndBefore, long exclusiveEndAfter) {
+			if (rangesBefore == null) {
+				throw new IllegalArgumentException("Parameter 'rangesBefore' must not be null.");
+			}
+			if (rangesAfter == null) {
+				throw new IllegalArgumentException("Parameter 'rangesAfter' must not be null.");
+			}
+			actionType = TYPE_BATCH;
+			ranges = new ArrayList<Range>(0);
+			this.rangesBefore = rangesBefore;
+			this.rangesAfter = rangesAfter;
+			this.position = position;
+			this.exclusiveEndBefore = exclusiveEndBefore;
+			this.exclusiveEndAfter = exclusiveEndAfter;
+		}
+
 		public Integer getActionType() {
 			return actionType;
 		}
 
+		public long getExclusiveEndAfter() {
+			return exclusiveEndAfter;
+		}
+
+		public long getExclusiveEndBefore() {
+			return exclusiveEndBefore;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
 		public List<Range> getRanges() {
 			return ranges;
 		}
+
+		public BinaryContentPieceTree getRangesAfter() {
+			return rangesAfter;
+		}
+
+		public BinaryContentPieceTree getRangesBefore() {
+			return rangesBefore;
+		}
 	}
 
 	/**
@@ -78,10 +121,11 @@ final class BinaryContentActionHistory {
 	static final Integer TYPE_DELETE = Integer.valueOf(0);
 	static final Integer TYPE_INSERT = Integer.valueOf(1);
 	static final Integer TYPE_OVERWRITE = Integer.valueOf(2);
+	static final Integer TYPE_BATCH = Integer.valueOf(3);
 
 	private BinaryContent content;
 	private Range myLastActionRange;
-	private List<Integer> deletedList;
+	private BinaryContentGapBuffer deletedList;
 	private boolean isBackspace;
 	private List<Entry> myActions;
 	private int myActionsIndex;
@@ -136,40 +180,75 @@ final class BinaryContentActionHistory {
 	}
 
 	/**
-	 * Adds a list of deleted integers to the current action. If possible, merges
-	 * integerList with the list in the previous call to this method.
+	 * Adds deleted bytes to the current action. If possible, merges them with the
+	 * bytes in the previous call to this method.
 	 *
 	 * @param position
 	 *            starting delete point
-	 * @param integerList
-	 *            deleted integers
+	 * @param source
+	 *            buffer with the deleted bytes
+	 * @param start
+	 *            index of the first deleted byte in source
+	 * @param length
+	 *            number of deleted bytes
 	 * @param isSingle
-	 *            used when integerList.size == 1 to tell whether it is a single or
-	 *            a piece of a block delete. When integerList.size() > 1 (a block
-	 *            delete for sure) isSingle is ignored.
+	 *            used when length == 1 to tell whether it is a single or a piece
+	 *            of a block delete. When length > 1 (a block delete for sure)
+	 *            isSingle is ignored.
 	 */
-	public void addDeleted(long position, List<Integer> integerList, boolean isSingle) {
-		if (integerList.size() > 1L || !isSingle) { // block delete
-			Range range = newRangeFromIntegerList(position, integerList);
+	public void addDeleted(long position, BinaryContentGapBuffer source, int start, int length, boolean isSingle) {
+		if (length > 1 || !isSingle) { // block delete
+			// kept off the heap in the arena of the content, like all edits
+			ByteBuffer store = content.arena.allocate(length);
+			source.get(start, store);
+			store.position(0);
 			List<Range> oneElementList = new ArrayList<Range>(1);
-			oneElementList.add(range);
+			oneElementList.add(new Range(position, store, true));
 			addLostRanges(oneElementList);
 		} else {
-			addLostByte(position, integerList.get(0));
+			addLostByte(position, source.get(start));
 		}
 		myPreviousTime = System.currentTimeMillis();
 	}
 
-	public void addLostByte(long position, Integer integer) {
+	/**
+	 * Adds a batch of changes as a new action. Ends the current action.
+	 *
+	 * @param rangesBefore
+	 *            the pieces of the modified bytes before the batch, starting at
+	 *            0, not <code>null</code>
+	 * @param rangesAfter
+	 *            the pieces of the modified bytes after the batch, starting at 0,
+	 *            not <code>null</code>
+	 * @param position
+	 *            start of the modified bytes
+	 * @param exclusiveEndBefore
+	 *            end of the modified bytes before the batch
+	 * @param exclusiveEndAfter
+	 *            end of the modified bytes after the batch
+	 */
+	public void addBatch(BinaryContentPieceTree rangesBefore, BinaryContentPieceTree rangesAfter, long position,
+			long exclusiveEndBefore, long exclusiveEndAfter) {
+		endAction();
+		addEntry(new Entry(rangesBefore, rangesAfter, position, exclusiveEndBefore, exclusiveEndAfter));
+	}
+
+	private void addEntry(Entry entry) {
+		myActions.subList(myActionsIndex, myActions.size()).clear();
+		myActions.add(entry);
+		myActionsIndex = myActions.size();
+	}
+
+	public void addLostByte(long position, byte value) {
 		if (deletedList == null) {
-			deletedList = new ArrayList<Integer>();
+			deletedList = new BinaryContentGapBuffer();
 		}
 
 		updateNewRange(position);
 		if (isBackspace) {
-			deletedList.add(0, integer);
+			deletedList.insert(0, value);
 		} else { // delete(Del) or overwite
-			deletedList.add(integer);
+			deletedList.insert(deletedList.size(), value);
 		}
 		myPreviousTime = System.currentTimeMillis();
 	}
@@ -247,10 +326,7 @@ final class BinaryContentActionHistory {
 		if (myMergingSingles) {
 			newRangeToCurrentAction();
 		}
-		Entry entry = new Entry(myCurrentActionType, myCurrentActionRanges);
-		myActions.subList(myActionsIndex, myActions.size()).clear();
-		myActions.add(entry);
-		myActionsIndex = myActions.size();
+		addEntry(new Entry(myCurrentActionType, myCurrentActionRanges));
 
 		isBackspace = false;
 		myCurrentActionType = null;
@@ -270,7 +346,8 @@ final class BinaryContentActionHistory {
 	 * @param isSingle
 	 */
 	public void eventPreModify(Integer type, long position, boolean isSingle) {
-		if (type != myCurrentActionType || !isSingle || System.currentTimeMillis() - myPreviousTime > MERGE_TIME
+		if (type != myCurrentActionType || !isSingle || !myMergingSingles
+				|| System.currentTimeMillis() - myPreviousTime > MERGE_TIME
 				|| (type == TYPE_INSERT || type == TYPE_OVERWRITE) && actionExclusiveEnd() != position
 				|| type == TYPE_DELETE && actionPosition() != position && actionPosition() - 1L != position) {
 			startAction(type, isSingle);
@@ -284,7 +361,8 @@ final class BinaryContentActionHistory {
 	}
 
 	/**
-	 * Closes all files for termination
+	 * Drops all actions for termination. The files of the Ranges are closed by the
+	 * content.
 	 *
 	 * @see Object#finalize()
 	 */
@@ -294,37 +372,28 @@ final class BinaryContentActionHistory {
 	}
 
 	private void dispose() {
-		if (myActions != null) {
-			for (Iterator<Entry> i = myActions.iterator(); i.hasNext();) {
-				Entry entry = i.next();
-				List<Range> ranges = entry.getRanges();
-				disposeRanges(ranges);
-			}
-		}
-		disposeRanges(myCurrentActionRanges);
+		myActions.clear();
+		myActionsIndex = 0;
+		myCurrentActionRanges = null;
+		myLastActionRange = null;
 	}
 
-	private void disposeRanges(List<Range> ranges) {
-		if (ranges == null) {
-			return;
+	/*
+	 * Tells whether the range continues the last one in the same data. Ranges of
+	 * a file share their data even when they come from different inserts.
+	 */
+	private boolean isContiguous(Range range) {
+		if (myLastActionRange == null || myLastActionRange.data != range.data) {
+			return false;
 		}
-
-		for (Iterator<Range> j = ranges.iterator(); j.hasNext();) {
-			Range range = j.next();
-			if (range.data instanceof RandomAccessFile) {
-				RandomAccessFile randomAccessFile = (RandomAccessFile) range.data;
-				try {
-					randomAccessFile.close();
-				} catch (IOException ex) {
-					Log.logError("Cannot close random access file '{0}'", new Object[] { range.file.getAbsolutePath() },
-							ex);
-				}
-			}
+		if (myLastActionRange.compareTo(range) > 0) {
+			return range.dataOffset + range.length == myLastActionRange.dataOffset;
 		}
+		return myLastActionRange.dataOffset + myLastActionRange.length == range.dataOffset;
 	}
 
 	private void mergeRange(Range range) {
-		if (myLastActionRange == null || myLastActionRange.data != range.data) {
+		if (!isContiguous(range)) {
 			newRangeToCurrentAction();
 			addRangeToCurrentAction(range);
 		} else {
@@ -345,22 +414,6 @@ final class BinaryContentActionHistory {
 		}
 	}
 
-	private ByteBuffer newBufferFromIntegerList(List<Integer> integerList) {
-		ByteBuffer store = ByteBuffer.allocate(integerList.size());
-		for (Iterator<Integer> iterator = integerList.iterator(); iterator.hasNext();) {
-			store.put((iterator.next()).byteValue());
-		}
-		store.position(0);
-
-		return store;
-	}
-
-	private Range newRangeFromIntegerList(long position, List<Integer> integerList) {
-		ByteBuffer store = newBufferFromIntegerList(integerList);
-
-		return new Range(position, store, true);
-	}
-
 	private void newRangeToCurrentAction() {
 		Range newRange = null;
 		if (myCurrentActionType == TYPE_DELETE) {
@@ -368,7 +421,7 @@ final class BinaryContentActionHistory {
 				return;
 			}
 
-			newRange = newRangeFromIntegerList(newRangePosition, deletedList);
+			newRange = new Range(newRangePosition, deletedList.toByteBuffer(), true);
 			deletedList = null;
 		} else {
 			// myCurrentActionType == TYPE_INSERT || myCurrentActionType ==
@@ -385,6 +438,35 @@ final class BinaryContentActionHistory {
 		addRangeToCurrentAction(newRange);
 	}
 
+	/**
+	 * Gets the finished actions, undone ones included.
+	 *
+	 * @return the live list of actions, not <code>null</code>. Must not be
+	 *         modified.
+	 */
+	List<Entry> getEntries() {
+		return myActions;
+	}
+
+	/**
+	 * Gets the number of finished actions that have not been undone.
+	 *
+	 * @return index of the next action to redo
+	 */
+	int getIndex() {
+		return myActionsIndex;
+	}
+
+	/**
+	 * Tells whether single byte actions are being merged into the current
+	 * action.
+	 *
+	 * @return <code>true</code> if the next single byte action may be merged
+	 */
+	boolean isMergingSingles() {
+		return myCurrentActionRanges != null && myMergingSingles;
+	}
+
 	/**
 	 * Redoes last action on BinaryContent.
 	 *
@@ -397,6 +479,24 @@ final class BinaryContentActionHistory {
 		return myActions.get(myActionsIndex++);
 	}
 
+	/**
+	 * Replaces all actions, for example with the ones of a restored session.
+	 *
+	 * @param entries
+	 *            the finished actions, not <code>null</code>. The list is copied.
+	 * @param index
+	 *            index of the next action to redo
+	 */
+	void restore(List<Entry> entries, int index) {
+		if (index < 0 || index > entries.size()) {
+			throw new IllegalArgumentException(
+					"Parameter 'index' must be between 0 and " + entries.size() + ", specified value is " + index + ".");
+		}
+		endAction();
+		myActions = new ArrayList<Entry>(entries);
+		myActionsIndex = index;
+	}
+
 	/**
 	 * Starts the processing of a new action.
 	 *
@@ -0,0 +1,253 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sourceforge.javahexeditor.BinaryContent.Range;
+import net.sourceforge.javahexeditor.common.Log;
+
+/**
+ * Append-only store for the bytes that are inserted or typed into a
+ * BinaryContent. The bytes are kept in direct buffers outside of the Java heap,
+ * so the heap usage does not grow with the amount of edited data. Small
+ * payloads are packed into segments of {@link #SEGMENT_SIZE}, larger ones get a
+ * segment of their own. Appended bytes are never changed, the Ranges reference
+ * slices of the segments. Memory is freed when the content and its Ranges are
+ * no longer referenced. If no direct memory is left, heap buffers are used.
+ * <p>
+ * Once the memory used exceeds the spill threshold, further bytes are appended
+ * to a temporary journal file and the Ranges reference the file instead, so
+ * the memory stays bounded. The journal is deleted when the arena is disposed.
+ * While a {@link BinaryContentSession} is set, all bytes are appended to the
+ * session file instead.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentArena {
+
+	/**
+	 * Size of a segment shared by small payloads. Current value is 1 MB.
+	 */
+	static final int SEGMENT_SIZE = 1024 * 1024;
+
+	/**
+	 * Default number of bytes kept in memory before the journal is used. Current
+	 * value is 64 MB.
+	 */
+	static final long DEFAULT_SPILL_THRESHOLD = 64L * 1024 * 1024;
+
+	private ByteBuffer segment;
+	private long size;
+	private long spillThreshold = DEFAULT_SPILL_THRESHOLD;
+	private File journalFile;
+	private RandomAccessFile journal;
+	private long journalSize;
+	private BinaryContentSession session;
+
+	/**
+	 * Creates an empty arena. No memory is allocated before the first append.
+	 */
+	BinaryContentArena() {
+	}
+
+	/**
+	 * Reserves space for bytes that the caller writes afterwards.
+	 *
+	 * @param length
+	 *            number of bytes, not negative
+	 * @return a buffer with position 0 and limit <code>length</code>, not
+	 *         <code>null</code>. It must be written before it is used by a Range.
+	 */
+	ByteBuffer allocate(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException(
+					"Parameter 'length' must not be negative, specified value is " + length + ".");
+		}
+
+		ByteBuffer result;
+		if (length >= SEGMENT_SIZE / 4) {
+			// a segment of its own, keeps the current one for small payloads
+			result = allocateSegment(length);
+		} else {
+			if (segment == null || segment.remaining() < length) {
+				segment = allocateSegment(SEGMENT_SIZE);
+			}
+			result = segment.slice();
+			result.limit(length);
+			segment.position(segment.position() + length);
+		}
+		size += length;
+
+		return result;
+	}
+
+	private static ByteBuffer allocateSegment(int length) {
+		try {
+			return ByteBuffer.allocateDirect(length);
+		} catch (OutOfMemoryError ex) {
+			// direct memory limit reached
+			return ByteBuffer.allocate(length);
+		}
+	}
+
+	/**
+	 * Copies bytes into the arena.
+	 *
+	 * @param src
+	 *            the remaining bytes are copied, its position is not changed
+	 * @return a buffer with position 0 that contains exactly the copied bytes,
+	 *         not <code>null</code>
+	 */
+	ByteBuffer append(ByteBuffer src) {
+		ByteBuffer result = allocate(src.remaining());
+		result.put(src.duplicate());
+		result.flip();
+
+		return result;
+	}
+
+	/**
+	 * Copies bytes into the arena, into the journal if the memory used would
+	 * exceed the spill threshold.
+	 *
+	 * @param position
+	 *            position of the new Range
+	 * @param src
+	 *            the remaining bytes are copied, its position is not changed
+	 * @param dirty
+	 *            dirty flag of the new Range
+	 * @return a new Range with the copied bytes, not <code>null</code>
+	 */
+	Range append(long position, ByteBuffer src, boolean dirty) {
+		if (session != null && !session.isDiscarded()) {
+			try {
+				return session.append(position, src, dirty);
+			} catch (IOException ex) {
+				Log.logError("Cannot write to session file '{0}', keeping the data in memory",
+						new Object[] { session.getFile().getAbsolutePath() }, ex);
+			}
+		} else if (size + src.remaining() > spillThreshold) {
+			try {
+				return appendToJournal(position, src, dirty);
+			} catch (IOException ex) {
+				Log.logError("Cannot write to journal file '{0}', keeping the data in memory",
+						new Object[] { journalFile == null ? "" : journalFile.getAbsolutePath() }, ex);
+			}
+		}
+
+		return new Range(position, append(src), dirty);
+	}
+
+	private Range appendToJournal(long position, ByteBuffer src, boolean dirty) throws IOException {
+		if (journal == null) {
+			File file = File.createTempFile("javahexeditor", ".journal");
+			file.deleteOnExit();
+			journal = RandomAccessFileFactory.createRandomAccessFile(file, "rw");
+			journalFile = file;
+		}
+
+		long offset = journalSize;
+		FileChannel channel = journal.getChannel();
+		ByteBuffer buffer = src.duplicate();
+		while (buffer.hasRemaining()) {
+			journalSize += channel.write(buffer, journalSize);
+		}
+
+		Range result = new Range(position, journalSize - offset);
+		result.data = journal;
+		result.file = journalFile;
+		result.dataOffset = offset;
+		result.dirty = dirty;
+
+		return result;
+	}
+
+	/**
+	 * Closes and deletes the journal. Ranges that reference it must not be used
+	 * afterwards.
+	 *
+	 * @return the journal that has been closed or <code>null</code>
+	 */
+	RandomAccessFile dispose() {
+		RandomAccessFile result = journal;
+		segment = null;
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException ex) {
+				// deleted on exit then
+			}
+			journalFile.delete();
+			journal = null;
+			journalFile = null;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Number of bytes written to the journal so far
+	 *
+	 * @return count of bytes
+	 */
+	long getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * Sets the session that journals the edits of the content. All further bytes
+	 * are appended to the session file then.
+	 *
+	 * @param session
+	 *            the session or <code>null</code>
+	 */
+	void setSession(BinaryContentSession session) {
+		this.session = session;
+	}
+
+	/**
+	 * Sets the number of bytes kept in memory before the journal is used.
+	 *
+	 * @param spillThreshold
+	 *            number of bytes, 0 writes all further bytes to the journal
+	 */
+	void setSpillThreshold(long spillThreshold) {
+		if (spillThreshold < 0L) {
+			throw new IllegalArgumentException(
+					"Parameter 'spillThreshold' must not be negative, specified value is " + spillThreshold + ".");
+		}
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Number of bytes appended to memory so far
+	 *
+	 * @return count of bytes
+	 */
+	long size() {
+		return size;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pool of direct buffers for reading content in large parts. Reading a file
+ * channel into a heap buffer copies through a temporary direct buffer that the
+ * JDK caches per thread, so searches read into direct buffers from this pool
+ * instead. Once the pool is warm, a search allocates no buffers. At most
+ * {@link #MAX_POOLED_BYTES} are kept for reuse.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentBufferPool {
+
+	/**
+	 * Maximum number of bytes in the buffers kept for reuse. Current value is
+	 * 64 MB.
+	 */
+	static final long MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	private static final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private static long pooledBytes;
+
+	private BinaryContentBufferPool() {
+	}
+
+	/**
+	 * Gets a buffer from the pool or allocates a new one. A pooled buffer is
+	 * only used if it is at most twice as large as requested.
+	 *
+	 * @param capacity
+	 *            the minimum capacity
+	 * @return the buffer, cleared and in big endian order, not
+	 *         <code>null</code>
+	 */
+	static synchronized ByteBuffer acquire(int capacity) {
+		int best = -1;
+		for (int i = 0; i < buffers.size(); ++i) {
+			int bufferCapacity = buffers.get(i).capacity();
+			if (bufferCapacity >= capacity && bufferCapacity / 2 <= capacity
+					&& (best < 0 || bufferCapacity < buffers.get(best).capacity())) {
+				best = i;
+			}
+		}
+
+		ByteBuffer result;
+		if (best >= 0) {
+			result = buffers.remove(best);
+			pooledBytes -= result.capacity();
+		} else {
+			result = ByteBuffer.allocateDirect(capacity);
+		}
+		result.clear();
+		result.order(ByteOrder.BIG_ENDIAN);
+
+		return result;
+	}
+
+	/**
+	 * Returns a buffer to the pool. It must not be used afterwards.
+	 *
+	 * @param buffer
+	 *            the buffer, not <code>null</code>
+	 */
+	static synchronized void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			throw new IllegalArgumentException("Parameter 'buffer' must not be null.");
+		}
+		if (!buffer.isDirect() || pooledBytes + buffer.capacity() > MAX_POOLED_BYTES) {
+			return;
+		}
+
+		buffers.add(buffer);
+		pooledBytes += buffer.capacity();
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over a snapshot of a BinaryContent. Each read copies the
+ * bytes of the pieces directly into the destination buffer. Like the
+ * snapshot, the channel can be read in any thread and does not see changes
+ * made to the content after it was created.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentChannel implements SeekableByteChannel {
+
+	private final BinaryContentSnapshot snapshot;
+	private long position;
+	private boolean open = true;
+
+	BinaryContentChannel(BinaryContentSnapshot snapshot) {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("Parameter 'snapshot' must not be null.");
+		}
+		this.snapshot = snapshot;
+	}
+
+	private void checkOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+	@Override
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		if (newPosition < 0L) {
+			throw new IllegalArgumentException(
+					"Parameter 'newPosition' must not be negative, specified value is " + newPosition + ".");
+		}
+		checkOpen();
+		position = newPosition;
+
+		return this;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		checkOpen();
+		if (position >= snapshot.length()) {
+			return -1;
+		}
+
+		int result = snapshot.get(dst, position);
+		position += result;
+
+		return result;
+	}
+
+	@Override
+	public long size() throws IOException {
+		checkOpen();
+		return snapshot.length();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.sourceforge.javahexeditor.BinaryContent.Range;
+
+/**
+ * Bytes copied from a BinaryContent by reference. A clip holds clones of the
+ * pieces of the copied bytes, no data is copied, so even a clip of gigabytes is
+ * created instantly. It keeps the files it references open until it is
+ * disposed, so it stays valid after its content has been modified or disposed.
+ * Pasting it with {@link BinaryContent#insert(BinaryContentClip, long)} or
+ * {@link BinaryContent#overwrite(BinaryContentClip, long)} splices the pieces
+ * into the target content.
+ *
+ * @author Peter Dell
+ */
+public final class BinaryContentClip {
+
+	private final List<Range> ranges; // positions relative to the start of the clip
+	private final long length;
+	private boolean disposed;
+
+	BinaryContentClip(List<Range> ranges) throws IOException {
+		long totalLength = 0L;
+		for (int i = 0; i < ranges.size(); ++i) {
+			Range range = ranges.get(i);
+			if (range.data instanceof RandomAccessFile) {
+				try {
+					range.data = retain(range);
+				} catch (IOException ex) {
+					release(ranges.subList(0, i));
+					throw ex;
+				}
+			}
+			totalLength += range.length;
+		}
+		this.ranges = ranges;
+		length = totalLength;
+	}
+
+	/**
+	 * Releases the files of the clip. The clip must not be pasted afterwards.
+	 */
+	public void dispose() {
+		if (!disposed) {
+			disposed = true;
+			release(ranges);
+			ranges.clear();
+		}
+	}
+
+	/*
+	 * Clones the pieces for a paste at the given position. Each file piece holds
+	 * its own reference, which the target must release.
+	 */
+	List<Range> getRanges(long position) throws IOException {
+		if (disposed) {
+			throw new IllegalStateException("Clip is already disposed.");
+		}
+
+		List<Range> result = new ArrayList<Range>(ranges.size());
+		try {
+			for (int i = 0; i < ranges.size(); ++i) {
+				Range range = ranges.get(i).clone();
+				range.position += position;
+				range.dirty = true;
+				if (range.data instanceof RandomAccessFile) {
+					range.data = retain(range);
+				}
+				result.add(range);
+			}
+		} catch (IOException ex) {
+			release(result);
+			throw ex;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Tells whether the clip has been disposed.
+	 *
+	 * @return <code>true</code> if the clip can no longer be pasted
+	 */
+	public boolean isDisposed() {
+		return disposed;
+	}
+
+	/**
+	 * Number of bytes in the clip
+	 *
+	 * @return length of clip in byte units
+	 */
+	public long length() {
+		return length;
+	}
+
+	private static void release(List<Range> ranges) {
+		for (int i = 0; i < ranges.size(); ++i) {
+			Object data = ranges.get(i).data;
+			if (data instanceof RandomAccessFile) {
+				try {
+					RandomAccessFileFactory.releaseRandomAccessFile((RandomAccessFile) data);
+				} catch (IOException ex) {
+					// ok, leave this file alone and release the rest
+				}
+			}
+		}
+	}
+
+	/*
+	 * Journal pieces are not shared, their file is opened as a shared instance.
+	 * The journal is append-only, so the copied bytes stay where they are.
+	 */
+	private static RandomAccessFile retain(Range range) throws IOException {
+		RandomAccessFile file = (RandomAccessFile) range.data;
+		if (RandomAccessFileFactory.retainRandomAccessFile(file)) {
+			return file;
+		}
+
+		return RandomAccessFileFactory.acquireRandomAccessFile(range.file);
+	}
+}
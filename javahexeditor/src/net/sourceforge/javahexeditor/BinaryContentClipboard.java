@@ -28,8 +28,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import org.eclipse.swt.dnd.ByteArrayTransfer;
 import org.eclipse.swt.dnd.Clipboard;
@@ -43,7 +45,11 @@ import net.sourceforge.javahexeditor.common.TextUtility;
 
 /**
  * A clipboard for binary content. Data up to 4 Mbytes is made available as text
- * as well
+ * as well. Within this process the copied bytes are pasted from a
+ * {@link BinaryContentClip}, which references the pieces of the content instead
+ * of copying them. Larger data is offered to other processes as a file, which
+ * is written only when its name is requested from the clipboard, or when the
+ * last clipboard of this process is disposed.
  *
  * @author Jordi Bergenthal
  */
@@ -73,6 +79,7 @@ final class BinaryContentClipboard {
 
 			if (isSupportedType(transferData)) {
 				File myType = (File) object;
+				writeClipFile(myType);
 				try {
 					// write data to a byte array and then ask super to convert
 					// to pMedium
@@ -131,6 +138,52 @@ final class BinaryContentClipboard {
 		}
 	}
 
+	private static class ClipByteArrayTransfer extends ByteArrayTransfer {
+		private static final String MYTYPENAME = "myClipByteArrayTypeName";
+		private static final int MYTYPEID = registerType(MYTYPENAME);
+
+		private static ClipByteArrayTransfer instance = new ClipByteArrayTransfer();
+
+		private ClipByteArrayTransfer() {
+		}
+
+		public static ClipByteArrayTransfer getInstance() {
+			return instance;
+		}
+
+		@Override
+		public void javaToNative(Object object, TransferData transferData) {
+			if (object == null || !(object instanceof byte[])) {
+				return;
+			}
+
+			if (isSupportedType(transferData)) {
+				byte[] buffer = (byte[]) object;
+				super.javaToNative(buffer, transferData);
+			}
+		}
+
+		@Override
+		public Object nativeToJava(TransferData transferData) {
+			Object result = null;
+			if (isSupportedType(transferData)) {
+				result = super.nativeToJava(transferData);
+			}
+
+			return result;
+		}
+
+		@Override
+		protected String[] getTypeNames() {
+			return new String[] { MYTYPENAME };
+		}
+
+		@Override
+		protected int[] getTypeIds() {
+			return new int[] { MYTYPEID };
+		}
+	}
+
 	private static class MemoryByteArrayTransfer extends ByteArrayTransfer {
 		private static final String MYTYPENAME = "myMemoryByteArrayTypeName";
 		private static final int MYTYPEID = registerType(MYTYPENAME);
@@ -184,6 +237,14 @@ final class BinaryContentClipboard {
 	private Clipboard myClipboard;
 	private Map<File, Integer> myFilesReferencesCounter;
 
+	// the last copied clip, shared by the clipboards of this process
+	private static BinaryContentClip clip;
+	private static byte[] clipKey; // identifies the clip on the system clipboard
+	private static File clipFile; // to be written with the clip when requested
+	private static long clipCount;
+	private static final long clipProcessKey = new Random().nextLong();
+	private static int instanceCount;
+
 	static {
 		File tempFolder = new File(System.getProperty("java.io.tmpdir", "."));
 		CLIPBOARD_FOLDER_PATH = tempFolder.getAbsolutePath();
@@ -199,6 +260,7 @@ final class BinaryContentClipboard {
 
 		myClipboard = new Clipboard(display);
 		myFilesReferencesCounter = new HashMap<File, Integer>();
+		++instanceCount;
 	}
 
 	public static boolean deleteFileALaMs(File file) {
@@ -227,7 +289,14 @@ final class BinaryContentClipboard {
 	 */
 	public void dispose() throws IOException {
 		File lastPaste = (File) myClipboard.getContents(FileByteArrayTransfer.getInstance());
+		if (instanceCount == 1 && clipboardFile.equals(lastPaste)) {
+			// other processes can paste the clip only from the file then
+			writeClipFile(clipboardFile);
+		}
 		myClipboard.dispose();
+		if (--instanceCount == 0) {
+			setClip(null, null);
+		}
 
 		if (!clipboardFile.equals(lastPaste)) { // null
 			emptyClipboardFile();
@@ -274,7 +343,12 @@ final class BinaryContentClipboard {
 	 * @return
 	 */
 	public long getContents(BinaryContent content, long start, boolean insert) {
-		long total = tryGettingFiles(content, start, insert);
+		long total = tryGettingClip(content, start, insert);
+		if (total >= 0L) {
+			return total;
+		}
+
+		total = tryGettingFiles(content, start, insert);
 		if (total >= 0L) {
 			return total;
 		}
@@ -305,7 +379,8 @@ final class BinaryContentClipboard {
 	public boolean hasContents() {
 		TransferData[] available = myClipboard.getAvailableTypes();
 		for (int i = 0; i < available.length; ++i) {
-			if (MemoryByteArrayTransfer.getInstance().isSupportedType(available[i])
+			if (ClipByteArrayTransfer.getInstance().isSupportedType(available[i])
+					|| MemoryByteArrayTransfer.getInstance().isSupportedType(available[i])
 					|| TextTransfer.getInstance().isSupportedType(available[i])
 					|| FileByteArrayTransfer.getInstance().isSupportedType(available[i])
 					|| FileTransfer.getInstance().isSupportedType(available[i])) {
@@ -330,28 +405,75 @@ final class BinaryContentClipboard {
 
 		Object[] data = null;
 		Transfer[] transfers = null;
+		BinaryContentClip newClip = null;
+		byte[] newClipKey = ByteBuffer.allocate(16).putLong(clipProcessKey).putLong(++clipCount).array();
 		try {
+			newClip = content.getClip(start, length);
 			if (length <= maxClipboardDataInMemory) {
 				byte[] byteArrayData = new byte[(int) length];
 				content.get(ByteBuffer.wrap(byteArrayData), start);
 				String textData = new String(byteArrayData);
-				transfers = new Transfer[] { MemoryByteArrayTransfer.getInstance(), TextTransfer.getInstance() };
-				data = new Object[] { byteArrayData, textData };
+				transfers = new Transfer[] { ClipByteArrayTransfer.getInstance(),
+						MemoryByteArrayTransfer.getInstance(), TextTransfer.getInstance() };
+				data = new Object[] { newClipKey, byteArrayData, textData };
 			} else {
-				content.get(clipboardFile, start, length);
-				transfers = new Transfer[] { FileByteArrayTransfer.getInstance() };
-				data = new Object[] { clipboardFile };
+				// the clip references the pieces, the file is written on demand
+				transfers = new Transfer[] { ClipByteArrayTransfer.getInstance(),
+						FileByteArrayTransfer.getInstance() };
+				data = new Object[] { newClipKey, clipboardFile };
 			}
 		} catch (IOException e) {
+			if (newClip != null) {
+				newClip.dispose();
+			}
 			myClipboard.setContents(new Object[] { new byte[1] },
 					new Transfer[] { MemoryByteArrayTransfer.getInstance() });
 			myClipboard.clearContents();
 			emptyClipboardFile();
 			return; // copy nothing then
 		}
+		// the file may be requested while the contents are set
+		setClip(newClip, newClipKey);
+		if (length > maxClipboardDataInMemory) {
+			clipFile = clipboardFile;
+		}
 		myClipboard.setContents(data, transfers);
 	}
 
+	private static void setClip(BinaryContentClip newClip, byte[] newClipKey) {
+		if (clip != null) {
+			clip.dispose();
+		}
+		clip = newClip;
+		clipKey = newClipKey;
+		clipFile = null;
+	}
+
+	/*
+	 * The clip is only used while the system clipboard still holds its key.
+	 */
+	private long tryGettingClip(BinaryContent content, long start, boolean insert) {
+		byte[] key = (byte[]) myClipboard.getContents(ClipByteArrayTransfer.getInstance());
+		if (key == null || clip == null || !Arrays.equals(key, clipKey)) {
+			return -1L;
+		}
+
+		long total = clip.length();
+		try {
+			if (insert) {
+				content.insert(clip, start);
+			} else if (total <= content.length() - start) {
+				content.overwrite(clip, start);
+			} else {
+				total = 0L;
+			}
+		} catch (IOException e) {
+			total = 0L;
+		}
+
+		return total;
+	}
+
 	/*
 	 * The file is being reference counted. It will be deleted as soon as no
 	 * javahexeditor process is referencing it anymore.
@@ -481,6 +603,27 @@ final class BinaryContentClipboard {
 		return total;
 	}
 
+	/*
+	 * Writes the last copied clip to the clipboard file, once. Called when the
+	 * file is requested through the clipboard, by another process for example.
+	 */
+	private static void writeClipFile(File file) {
+		if (clip == null || !file.equals(clipFile)) {
+			return;
+		}
+
+		clipFile = null;
+		BinaryContent content = new BinaryContent();
+		try {
+			content.insert(clip, 0L);
+			content.get(file);
+		} catch (IOException e) {
+			// the file is left as it was, paste nothing then
+		} finally {
+			content.dispose();
+		}
+	}
+
 	private boolean updateLock(File lock, int references) throws IOException {
 		RandomAccessFile file = RandomAccessFileFactory.createRandomAccessFile(lock, "rw");
 		if (file.length() >= 4) {
@@ -0,0 +1,686 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+
+/**
+ * Compare helper class to find the ranges in which two contents differ. The
+ * comparison runs on snapshots, so it can run in the background while the
+ * contents are edited.
+ * <p>
+ * By default the bytes at the same positions are compared. The contents are
+ * split into chunks of {@link #CHUNK_SIZE} that are compared in parallel, eight
+ * bytes at a time until they differ. With
+ * {@link #setInsertionAware(boolean)} bytes inserted into or deleted from one
+ * of the contents are found instead of reporting everything after them as
+ * different. After a difference the rolling hashes of the blocks that follow
+ * in both contents are matched to find the next common block. This is
+ * sequential and only looks {@link #RESYNC_WINDOW} bytes ahead.
+ * <p>
+ * Differences are reported while the comparison runs, in ascending order and
+ * with adjacent differences merged.
+ * <p>
+ * The chunks are compared in the common fork/join pool and read into buffers
+ * of the {@link BinaryContentBufferPool}. {@link Manager#doCompare()} compares
+ * the content of the editor with a file. Applications can also run the
+ * comparison, for example in a job, and pass the collected {@link Differences}
+ * to {@link HexTexts#setDifferences(Differences, boolean)} to navigate them.
+ *
+ * @author Peter Dell
+ */
+public final class BinaryContentComparer {
+
+	/**
+	 * Receives the differences found by a comparison.
+	 */
+	public interface DifferenceListener {
+		/**
+		 * Notifies about a difference. Called from the threads that compare, but
+		 * never concurrently and in ascending order of the positions.
+		 *
+		 * @param difference
+		 *            the difference, not <code>null</code>
+		 */
+		void differenceFound(Difference difference);
+	}
+
+	/**
+	 * Range in which the contents differ. It can be empty on one side if bytes
+	 * have been inserted into the other content.
+	 */
+	public static final class Difference {
+		private final long leftStart;
+		private final long leftLength;
+		private final long rightStart;
+		private final long rightLength;
+
+		Difference(long leftStart, long leftLength, long rightStart, long rightLength) {
+			this.leftStart = leftStart;
+			this.leftLength = leftLength;
+			this.rightStart = rightStart;
+			this.rightLength = rightLength;
+		}
+
+		public long getLeftStart() {
+			return leftStart;
+		}
+
+		public long getLeftEnd() {
+			return leftStart + leftLength;
+		}
+
+		public long getLeftLength() {
+			return leftLength;
+		}
+
+		public long getRightStart() {
+			return rightStart;
+		}
+
+		public long getRightEnd() {
+			return rightStart + rightLength;
+		}
+
+		public long getRightLength() {
+			return rightLength;
+		}
+
+		@Override
+		public String toString() {
+			return "[" + leftStart + "+" + leftLength + ", " + rightStart + "+" + rightLength + "]";
+		}
+	}
+
+	/**
+	 * Collects the differences of a comparison, so they can be navigated while
+	 * the comparison is still running. The positions are kept in primitive
+	 * arrays. All methods can be called from any thread.
+	 */
+	public static final class Differences implements DifferenceListener {
+		private long[] positions = new long[64]; // leftStart, leftEnd,
+		// rightStart, rightEnd per difference
+		private int size;
+
+		@Override
+		public synchronized void differenceFound(Difference difference) {
+			if (size * 4 == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			int i = size * 4;
+			positions[i] = difference.getLeftStart();
+			positions[i + 1] = difference.getLeftEnd();
+			positions[i + 2] = difference.getRightStart();
+			positions[i + 3] = difference.getRightEnd();
+			++size;
+		}
+
+		/**
+		 * Gets a difference.
+		 *
+		 * @param index
+		 *            between 0 and {@link #size()} - 1
+		 * @return the difference, not <code>null</code>
+		 */
+		public synchronized Difference get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException(
+						"Parameter 'index' must be between 0 and " + (size - 1) + ", specified value is " + index + ".");
+			}
+			int i = index * 4;
+			return new Difference(positions[i], positions[i + 1] - positions[i], positions[i + 2],
+					positions[i + 3] - positions[i + 2]);
+		}
+
+		/**
+		 * Finds the first difference that starts at or after a position.
+		 *
+		 * @param position
+		 *            the position in the content
+		 * @param left
+		 *            <code>true</code> for a position in the left content
+		 * @return the index of the difference or -1 if there is none
+		 */
+		public synchronized int findNext(long position, boolean left) {
+			int result = indexOf(position, left);
+			return result < size ? result : -1;
+		}
+
+		/**
+		 * Finds the last difference that starts before a position.
+		 *
+		 * @param position
+		 *            the position in the content
+		 * @param left
+		 *            <code>true</code> for a position in the left content
+		 * @return the index of the difference or -1 if there is none
+		 */
+		public synchronized int findPrevious(long position, boolean left) {
+			return indexOf(position, left) - 1;
+		}
+
+		// index of the first difference that starts at or after the position
+		private int indexOf(long position, boolean left) {
+			int offset = left ? 0 : 2;
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (positions[middle * 4 + offset] < position) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		/**
+		 * Number of differences found so far
+		 *
+		 * @return the count
+		 */
+		public synchronized int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Number of bytes compared by one task. Current value is 1 MB.
+	 */
+	public static final int CHUNK_SIZE = 1024 * 1024;
+
+	/**
+	 * Number of bytes that must be equal to end a difference in insertion aware
+	 * mode. Current value is 32.
+	 */
+	public static final int BLOCK_SIZE = 32;
+
+	/**
+	 * Number of bytes searched for the next common block in insertion aware
+	 * mode. Current value is 64 KB.
+	 */
+	public static final int RESYNC_WINDOW = 64 * 1024;
+
+	private static final int HASH_FACTOR = 0x01000193;
+
+	private final BinaryContentSnapshot left;
+	private final BinaryContentSnapshot right;
+	private boolean insertionAware;
+	private volatile boolean stopComparing;
+
+	// state of a parallel comparison
+	private DifferenceListener listener;
+	private SubMonitor progress;
+	private long[][] chunkResults;
+	private int nextChunk;
+	private long pendingStart = -1L;
+	private long pendingEnd;
+	private Exception failure;
+
+	/**
+	 * Creates a comparer for the current state of two contents. Must be called
+	 * in the thread that modifies the contents.
+	 *
+	 * @param left
+	 *            the first content, not <code>null</code>
+	 * @param right
+	 *            the second content, not <code>null</code>
+	 */
+	public BinaryContentComparer(BinaryContent left, BinaryContent right) {
+		this(left.snapshot(), right.snapshot());
+	}
+
+	/**
+	 * Creates a comparer for two snapshots.
+	 *
+	 * @param left
+	 *            the first snapshot, not <code>null</code>
+	 * @param right
+	 *            the second snapshot, not <code>null</code>
+	 */
+	public BinaryContentComparer(BinaryContentSnapshot left, BinaryContentSnapshot right) {
+		if (left == null) {
+			throw new IllegalArgumentException("Parameter 'left' must not be null.");
+		}
+		if (right == null) {
+			throw new IllegalArgumentException("Parameter 'right' must not be null.");
+		}
+		this.left = left;
+		this.right = right;
+	}
+
+	/**
+	 * Compares the contents. Can be called once per comparer.
+	 *
+	 * @param aListener
+	 *            receives the differences while they are found, not
+	 *            <code>null</code>
+	 * @param monitor
+	 *            receives one unit of work per kilobyte compared and is checked
+	 *            for cancellation, may be <code>null</code>
+	 * @throws IOException
+	 *             if a file that backs a content cannot be read
+	 * @throws OperationCanceledException
+	 *             if the monitor has been canceled or {@link #stopComparing()}
+	 *             has been called
+	 */
+	public void compare(DifferenceListener aListener, IProgressMonitor monitor) throws IOException {
+		if (aListener == null) {
+			throw new IllegalArgumentException("Parameter 'aListener' must not be null.");
+		}
+		if (listener != null) {
+			throw new IllegalStateException("The comparer has already been used.");
+		}
+
+		listener = aListener;
+		long length = Math.max(left.length(), right.length());
+		progress = SubMonitor.convert(monitor, (int) Math.min(Integer.MAX_VALUE, length >> 10));
+		if (insertionAware) {
+			compareInsertionAware();
+		} else {
+			compareParallel();
+		}
+	}
+
+	/**
+	 * Sets whether inserted and deleted bytes are found. The default is to
+	 * compare the bytes at the same positions.
+	 *
+	 * @param aware
+	 *            <code>true</code> to match the bytes after a difference again
+	 */
+	public void setInsertionAware(boolean aware) {
+		insertionAware = aware;
+	}
+
+	/**
+	 * Stop comparing. Long running comparisons can be stopped from another
+	 * thread.
+	 */
+	public void stopComparing() {
+		stopComparing = true;
+	}
+
+	private void checkCanceled() {
+		if (stopComparing || progress.isCanceled()) {
+			throw new OperationCanceledException();
+		}
+	}
+
+	private void compareParallel() throws IOException {
+		long common = Math.min(left.length(), right.length());
+		int chunks = (int) ((common + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		chunkResults = new long[chunks][];
+		if (chunks > 0) {
+			ForkJoinPool.commonPool().invoke(new ChunkTask(0, chunks));
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+
+		// the bytes after the end of the shorter content
+		if (left.length() != right.length()) {
+			if (pendingStart < 0L || pendingEnd != common) {
+				flushPending();
+				pendingStart = common;
+			}
+			listener.differenceFound(new Difference(pendingStart, left.length() - pendingStart, pendingStart,
+					right.length() - pendingStart));
+			pendingStart = -1L;
+			progress.worked((int) ((Math.max(left.length(), right.length()) >> 10) - (common >> 10)));
+		} else {
+			flushPending();
+		}
+	}
+
+	private final class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+
+		ChunkTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(from, middle), new ChunkTask(middle, to));
+				return;
+			}
+
+			long[] result;
+			try {
+				checkCanceled();
+				result = compareChunk(from);
+			} catch (IOException ex) {
+				fail(ex);
+				return;
+			} catch (RuntimeException ex) {
+				fail(ex);
+				return;
+			}
+			deliver(from, result);
+		}
+	}
+
+	/*
+	 * Compares the bytes at the same positions in a chunk. Returns the start and
+	 * end of each run of different bytes.
+	 */
+	private long[] compareChunk(int chunk) throws IOException {
+		long position = (long) chunk * CHUNK_SIZE;
+		int length = (int) Math.min(CHUNK_SIZE, Math.min(left.length(), right.length()) - position);
+		ByteBuffer leftBuffer = BinaryContentBufferPool.acquire(length);
+		ByteBuffer rightBuffer = BinaryContentBufferPool.acquire(length);
+		try {
+			read(left, position, leftBuffer, length);
+			read(right, position, rightBuffer, length);
+
+			long[] result = new long[0];
+			int count = 0;
+			int i = 0;
+			while ((i = mismatch(leftBuffer, rightBuffer, i, length)) < length) {
+				int start = i;
+				while (i < length && leftBuffer.get(i) != rightBuffer.get(i)) {
+					++i;
+				}
+				if (count == result.length) {
+					result = Arrays.copyOf(result, Math.max(8, count * 2));
+				}
+				result[count++] = position + start;
+				result[count++] = position + i;
+			}
+
+			return Arrays.copyOf(result, count);
+		} finally {
+			BinaryContentBufferPool.release(leftBuffer);
+			BinaryContentBufferPool.release(rightBuffer);
+		}
+	}
+
+	/*
+	 * Fills the first bytes of a buffer from the pool, which may be larger than
+	 * requested
+	 */
+	private static void read(BinaryContentSnapshot snapshot, long position, ByteBuffer buffer, int length)
+			throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (snapshot.get(buffer, position + buffer.position()) < 1) {
+				throw new IOException("Unexpected end of content at position " + (position + buffer.position()) + ".");
+			}
+		}
+	}
+
+	/*
+	 * Finds the first index at which the buffers differ, comparing eight bytes
+	 * at a time. Returns the end if they are equal.
+	 */
+	private static int mismatch(ByteBuffer leftBuffer, ByteBuffer rightBuffer, int start, int end) {
+		int i = start;
+		while (i + 8 <= end && leftBuffer.getLong(i) == rightBuffer.getLong(i)) {
+			i += 8;
+		}
+		while (i < end && leftBuffer.get(i) == rightBuffer.get(i)) {
+			++i;
+		}
+
+		return i;
+	}
+
+	private synchronized void fail(Exception ex) {
+		if (failure == null) {
+			failure = ex;
+		}
+		stopComparing = true;
+	}
+
+	/*
+	 * Reports the results of the chunks that are complete, in order. Runs of
+	 * different bytes that continue in the next chunk are merged.
+	 */
+	private synchronized void deliver(int chunk, long[] result) {
+		chunkResults[chunk] = result;
+		while (failure == null && nextChunk < chunkResults.length && chunkResults[nextChunk] != null) {
+			long[] runs = chunkResults[nextChunk];
+			chunkResults[nextChunk] = null;
+			for (int i = 0; i < runs.length; i += 2) {
+				if (pendingStart >= 0L && pendingEnd == runs[i]) {
+					pendingEnd = runs[i + 1];
+				} else {
+					flushPending();
+					pendingStart = runs[i];
+					pendingEnd = runs[i + 1];
+				}
+			}
+			long position = (long) nextChunk * CHUNK_SIZE;
+			long end = Math.min(position + CHUNK_SIZE, Math.min(left.length(), right.length()));
+			progress.worked((int) ((end >> 10) - (position >> 10)));
+			++nextChunk;
+		}
+	}
+
+	private void flushPending() {
+		if (pendingStart >= 0L) {
+			listener.differenceFound(
+					new Difference(pendingStart, pendingEnd - pendingStart, pendingStart, pendingEnd - pendingStart));
+			pendingStart = -1L;
+		}
+	}
+
+	private void compareInsertionAware() throws IOException {
+		long leftLength = left.length();
+		long rightLength = right.length();
+		long leftPosition = 0L;
+		long rightPosition = 0L;
+		long[] pending = null; // leftStart, leftEnd, rightStart, rightEnd
+		while (leftPosition < leftLength && rightPosition < rightLength) {
+			checkCanceled();
+			long equal = matchLength(leftPosition, rightPosition);
+			leftPosition += equal;
+			rightPosition += equal;
+			progress.worked((int) ((leftPosition >> 10) - (leftPosition - equal >> 10)));
+			if (leftPosition == leftLength || rightPosition == rightLength) {
+				break;
+			}
+
+			long[] skip = resync(leftPosition, rightPosition);
+			if (pending != null && (pending[1] != leftPosition || pending[3] != rightPosition)) {
+				report(pending);
+				pending = null;
+			}
+			if (pending == null) {
+				pending = new long[] { leftPosition, leftPosition, rightPosition, rightPosition };
+			}
+			leftPosition += skip[0];
+			rightPosition += skip[1];
+			pending[1] = leftPosition;
+			pending[3] = rightPosition;
+			progress.worked((int) ((leftPosition >> 10) - (leftPosition - skip[0] >> 10)));
+		}
+
+		// the bytes after the end of the shorter content
+		if (leftPosition < leftLength || rightPosition < rightLength) {
+			if (pending != null && (pending[1] != leftPosition || pending[3] != rightPosition)) {
+				report(pending);
+				pending = null;
+			}
+			if (pending == null) {
+				pending = new long[] { leftPosition, leftPosition, rightPosition, rightPosition };
+			}
+			pending[1] = leftLength;
+			pending[3] = rightLength;
+			progress.worked((int) ((leftLength >> 10) - (leftPosition >> 10)));
+		}
+		if (pending != null) {
+			report(pending);
+		}
+	}
+
+	private void report(long[] difference) {
+		listener.differenceFound(new Difference(difference[0], difference[1] - difference[0], difference[2],
+				difference[3] - difference[2]));
+	}
+
+	/*
+	 * Number of equal bytes at the given positions
+	 */
+	private long matchLength(long leftPosition, long rightPosition) throws IOException {
+		long result = 0L;
+		long maximum = Math.min(left.length() - leftPosition, right.length() - rightPosition);
+		int capacity = (int) Math.min(CHUNK_SIZE, maximum);
+		ByteBuffer leftBuffer = BinaryContentBufferPool.acquire(capacity);
+		ByteBuffer rightBuffer = BinaryContentBufferPool.acquire(capacity);
+		try {
+			while (result < maximum) {
+				int length = (int) Math.min(CHUNK_SIZE, maximum - result);
+				read(left, leftPosition + result, leftBuffer, length);
+				read(right, rightPosition + result, rightBuffer, length);
+				int equal = mismatch(leftBuffer, rightBuffer, 0, length);
+				result += equal;
+				if (equal < length) {
+					break;
+				}
+				checkCanceled();
+			}
+		} finally {
+			BinaryContentBufferPool.release(leftBuffer);
+			BinaryContentBufferPool.release(rightBuffer);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Finds the nearest block that follows the given positions in both contents.
+	 * Returns the number of bytes to skip in the left and in the right content.
+	 * If there is no common block within the window, the whole window is
+	 * skipped.
+	 */
+	private long[] resync(long leftPosition, long rightPosition) throws IOException {
+		int leftLength = (int) Math.min(RESYNC_WINDOW + BLOCK_SIZE, left.length() - leftPosition);
+		int rightLength = (int) Math.min(RESYNC_WINDOW + BLOCK_SIZE, right.length() - rightPosition);
+		long[] result = { Math.min(RESYNC_WINDOW, leftLength), Math.min(RESYNC_WINDOW, rightLength) };
+		if (leftLength < BLOCK_SIZE || rightLength < BLOCK_SIZE) {
+			return result;
+		}
+		ByteBuffer leftBuffer = BinaryContentBufferPool.acquire(leftLength);
+		ByteBuffer rightBuffer = BinaryContentBufferPool.acquire(rightLength);
+		try {
+			read(left, leftPosition, leftBuffer, leftLength);
+			read(right, rightPosition, rightBuffer, rightLength);
+			findCommonBlock(leftBuffer, leftLength, rightBuffer, rightLength, result);
+		} finally {
+			BinaryContentBufferPool.release(leftBuffer);
+			BinaryContentBufferPool.release(rightBuffer);
+		}
+
+		return result;
+	}
+
+	/*
+	 * Stores the offsets of the common block with the smallest total distance in
+	 * the result, if there is one
+	 */
+	private static void findCommonBlock(ByteBuffer leftBuffer, int leftLength, ByteBuffer rightBuffer,
+			int rightLength, long[] result) {
+		// hash table of the blocks in the right window, chained by offset
+		int blocks = rightLength - BLOCK_SIZE + 1;
+		int mask = Integer.highestOneBit(blocks * 2 - 1) * 2 - 1;
+		int[] heads = new int[mask + 1];
+		Arrays.fill(heads, -1);
+		int[] next = new int[blocks];
+		int power = 1;
+		for (int i = 0; i < BLOCK_SIZE; ++i) {
+			power *= HASH_FACTOR;
+		}
+		int hash = hash(rightBuffer, 0);
+		for (int j = 0; j < blocks; ++j) {
+			if (j > 0) {
+				hash = hash * HASH_FACTOR + rightBuffer.get(j + BLOCK_SIZE - 1) - power * rightBuffer.get(j - 1);
+			}
+			next[j] = mix(hash) & mask;
+		}
+		// offsets are inserted backwards, so the chains are ascending
+		for (int j = blocks - 1; j >= 0; --j) {
+			int bucket = next[j];
+			next[j] = heads[bucket];
+			heads[bucket] = j;
+		}
+
+		// the left block with the smallest total distance
+		long best = Long.MAX_VALUE;
+		hash = hash(leftBuffer, 0);
+		for (int i = 0; i <= leftLength - BLOCK_SIZE && i < best; ++i) {
+			if (i > 0) {
+				hash = hash * HASH_FACTOR + leftBuffer.get(i + BLOCK_SIZE - 1) - power * leftBuffer.get(i - 1);
+			}
+			for (int j = heads[mix(hash) & mask]; j >= 0 && i + j < best; j = next[j]) {
+				if (equals(leftBuffer, i, rightBuffer, j)) {
+					best = i + j;
+					result[0] = i;
+					result[1] = j;
+					break;
+				}
+			}
+		}
+	}
+
+	private static int hash(ByteBuffer buffer, int offset) {
+		int result = 0;
+		for (int i = 0; i < BLOCK_SIZE; ++i) {
+			result = result * HASH_FACTOR + buffer.get(offset + i);
+		}
+
+		return result;
+	}
+
+	private static int mix(int hash) {
+		return hash ^ hash >>> 16;
+	}
+
+	private static boolean equals(ByteBuffer leftBuffer, int leftOffset, ByteBuffer rightBuffer, int rightOffset) {
+		for (int i = 0; i < BLOCK_SIZE; ++i) {
+			if (leftBuffer.get(leftOffset + i) != rightBuffer.get(rightOffset + i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Data of a Range that repeats a byte pattern endlessly, like zero or 0xFF
+ * padding. The Range length defines how much of the repetition is used, its
+ * data offset where within the repetition it starts. So a fill of any length
+ * only takes the memory of the pattern. Reads and writes copy from a tile
+ * that holds the pattern several times. The tile is never changed, so fills
+ * can be read from any thread.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentFill {
+
+	/**
+	 * Minimum size of the tile. Current value is 8 KB.
+	 */
+	static final int TILE_SIZE = 8 * 1024;
+
+	private final byte[] pattern;
+	private final ByteBuffer tile;
+
+	/**
+	 * Creates a fill.
+	 *
+	 * @param pattern
+	 *            the bytes to repeat, not <code>null</code> and not empty. The
+	 *            array is copied.
+	 */
+	BinaryContentFill(byte[] pattern) {
+		if (pattern == null) {
+			throw new IllegalArgumentException("Parameter 'pattern' must not be null.");
+		}
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("Parameter 'pattern' must not be empty.");
+		}
+		this.pattern = pattern.clone();
+
+		int repetitions = Math.max(1, (TILE_SIZE + pattern.length - 1) / pattern.length);
+		byte[] bytes = new byte[repetitions * pattern.length];
+		for (int i = 0; i < bytes.length; i += pattern.length) {
+			System.arraycopy(pattern, 0, bytes, i, pattern.length);
+		}
+		tile = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+	}
+
+	/*
+	 * Gets the part of the tile that starts at the given offset of the
+	 * repetition.
+	 */
+	private ByteBuffer tile(long offset, long length) {
+		ByteBuffer result = tile.duplicate();
+		result.position((int) (offset % pattern.length));
+		if (result.remaining() > length) {
+			result.limit((int) (result.position() + length));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Gets one byte.
+	 *
+	 * @param offset
+	 *            offset within the repetition, not negative
+	 * @return the byte value, between 0 and 255
+	 */
+	int get(long offset) {
+		return pattern[(int) (offset % pattern.length)] & 0x0ff;
+	}
+
+	/**
+	 * Gets the repeated bytes.
+	 *
+	 * @return the pattern, not <code>null</code>. Must not be modified.
+	 */
+	byte[] getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Copies bytes into a buffer.
+	 *
+	 * @param dst
+	 *            the destination, must have at least <code>length</code> bytes
+	 *            remaining
+	 * @param offset
+	 *            offset within the repetition, not negative
+	 * @param length
+	 *            number of bytes
+	 */
+	void get(ByteBuffer dst, long offset, int length) {
+		while (length > 0) {
+			ByteBuffer src = tile(offset, length);
+			int count = src.remaining();
+			dst.put(src);
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Writes bytes to a channel.
+	 *
+	 * @param channel
+	 *            the destination, not <code>null</code>
+	 * @param offset
+	 *            offset within the repetition, not negative
+	 * @param count
+	 *            number of bytes
+	 * @param position
+	 *            the channel position of the first byte
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	void write(FileChannel channel, long offset, long count, long position) throws IOException {
+		for (long done = 0L; done < count;) {
+			ByteBuffer src = tile(offset + done, count - done);
+			while (src.hasRemaining()) {
+				done += channel.write(src, position + done);
+			}
+		}
+	}
+}
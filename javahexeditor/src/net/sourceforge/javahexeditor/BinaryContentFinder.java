@@ -23,15 +23,29 @@ package net.sourceforge.javahexeditor;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+
 /**
  * Find helper class to find binary and string literals in files. Given a
  * literal, finds its position in the file. It is possible to get subsequent
  * finds. The search is either binary or text based. Text based search uses
  * standard Java Unicode (all of big and little endian, odd and even address)
  * plus ASCII when the literal falls within ASCII char limits.
+ * <p>
+ * {@link #findAll(BinaryContentSnapshot, MatchListener, IProgressMonitor)}
+ * finds every match at once. The snapshot is split into chunks of
+ * {@link #FIND_ALL_CHUNK_SIZE} that overlap by the literal length minus one and
+ * are searched in parallel.
  *
  * @author Jordi Bergenthal
  */
@@ -73,12 +87,360 @@ public final class BinaryContentFinder {
 
 	}
 
+	/**
+	 * Receives the matches found by
+	 * {@link BinaryContentFinder#findAll(BinaryContentSnapshot, MatchListener, IProgressMonitor)}.
+	 */
+	public interface MatchListener {
+		/**
+		 * Notifies about a match. Called from the threads that search, but never
+		 * concurrently and in ascending order of the positions.
+		 *
+		 * @param startPosition
+		 *            the position of the match in the content
+		 * @param length
+		 *            the length of the match in bytes
+		 */
+		void matchFound(long startPosition, int length);
+	}
+
+	/**
+	 * Collects the matches of
+	 * {@link BinaryContentFinder#findAll(BinaryContentSnapshot, MatchListener, IProgressMonitor)},
+	 * so they can be counted, navigated and shown while the search is still
+	 * running. The start and end of each match are kept in a primitive array.
+	 * All methods can be called from any thread.
+	 */
+	public static final class Matches implements MatchListener {
+		private long[] positions = new long[64]; // start, end per match
+		private int size;
+		private int maxLength;
+
+		@Override
+		public synchronized void matchFound(long startPosition, int length) {
+			if (size * 2 == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[size * 2] = startPosition;
+			positions[size * 2 + 1] = startPosition + length;
+			maxLength = Math.max(maxLength, length);
+			++size;
+		}
+
+		/**
+		 * Gets a match.
+		 *
+		 * @param index
+		 *            between 0 and {@link #size()} - 1
+		 * @return the match, not <code>null</code>
+		 */
+		public synchronized Match get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException(
+						"Parameter 'index' must be between 0 and " + (size - 1) + ", specified value is " + index + ".");
+			}
+			return new Match(true, positions[index * 2], (int) (positions[index * 2 + 1] - positions[index * 2]),
+					null);
+		}
+
+		/**
+		 * Finds the first match that starts at or after a position.
+		 *
+		 * @param position
+		 *            the position in the content
+		 * @return the index of the match or -1 if there is none
+		 */
+		public synchronized int findNext(long position) {
+			int result = indexOf(position);
+			return result < size ? result : -1;
+		}
+
+		/**
+		 * Finds the last match that starts before a position.
+		 *
+		 * @param position
+		 *            the position in the content
+		 * @return the index of the match or -1 if there is none
+		 */
+		public synchronized int findPrevious(long position) {
+			return indexOf(position) - 1;
+		}
+
+		/**
+		 * Gets the ranges covered by matches in a part of the content. Matches
+		 * that overlap or touch are merged into one range.
+		 *
+		 * @param start
+		 *            first position of the part
+		 * @param end
+		 *            end position of the part, exclusive
+		 * @param ranges
+		 *            receives the start and length of each range within the
+		 *            part, in ascending order, not <code>null</code>
+		 */
+		public synchronized void getRanges(long start, long end, List<Long> ranges) {
+			// matches that start up to the longest length before the part
+			// can reach into it
+			long rangeStart = -1L;
+			long rangeEnd = -1L;
+			for (int i = indexOf(start - maxLength + 1L); i < size && positions[i * 2] < end; ++i) {
+				long matchStart = Math.max(start, positions[i * 2]);
+				long matchEnd = Math.min(end, positions[i * 2 + 1]);
+				if (matchStart >= matchEnd) {
+					continue;
+				}
+				if (rangeEnd >= matchStart) {
+					rangeEnd = Math.max(rangeEnd, matchEnd);
+				} else {
+					addRange(rangeStart, rangeEnd, ranges);
+					rangeStart = matchStart;
+					rangeEnd = matchEnd;
+				}
+			}
+			addRange(rangeStart, rangeEnd, ranges);
+		}
+
+		private static void addRange(long start, long end, List<Long> ranges) {
+			if (start >= 0L) {
+				ranges.add(Long.valueOf(start));
+				ranges.add(Long.valueOf(end - start));
+			}
+		}
+
+		// index of the first match that starts at or after the position
+		private int indexOf(long position) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (positions[middle * 2] < position) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+
+			return low;
+		}
+
+		/**
+		 * Number of matches found so far
+		 *
+		 * @return the count
+		 */
+		public synchronized int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * State of one run of find all. Results of chunks that complete out of
+	 * order are kept until the chunks before them are reported.
+	 */
+	private final class FindAll {
+		private final BinaryContentSnapshot snapshot;
+		private final MatchListener listener;
+		private final SubMonitor progress;
+		private final BinaryContentMatcher matcher;
+		private final Pattern pattern;
+		private final int literalByteLength;
+		private long[][] chunkResults;
+		private int nextChunk;
+		private Exception failure;
+
+		FindAll(BinaryContentSnapshot snapshot, MatchListener listener, IProgressMonitor monitor) {
+			this.snapshot = snapshot;
+			this.listener = listener;
+			progress = SubMonitor.convert(monitor, (int) Math.min(Integer.MAX_VALUE, snapshot.length() >> 10));
+			if (myByteFindSequence != null) {
+				matcher = BinaryContentMatcher.create(myByteFindSequence, myCaseSensitive);
+			} else {
+				matcher = null;
+			}
+			pattern = myPattern;
+			literalByteLength = myLiteralByteLength;
+		}
+
+		void run() throws IOException {
+			int chunks = (int) ((snapshot.length() + FIND_ALL_CHUNK_SIZE - 1) / FIND_ALL_CHUNK_SIZE);
+			// the chunks are searched in the common pool like those of the
+			// comparer, a few chunks per thread at a time, so the results are
+			// reported while searching and do not pile up
+			ForkJoinPool pool = ForkJoinPool.commonPool();
+			chunkResults = new long[pool.getParallelism() * 4][];
+			for (int from = 0; from < chunks && failure == null; from += chunkResults.length) {
+				pool.invoke(new ChunkTask(this, from, Math.min(chunks, from + chunkResults.length)));
+			}
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+		}
+
+		/*
+		 * Finds the matches that start in a chunk. Returns the start and length
+		 * of each match.
+		 */
+		long[] findInChunk(int chunk) throws IOException {
+			if (stopSearching || progress.isCanceled()) {
+				throw new OperationCanceledException();
+			}
+			long position = (long) chunk * FIND_ALL_CHUNK_SIZE;
+			int length = (int) Math.min(FIND_ALL_CHUNK_SIZE + literalByteLength - 1L, snapshot.length() - position);
+			int chunkLength = Math.min(FIND_ALL_CHUNK_SIZE, length);
+			ByteBuffer buffer = read(snapshot, position, length);
+			try {
+				return findInBuffer(buffer, position, length, chunkLength);
+			} finally {
+				BinaryContentBufferPool.release(buffer);
+			}
+		}
+
+		private long[] findInBuffer(ByteBuffer buffer, long position, int length, int chunkLength) {
+			int[] byteStarts = new int[0];
+			int byteCount = 0;
+			if (matcher != null) {
+				int end = (int) Math.min(length, chunkLength + matcher.sequence.length - 1L);
+				int i = 0;
+				while ((i = matcher.indexOf(buffer, i, end)) >= 0) {
+					byteStarts = add(byteStarts, byteCount++, i);
+					++i;
+				}
+			}
+			int[] unicodeStarts = new int[0];
+			int unicodeCount = 0;
+			if (pattern != null) {
+				for (int encoding = 0; encoding < 4; ++encoding) {
+					ByteBuffer view = buffer.duplicate();
+					view.order(encoding == 0 || encoding == 3 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+					int odd = encoding >= 2 ? 1 : 0;
+					view.position(Math.min(odd, length));
+					CharBuffer chars = view.asCharBuffer();
+					Matcher unicodeMatcher = pattern.matcher(chars);
+					int i = 0;
+					while (i <= chars.length() && unicodeMatcher.find(i)) {
+						int index = unicodeMatcher.start() * 2 + odd;
+						if (index >= chunkLength) {
+							break;
+						}
+						unicodeStarts = add(unicodeStarts, unicodeCount++, index);
+						i = unicodeMatcher.start() + 1;
+					}
+				}
+				Arrays.sort(unicodeStarts, 0, unicodeCount);
+			}
+
+			// merged like in getNextMatch, which prefers the byte sequence and
+			// finds one match per position
+			long[] result = new long[(byteCount + unicodeCount) * 2];
+			int count = 0;
+			int b = 0;
+			int u = 0;
+			while (b < byteCount || u < unicodeCount) {
+				int index;
+				if (u == unicodeCount || b < byteCount && byteStarts[b] <= unicodeStarts[u]) {
+					index = byteStarts[b++];
+					result[count + 1] = matcher.sequence.length;
+				} else {
+					index = unicodeStarts[u];
+					result[count + 1] = literalByteLength;
+				}
+				result[count] = position + index;
+				count += 2;
+				while (u < unicodeCount && unicodeStarts[u] == index) {
+					++u;
+				}
+			}
+
+			return Arrays.copyOf(result, count);
+		}
+
+		synchronized void fail(Exception ex) {
+			if (failure == null) {
+				failure = ex;
+			}
+			stopSearching = true;
+		}
+
+		/*
+		 * Reports the results of the chunks that are complete, in order.
+		 */
+		synchronized void deliver(int chunk, long[] result) {
+			chunkResults[chunk % chunkResults.length] = result;
+			while (failure == null && chunkResults[nextChunk % chunkResults.length] != null) {
+				long[] matches = chunkResults[nextChunk % chunkResults.length];
+				chunkResults[nextChunk % chunkResults.length] = null;
+				for (int i = 0; i < matches.length; i += 2) {
+					listener.matchFound(matches[i], (int) matches[i + 1]);
+				}
+				long position = (long) nextChunk * FIND_ALL_CHUNK_SIZE;
+				long end = Math.min(position + FIND_ALL_CHUNK_SIZE, snapshot.length());
+				progress.worked((int) ((end >> 10) - (position >> 10)));
+				++nextChunk;
+			}
+		}
+	}
+
+	private static final class ChunkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final FindAll findAll;
+		private final int from;
+		private final int to;
+
+		ChunkTask(FindAll findAll, int from, int to) {
+			this.findAll = findAll;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChunkTask(findAll, from, middle), new ChunkTask(findAll, middle, to));
+				return;
+			}
+
+			long[] result;
+			try {
+				result = findAll.findInChunk(from);
+			} catch (IOException ex) {
+				findAll.fail(ex);
+				return;
+			} catch (RuntimeException ex) {
+				findAll.fail(ex);
+				return;
+			}
+			findAll.deliver(from, result);
+		}
+	}
+
+	/**
+	 * Number of bytes searched in the first part of a find. Following parts
+	 * grow up to {@link #MAX_PART_SIZE} or {@link #MAX_FILE_PART_SIZE}.
+	 */
 	public static final int MAP_SIZE = 64 * 1024;
+	/**
+	 * Maximum number of bytes searched at once in content that is in memory.
+	 * Current value is 1 MB.
+	 */
+	public static final int MAX_PART_SIZE = 1024 * 1024;
+	/**
+	 * Maximum number of bytes searched at once in content that is backed by
+	 * files, so long finds issue few reads. Current value is 8 MB.
+	 */
+	public static final int MAX_FILE_PART_SIZE = 8 * 1024 * 1024;
+	/**
+	 * Number of bytes searched by one task of find all. Current value is 1 MB.
+	 */
+	public static final int FIND_ALL_CHUNK_SIZE = 1024 * 1024;
 	// a search string of 2K should be enough
 	public static final int MAX_SEQUENCE_SIZE = 2 * 1024;
 
 	private long bufferPosition = -1L;
-	private ByteBuffer byteBuffer;
+	private ByteBuffer byteBuffer; // from the pool during getNextMatch(), grows with the parts
 	private int currentPartFound = -1; // relative positions
 	private boolean currentPartFoundIsUnicode;
 	private long currentPosition = 0L; // absolute value, start of forward
@@ -90,8 +452,11 @@ public final class BinaryContentFinder {
 	private boolean myDirectionForward = true;
 	private CharSequence myLiteral;
 	private int myLiteralByteLength = -1;
+	private BinaryContentMatcher myMatcher; // created for the byte sequence
+	private int myMaxPartSize; // 0 until the content has been checked
+	private int myPartSize;
 	private Pattern myPattern;
-	private boolean stopSearching;
+	private volatile boolean stopSearching;
 
 	/**
 	 * Create a finder object for a sequence of characters; uses Unicode and ASCII
@@ -125,6 +490,51 @@ public final class BinaryContentFinder {
 		currentPosition = 0L;
 	}
 
+	private static int[] add(int[] values, int index, int value) {
+		int[] result = values;
+		if (index == result.length) {
+			result = Arrays.copyOf(result, Math.max(8, index * 2));
+		}
+		result[index] = value;
+		return result;
+	}
+
+	/**
+	 * Finds all matches in a snapshot, using the literal and case sensitiveness
+	 * of this finder. Overlapping matches are found like by repeated calls of
+	 * {@link #getNextMatch()}. Nothing is found for an empty literal.
+	 *
+	 * @param snapshot
+	 *            the snapshot to search, usually of the content of this finder,
+	 *            not <code>null</code>
+	 * @param listener
+	 *            receives the matches while they are found, not
+	 *            <code>null</code>
+	 * @param monitor
+	 *            receives one unit of work per kilobyte searched and is checked
+	 *            for cancellation, may be <code>null</code>
+	 * @throws IOException
+	 *             if a file that backs the content cannot be read
+	 * @throws OperationCanceledException
+	 *             if the monitor has been canceled or {@link #stopSearching()}
+	 *             has been called
+	 */
+	public void findAll(BinaryContentSnapshot snapshot, MatchListener listener, IProgressMonitor monitor)
+			throws IOException {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("Parameter 'snapshot' must not be null.");
+		}
+		if (listener == null) {
+			throw new IllegalArgumentException("Parameter 'listener' must not be null.");
+		}
+
+		stopSearching = false;
+		if (myLiteralByteLength < 1) {
+			return;
+		}
+		new FindAll(snapshot, listener, monitor).run();
+	}
+
 	private void findAllMatches() {
 		currentPartFound = findHexAsciiMatchInPart();
 		int currentPartFoundUnicode = findUnicodeMatchInPart();
@@ -143,32 +553,17 @@ public final class BinaryContentFinder {
 			return -1;
 		}
 
-		int start = 0;
-		int inclusiveEnd = byteBuffer.limit() - myByteFindSequence.length;
-		if (!myDirectionForward) {
-			start = inclusiveEnd;
-			inclusiveEnd = 0;
-		}
-
-		for (int i = start; myDirectionForward && i <= inclusiveEnd
-				|| !myDirectionForward && i >= inclusiveEnd; i += myDirectionForward ? 1 : -1) {
-			boolean matchesSoFar = true;
-			for (int j = 0; j < myByteFindSequence.length && matchesSoFar; ++j) {
-				byte existing = byteBuffer.get(i + j);
-				byte matcher = myByteFindSequence[j];
-				if (existing != matcher) {
-					if (myCaseSensitive || existing < 'A' || existing > 'z' || matcher < 'A' || matcher > 'z'
-							|| existing - matcher != 32 && matcher - existing != 32) {
-						matchesSoFar = false;
-					}
-				}
-			}
-			if (matchesSoFar) {
-				return i;
-			}
+		if (myByteFindSequence.length == 0) {
+			// an empty sequence matches everywhere
+			return myDirectionForward ? 0 : byteBuffer.limit();
 		}
-
-		return -1;
+		if (myMatcher == null) {
+			myMatcher = BinaryContentMatcher.create(myByteFindSequence, myCaseSensitive);
+		}
+		if (myDirectionForward) {
+			return myMatcher.indexOf(byteBuffer, 0, byteBuffer.limit());
+		}
+		return myMatcher.lastIndexOf(byteBuffer, 0, byteBuffer.limit());
 	}
 
 	private int findUnicodeMatchInPart() {
@@ -244,11 +639,17 @@ public final class BinaryContentFinder {
 			return new Match(true, resultStartPosition, resultLength, null);
 		} catch (IOException ex) {
 			return new Match(false, 0, 0, ex);
+		} finally {
+			if (byteBuffer != null) {
+				BinaryContentBufferPool.release(byteBuffer);
+				byteBuffer = null;
+			}
 		}
 	}
 
 	private void initSearchHex(byte[] sequence) {
 		myByteFindSequence = sequence;
+		myMatcher = null;
 
 		if (sequence.length > MAX_SEQUENCE_SIZE) {
 			myByteFindSequence = new byte[MAX_SEQUENCE_SIZE];
@@ -306,18 +707,21 @@ public final class BinaryContentFinder {
 		if (isAsciiCompatible) {
 			myByteFindSequence = tmpBytes;
 		}
+		myMatcher = null;
 	}
 
 	private ByteBuffer nextPart() throws IOException {
+		// the parts grow while nothing is found
+		int partSize = Math.min(myPartSize * 2, getMaxPartSize());
 		long newPos = bufferPosition + byteBuffer.limit() - myLiteralByteLength + 1L;
 		if (!myDirectionForward) {
-			newPos = bufferPosition - MAP_SIZE + myLiteralByteLength - 1L;
+			newPos = bufferPosition - partSize + myLiteralByteLength - 1L;
 		}
 		if (newPos < 0L) {
 			newPos = 0L;
 		}
 
-		int size = (int) Math.min(MAP_SIZE, getContentLength() - newPos);
+		int size = (int) Math.min(partSize, getContentLength() - newPos);
 		if (!myDirectionForward) {
 			size = (int) (bufferPosition + myLiteralByteLength - 1L - newPos);
 		}
@@ -326,12 +730,43 @@ public final class BinaryContentFinder {
 			return null;
 		}
 		bufferPosition = newPos;
+		myPartSize = partSize;
 		populatePart(size);
 
 		return byteBuffer;
 	}
 
+	/*
+	 * Reads a part of the snapshot into a buffer from the pool
+	 */
+	private static ByteBuffer read(BinaryContentSnapshot snapshot, long position, int length) throws IOException {
+		ByteBuffer result = BinaryContentBufferPool.acquire(length);
+		result.limit(length);
+		while (result.hasRemaining()) {
+			if (snapshot.get(result, position + result.position()) < 1) {
+				long end = position + result.position();
+				BinaryContentBufferPool.release(result);
+				throw new IOException("Unexpected end of content at position " + end + ".");
+			}
+		}
+		result.flip();
+
+		return result;
+	}
+
+	private int getMaxPartSize() {
+		if (myMaxPartSize == 0) {
+			myMaxPartSize = MAX_PART_SIZE;
+			if (myContent != null && !myContent.getOpenFiles().isEmpty()) {
+				myMaxPartSize = MAX_FILE_PART_SIZE;
+			}
+		}
+
+		return myMaxPartSize;
+	}
+
 	private void populatePart() throws IOException {
+		myPartSize = MAP_SIZE;
 		int size = MAP_SIZE;
 		if (!myDirectionForward) {
 			size = (int) Math.min(MAP_SIZE, currentPosition);
@@ -344,12 +779,18 @@ public final class BinaryContentFinder {
 			return;
 		}
 
-		byteBuffer = null;
-		// multiple FileChannel.read(byteBuffer) leak memory, so don't reuse
-		// buffer
-		byteBuffer = ByteBuffer.allocate(MAP_SIZE);
+		// a direct buffer, as FileChannel.read() into heap buffers keeps a
+		// temporary direct buffer per thread. Most finds end in the first part,
+		// so the buffer is only replaced by a larger one when the parts grow.
+		if (byteBuffer != null && byteBuffer.capacity() < size) {
+			BinaryContentBufferPool.release(byteBuffer);
+			byteBuffer = null;
+		}
+		if (byteBuffer == null) {
+			byteBuffer = BinaryContentBufferPool.acquire(Math.max(size, myPartSize));
+		}
+		byteBuffer.clear();
 		byteBuffer.limit(size);
-		byteBuffer.position(0);
 
 		myContent.get(byteBuffer, bufferPosition);
 
@@ -370,6 +811,7 @@ public final class BinaryContentFinder {
 		}
 
 		myCaseSensitive = beSensitive;
+		myMatcher = null;
 		if (myLiteral != null) {
 			initSearchUnicodeAscii();
 		}
@@ -0,0 +1,185 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Growable sequence of bytes with a gap at the last edit point. Used for the
+ * bytes typed in by the user, where consecutive inserts and overwrites happen
+ * next to each other. Edits at the gap do not move any data and do not
+ * allocate, the array only grows when the gap is exhausted.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentGapBuffer {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private byte[] data;
+	private int gapStart;
+	private int gapEnd;
+
+	/**
+	 * Creates an empty buffer.
+	 */
+	BinaryContentGapBuffer() {
+		data = new byte[INITIAL_CAPACITY];
+		gapStart = 0;
+		gapEnd = data.length;
+	}
+
+	private void ensureGap() {
+		if (gapStart < gapEnd) {
+			return;
+		}
+		byte[] newData = new byte[data.length * 2];
+		int tailLength = data.length - gapEnd;
+		System.arraycopy(data, 0, newData, 0, gapStart);
+		System.arraycopy(data, gapEnd, newData, newData.length - tailLength, tailLength);
+		gapEnd = newData.length - tailLength;
+		data = newData;
+	}
+
+	/**
+	 * Copies bytes into a buffer.
+	 *
+	 * @param index
+	 *            index of the first byte to copy
+	 * @param dst
+	 *            receives at most <code>dst.remaining()</code> bytes
+	 * @return number of bytes copied
+	 */
+	int get(int index, ByteBuffer dst) {
+		int size = size();
+		if (index < 0 || index >= size) {
+			return 0;
+		}
+
+		int count = Math.min(dst.remaining(), size - index);
+		int end = index + count;
+		if (index < gapStart) {
+			int length = Math.min(end, gapStart) - index;
+			dst.put(data, index, length);
+			index += length;
+		}
+		if (index < end) {
+			dst.put(data, index + gapEnd - gapStart, end - index);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Gets a single byte.
+	 *
+	 * @param index
+	 *            0 &lt;= index &lt; {@link #size()}
+	 * @return the byte
+	 */
+	byte get(int index) {
+		if (index < gapStart) {
+			return data[index];
+		}
+		return data[index + gapEnd - gapStart];
+	}
+
+	/**
+	 * Inserts a byte, shifting the following ones.
+	 *
+	 * @param index
+	 *            0 &lt;= index &lt;= {@link #size()}
+	 * @param value
+	 *            the byte
+	 */
+	void insert(int index, byte value) {
+		ensureGap();
+		moveGap(index);
+		data[gapStart++] = value;
+	}
+
+	private void moveGap(int index) {
+		if (index < gapStart) {
+			int length = gapStart - index;
+			System.arraycopy(data, index, data, gapEnd - length, length);
+			gapStart = index;
+			gapEnd -= length;
+		} else if (index > gapStart) {
+			int length = index - gapStart;
+			System.arraycopy(data, gapEnd, data, gapStart, length);
+			gapStart = index;
+			gapEnd += length;
+		}
+	}
+
+	/**
+	 * Removes bytes, shifting the following ones.
+	 *
+	 * @param index
+	 *            index of the first byte to remove
+	 * @param length
+	 *            number of bytes to remove
+	 */
+	void remove(int index, int length) {
+		moveGap(index);
+		gapEnd += length;
+	}
+
+	/**
+	 * Overwrites a single byte.
+	 *
+	 * @param index
+	 *            0 &lt;= index &lt; {@link #size()}
+	 * @param value
+	 *            the byte
+	 */
+	void set(int index, byte value) {
+		if (index < gapStart) {
+			data[index] = value;
+		} else {
+			data[index + gapEnd - gapStart] = value;
+		}
+	}
+
+	/**
+	 * Number of bytes in the buffer
+	 *
+	 * @return count of bytes
+	 */
+	int size() {
+		return data.length - (gapEnd - gapStart);
+	}
+
+	/**
+	 * Hands over the bytes as a ByteBuffer without copying them. The gap is
+	 * closed in place. The gap buffer must not be used afterwards.
+	 *
+	 * @return buffer with position 0 and limit {@link #size()} that wraps the
+	 *         internal array
+	 */
+	ByteBuffer toByteBuffer() {
+		moveGap(size());
+		ByteBuffer result = ByteBuffer.wrap(data, 0, gapStart);
+		data = null;
+
+		return result;
+	}
+}
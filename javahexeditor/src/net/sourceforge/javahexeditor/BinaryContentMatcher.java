@@ -0,0 +1,281 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds a byte sequence in a buffer. The engine is chosen by
+ * {@link #create(byte[], boolean)} for the sequence. When case is ignored,
+ * ASCII letters match their other case, like in the finder.
+ *
+ * @author Peter Dell
+ */
+abstract class BinaryContentMatcher {
+
+	/**
+	 * Boyer-Moore-Horspool matcher. The shift tables hold the distance of the
+	 * last occurrence of each byte from the end of the sequence for forward
+	 * finds, and of its first occurrence from the start for backward finds.
+	 * Ignoring case, both cases of a letter get the same shift.
+	 */
+	private static final class HorspoolMatcher extends BinaryContentMatcher {
+		private final int[] forwardShifts = new int[256];
+		private final int[] backwardShifts = new int[256];
+
+		HorspoolMatcher(byte[] sequence, boolean caseSensitive) {
+			super(sequence, caseSensitive);
+			int length = sequence.length;
+			for (int c = 0; c < 256; ++c) {
+				forwardShifts[c] = length;
+				backwardShifts[c] = length;
+			}
+			for (int i = 0; i < length - 1; ++i) {
+				setShift(forwardShifts, sequence[i], length - 1 - i);
+			}
+			for (int i = length - 1; i > 0; --i) {
+				setShift(backwardShifts, sequence[i], i);
+			}
+		}
+
+		private void setShift(int[] shifts, byte value, int shift) {
+			shifts[value & 0xff] = shift;
+			if (!caseSensitive) {
+				shifts[otherCase(value) & 0xff] = shift;
+			}
+		}
+
+		@Override
+		int indexOf(ByteBuffer buffer, int start, int end) {
+			int last = sequence.length - 1;
+			for (int i = start; i <= end - sequence.length;) {
+				byte tail = buffer.get(i + last);
+				if (equals(tail, sequence[last]) && matches(buffer, i, last)) {
+					return i;
+				}
+				i += forwardShifts[tail & 0xff];
+			}
+
+			return -1;
+		}
+
+		@Override
+		int lastIndexOf(ByteBuffer buffer, int start, int end) {
+			for (int i = end - sequence.length; i >= start;) {
+				byte head = buffer.get(i);
+				if (equals(head, sequence[0]) && matches(buffer, i, sequence.length)) {
+					return i;
+				}
+				i -= backwardShifts[head & 0xff];
+			}
+
+			return -1;
+		}
+	}
+
+	/**
+	 * Matcher for short sequences. It reads the buffer eight bytes at a time
+	 * and flags the bytes equal to the first byte of the sequence, so only
+	 * these candidates are verified. A flag is set exactly where the byte
+	 * after XOR with the broadcast first byte is zero.
+	 */
+	private static final class WordMatcher extends BinaryContentMatcher {
+		private static final long ONES = 0x0101010101010101L;
+		private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+		private final long first;
+		private final long firstOtherCase;
+
+		WordMatcher(byte[] sequence, boolean caseSensitive) {
+			super(sequence, caseSensitive);
+			first = (sequence[0] & 0xff) * ONES;
+			firstOtherCase = (otherCase(sequence[0]) & 0xff) * ONES;
+		}
+
+		/*
+		 * Sets the high bit of each byte of the word that equals the first
+		 * byte of the sequence
+		 */
+		private long findFirst(long word) {
+			long result = findZero(word ^ first);
+			if (!caseSensitive && firstOtherCase != first) {
+				result |= findZero(word ^ firstOtherCase);
+			}
+			return result;
+		}
+
+		private static long findZero(long word) {
+			return ~(((word & LOW_BITS) + LOW_BITS) | word | LOW_BITS);
+		}
+
+		/*
+		 * Offset of the byte in the word that a flag bit belongs to
+		 */
+		private static int getOffset(long bit, boolean bigEndian) {
+			int offset = Long.numberOfTrailingZeros(bit) >>> 3;
+			return bigEndian ? 7 - offset : offset;
+		}
+
+		@Override
+		int indexOf(ByteBuffer buffer, int start, int end) {
+			boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+			int last = end - sequence.length;
+			int i = start;
+			for (; i <= last - 7; i += 8) {
+				long flags = findFirst(buffer.getLong(i));
+				while (flags != 0) {
+					long bit = bigEndian ? Long.highestOneBit(flags) : Long.lowestOneBit(flags);
+					int index = i + getOffset(bit, bigEndian);
+					if (matches(buffer, index, sequence.length)) {
+						return index;
+					}
+					flags ^= bit;
+				}
+			}
+			for (; i <= last; ++i) {
+				if (matches(buffer, i, sequence.length)) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+
+		@Override
+		int lastIndexOf(ByteBuffer buffer, int start, int end) {
+			boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+			int i = end - sequence.length;
+			for (; i - 7 >= start; i -= 8) {
+				long flags = findFirst(buffer.getLong(i - 7));
+				while (flags != 0) {
+					long bit = bigEndian ? Long.lowestOneBit(flags) : Long.highestOneBit(flags);
+					int index = i - 7 + getOffset(bit, bigEndian);
+					if (matches(buffer, index, sequence.length)) {
+						return index;
+					}
+					flags ^= bit;
+				}
+			}
+			for (; i >= start; --i) {
+				if (matches(buffer, i, sequence.length)) {
+					return i;
+				}
+			}
+
+			return -1;
+		}
+	}
+
+	/**
+	 * Sequences up to this length are found with the {@link WordMatcher}, for
+	 * longer ones the shifts of the {@link HorspoolMatcher} pay off.
+	 */
+	private static final int MAX_WORD_MATCHER_LENGTH = 4;
+
+	final byte[] sequence;
+	final boolean caseSensitive;
+
+	BinaryContentMatcher(byte[] sequence, boolean caseSensitive) {
+		this.sequence = sequence;
+		this.caseSensitive = caseSensitive;
+	}
+
+	/**
+	 * Creates the matcher for a sequence.
+	 *
+	 * @param sequence
+	 *            the bytes to find, not <code>null</code> and not empty. The
+	 *            array must not be modified afterwards.
+	 * @param caseSensitive
+	 *            <code>false</code> to match ASCII letters of either case
+	 * @return the matcher, not <code>null</code>
+	 */
+	static BinaryContentMatcher create(byte[] sequence, boolean caseSensitive) {
+		if (sequence == null) {
+			throw new IllegalArgumentException("Parameter 'sequence' must not be null.");
+		}
+		if (sequence.length == 0) {
+			throw new IllegalArgumentException("Parameter 'sequence' must not be empty.");
+		}
+
+		if (sequence.length <= MAX_WORD_MATCHER_LENGTH) {
+			return new WordMatcher(sequence, caseSensitive);
+		}
+		return new HorspoolMatcher(sequence, caseSensitive);
+	}
+
+	/**
+	 * Finds the first occurrence of the sequence that lies within the given
+	 * part of a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer, its position and limit are ignored
+	 * @param start
+	 *            first index of the part
+	 * @param end
+	 *            end index of the part, exclusive
+	 * @return the index of the occurrence or -1 if there is none
+	 */
+	abstract int indexOf(ByteBuffer buffer, int start, int end);
+
+	/**
+	 * Finds the last occurrence of the sequence that lies within the given part
+	 * of a buffer.
+	 *
+	 * @param buffer
+	 *            the buffer, its position and limit are ignored
+	 * @param start
+	 *            first index of the part
+	 * @param end
+	 *            end index of the part, exclusive
+	 * @return the index of the occurrence or -1 if there is none
+	 */
+	abstract int lastIndexOf(ByteBuffer buffer, int start, int end);
+
+	final boolean equals(byte existing, byte matcher) {
+		return existing == matcher || !caseSensitive && existing == otherCase(matcher);
+	}
+
+	/*
+	 * Checks the first bytes of the sequence at the index
+	 */
+	final boolean matches(ByteBuffer buffer, int index, int length) {
+		for (int j = 0; j < length; ++j) {
+			if (!equals(buffer.get(index + j), sequence[j])) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+	 * The byte itself if it is not an ASCII letter
+	 */
+	static byte otherCase(byte value) {
+		if (value >= 'A' && value <= 'Z' || value >= 'a' && value <= 'z') {
+			return (byte) (value ^ 0x20);
+		}
+
+		return value;
+	}
+}
@@ -0,0 +1,486 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of fixed size blocks of the files that back a BinaryContent. Blocks are
+ * keyed by file and aligned offset and evicted in least recently used order once
+ * the budget is reached. When consecutive blocks of a file are requested in
+ * either direction, the following blocks are read ahead on a background thread
+ * that all caches share, so slow storage (network drives for instance) does not
+ * stall scrolling. Meant as an alternative to the memory mapped windows used by
+ * default, see {@link BinaryContent#setPageCache(BinaryContentPageCache)}. One
+ * cache can be shared by several contents. The {@link Manager} installs a
+ * shared cache in the contents it opens when memory mapping is off.
+ *
+ * @author Peter Dell
+ */
+public final class BinaryContentPageCache {
+
+	/**
+	 * Default block size. Current value is 64 KB.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	/**
+	 * Default budget. Current value is 16 MB.
+	 */
+	public static final long DEFAULT_BUDGET = 16L * 1024 * 1024;
+
+	/**
+	 * Default number of blocks read ahead.
+	 */
+	public static final int DEFAULT_READ_AHEAD = 4;
+
+	// a single daemon thread reads ahead for all caches and ends when idle
+	private static final ThreadPoolExecutor prefetchExecutor = new ThreadPoolExecutor(1, 1, 10L, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread result = new Thread(runnable, "javahexeditor read ahead");
+					result.setDaemon(true);
+					return result;
+				}
+			});
+
+	static {
+		prefetchExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private static final class Key {
+		final RandomAccessFile file;
+		final long blockStart;
+
+		Key(RandomAccessFile file, long blockStart) {
+			this.file = file;
+			this.blockStart = blockStart;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return file == other.file && blockStart == other.blockStart;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) * 31 + (int) (blockStart ^ (blockStart >>> 32));
+		}
+	}
+
+	// access pattern of one file
+	private static final class Stream {
+		long lastBlock = -2L;
+		int direction;
+		int run;
+	}
+
+	private final int blockSize;
+	private final int maxBlocks;
+	private final boolean direct;
+	private int readAhead;
+
+	private final LinkedHashMap<Key, ByteBuffer> blocks;
+	private final Set<Key> pending;
+	private final List<ByteBuffer> freeBuffers;
+	private final Map<RandomAccessFile, Stream> streams;
+	private final List<Key> prefetchQueue;
+	private boolean prefetching; // a task is queued in the executor
+	private final Runnable prefetchTask = new Runnable() {
+		@Override
+		public void run() {
+			prefetch();
+		}
+	};
+
+	private long hits;
+	private long misses;
+	private long prefetches;
+
+	/**
+	 * Creates a cache with the default block size and budget on the heap.
+	 */
+	public BinaryContentPageCache() {
+		this(DEFAULT_BLOCK_SIZE, DEFAULT_BUDGET, false);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param blockSize
+	 *            size of a block in bytes, positive
+	 * @param budget
+	 *            maximum number of bytes in cached blocks, at least one block
+	 *            is always kept
+	 * @param direct
+	 *            <code>true</code> to keep the blocks off-heap in direct buffers,
+	 *            <code>false</code> to keep them on the Java heap
+	 */
+	public BinaryContentPageCache(int blockSize, long budget, boolean direct) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException(
+					"Parameter 'blockSize' must be positive, specified value is " + blockSize + ".");
+		}
+		if (budget < 0L) {
+			throw new IllegalArgumentException(
+					"Parameter 'budget' must not be negative, specified value is " + budget + ".");
+		}
+		this.blockSize = blockSize;
+		maxBlocks = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, budget / blockSize));
+		this.direct = direct;
+		readAhead = DEFAULT_READ_AHEAD;
+		blocks = new LinkedHashMap<Key, ByteBuffer>(16, 0.75f, true);
+		pending = new HashSet<Key>();
+		freeBuffers = new ArrayList<ByteBuffer>();
+		streams = new IdentityHashMap<RandomAccessFile, Stream>();
+		prefetchQueue = new ArrayList<Key>();
+	}
+
+	private ByteBuffer allocate() {
+		if (!freeBuffers.isEmpty()) {
+			ByteBuffer result = freeBuffers.remove(freeBuffers.size() - 1);
+			result.clear();
+			return result;
+		}
+
+		return direct ? ByteBuffer.allocateDirect(blockSize) : ByteBuffer.allocate(blockSize);
+	}
+
+	/**
+	 * Removes all blocks and stops reading ahead.
+	 */
+	public synchronized void clear() {
+		blocks.clear();
+		freeBuffers.clear();
+		streams.clear();
+		prefetchQueue.clear();
+	}
+
+	/*
+	 * Copies from a cached block. Returns -1 if the block is not cached or does
+	 * not reach the position.
+	 */
+	private int copy(Key key, long position, ByteBuffer dst, int length) {
+		ByteBuffer block = blocks.get(key);
+		if (block == null) {
+			return -1;
+		}
+		int offset = (int) (position - key.blockStart);
+		if (offset >= block.limit()) {
+			return -1;
+		}
+		int count = Math.min(length, block.limit() - offset);
+		ByteBuffer src = block.duplicate();
+		src.position(offset);
+		src.limit(offset + count);
+		dst.put(src);
+
+		return count;
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @param position
+	 *            position in the file
+	 * @return the byte as value from 0 to 255 or -1 at the end of the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	int get(RandomAccessFile file, long position) throws IOException {
+		ByteBuffer dst = ByteBuffer.allocate(1);
+		if (read(file, position, dst, 1) < 1) {
+			return -1;
+		}
+
+		return dst.get(0) & 0x0ff;
+	}
+
+	/**
+	 * Gets the size of the blocks.
+	 *
+	 * @return the size in bytes
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Gets the number of block requests that were served from the cache.
+	 *
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of block requests that had to read from the file.
+	 *
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of blocks read ahead in the background.
+	 *
+	 * @return the number of blocks
+	 */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+
+	/**
+	 * Removes all blocks of a file. Called when the file is closed.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 */
+	synchronized void invalidate(RandomAccessFile file) {
+		for (Iterator<Key> i = blocks.keySet().iterator(); i.hasNext();) {
+			if (i.next().file == file) {
+				i.remove();
+			}
+		}
+		for (Iterator<Key> i = prefetchQueue.iterator(); i.hasNext();) {
+			if (i.next().file == file) {
+				i.remove();
+			}
+		}
+		streams.remove(file);
+	}
+
+	/*
+	 * Reads a block from the file and puts it into the cache. Only one thread
+	 * loads a given block, others wait for it.
+	 */
+	private void load(Key key) throws IOException {
+		ByteBuffer block;
+		synchronized (this) {
+			block = allocate();
+		}
+		boolean loaded = false;
+		try {
+			while (block.hasRemaining()) {
+				if (key.file.getChannel().read(block, key.blockStart + block.position()) < 0) {
+					break;
+				}
+			}
+			block.flip();
+			loaded = true;
+		} finally {
+			synchronized (this) {
+				pending.remove(key);
+				if (loaded) {
+					blocks.put(key, block);
+					Iterator<ByteBuffer> i = blocks.values().iterator();
+					while (blocks.size() > maxBlocks) {
+						ByteBuffer evicted = i.next();
+						i.remove();
+						if (freeBuffers.size() < maxBlocks) {
+							freeBuffers.add(evicted);
+						}
+					}
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private void prefetch() {
+		while (true) {
+			Key key;
+			synchronized (this) {
+				if (prefetchQueue.isEmpty()) {
+					prefetching = false;
+					return;
+				}
+				key = prefetchQueue.remove(0);
+				if (blocks.containsKey(key) || !pending.add(key)) {
+					continue;
+				}
+				prefetches++;
+			}
+			try {
+				load(key);
+			} catch (IOException ex) {
+				// file closed in the meantime, a later read reports real problems
+			}
+		}
+	}
+
+	/**
+	 * Reads a sequence of bytes into a buffer.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @param position
+	 *            position in the file of the first byte to read
+	 * @param dst
+	 *            the buffer to read into
+	 * @param length
+	 *            number of bytes to read, at most <code>dst.remaining()</code>
+	 * @return the number of bytes read, less than length only at the end of the
+	 *         file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	int read(RandomAccessFile file, long position, ByteBuffer dst, int length) throws IOException {
+		// outside of the lock, asking slow storage for the length can take a while
+		long fileLength = file.length();
+		int total = 0;
+		boolean loaded = false;
+		while (total < length) {
+			Key key = new Key(file, position - position % blockSize);
+			int count;
+			synchronized (this) {
+				count = copy(key, position, dst, length - total);
+				if (count >= 0) {
+					if (!loaded) {
+						hits++;
+					}
+				} else {
+					while (pending.contains(key)) {
+						try {
+							wait();
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							throw new IOException(ex.getMessage());
+						}
+					}
+					count = copy(key, position, dst, length - total);
+					if (count >= 0) {
+						// read ahead completed while waiting
+						if (!loaded) {
+							hits++;
+						}
+					} else {
+						if (position >= fileLength) {
+							break;
+						}
+						// stale short block at the end of a file that has grown,
+						// or a block just loaded has been evicted by read ahead
+						blocks.remove(key);
+						pending.add(key);
+						if (!loaded) {
+							misses++;
+						}
+					}
+				}
+				track(key, fileLength);
+			}
+			if (count < 0) {
+				load(key);
+				loaded = true;
+				continue;
+			}
+			loaded = false;
+			total += count;
+			position += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Sets the number of blocks that are read ahead once sequential access has
+	 * been detected.
+	 *
+	 * @param readAhead
+	 *            the number of blocks, 0 turns reading ahead off
+	 */
+	public synchronized void setReadAhead(int readAhead) {
+		if (readAhead < 0) {
+			throw new IllegalArgumentException(
+					"Parameter 'readAhead' must not be negative, specified value is " + readAhead + ".");
+		}
+		this.readAhead = readAhead;
+	}
+
+	/*
+	 * Updates the access pattern of the file and schedules the next blocks once
+	 * two consecutive blocks have been requested in the same direction.
+	 */
+	private void track(Key key, long fileLength) {
+		Stream stream = streams.get(key.file);
+		if (stream == null) {
+			stream = new Stream();
+			streams.put(key.file, stream);
+		}
+		long block = key.blockStart / blockSize;
+		long delta = block - stream.lastBlock;
+		if (delta == 0L) {
+			return;
+		}
+		if ((delta == 1L || delta == -1L) && (stream.run == 0 || stream.direction == delta)) {
+			stream.direction = (int) delta;
+			stream.run++;
+		} else {
+			stream.run = 0;
+		}
+		stream.lastBlock = block;
+		if (stream.run < 1 || readAhead < 1) {
+			return;
+		}
+
+		for (int i = 1; i <= readAhead; i++) {
+			long blockStart = (block + i * stream.direction) * blockSize;
+			if (blockStart < 0L || blockStart >= fileLength) {
+				break;
+			}
+			Key next = new Key(key.file, blockStart);
+			if (!blocks.containsKey(next) && !pending.contains(next) && !prefetchQueue.contains(next)) {
+				prefetchQueue.add(next);
+			}
+		}
+		// requests for blocks the user has already scrolled past are obsolete
+		while (prefetchQueue.size() > readAhead) {
+			prefetchQueue.remove(0);
+		}
+		if (!prefetching && !prefetchQueue.isEmpty()) {
+			prefetching = true;
+			prefetchExecutor.execute(prefetchTask);
+		}
+	}
+}
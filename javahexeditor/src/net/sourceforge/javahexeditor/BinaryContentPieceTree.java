@@ -0,0 +1,394 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.util.List;
+
+import net.sourceforge.javahexeditor.BinaryContent.Range;
+
+/**
+ * Ordered sequence of the Ranges that back a BinaryContent. The sequence is
+ * kept as a balanced tree (a treap with implicit keys) where each node only
+ * stores the length of its piece and the total length of its subtree. The
+ * position of a piece is derived while descending the tree, so inserting and
+ * removing pieces never has to shift the pieces that follow. All operations
+ * are O(log n) in the number of pieces.
+ * <p>
+ * {@link #copy()} creates a second tree that shares all nodes with this one.
+ * Nodes are owned by the tree that created them and are copied before a tree
+ * modifies a node it does not own, so modifying one tree never changes what
+ * the other one contains. Reading a tree that is no longer modified is thread
+ * safe.
+ * <p>
+ * The <code>position</code> field of the Ranges stored in the tree is not
+ * maintained. Use {@link Cursor#position()} or {@link #getRangeAt(long)} to get
+ * the position of a piece.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentPieceTree {
+
+	private static final class Node {
+		Range range;
+		int priority;
+		Node left;
+		Node right;
+		long length; // bytes in subtree
+		int count; // pieces in subtree
+		final Object owner; // tree that may modify this node in place
+
+		Node(Range range, int priority, Object owner) {
+			this.range = range;
+			this.priority = priority;
+			this.owner = owner;
+			length = range.length;
+			count = 1;
+		}
+	}
+
+	/**
+	 * In-order traversal of the pieces, starting with the piece that contains a
+	 * given position.
+	 */
+	final class Cursor {
+		private Node[] nodes = new Node[16];
+		private long[] positions = new long[16];
+		private int depth;
+		private long position = -1L;
+
+		Cursor() {
+		}
+
+		private void push(Node node, long nodePosition) {
+			if (depth == nodes.length) {
+				Node[] newNodes = new Node[depth * 2];
+				long[] newPositions = new long[depth * 2];
+				System.arraycopy(nodes, 0, newNodes, 0, depth);
+				System.arraycopy(positions, 0, newPositions, 0, depth);
+				nodes = newNodes;
+				positions = newPositions;
+			}
+			nodes[depth] = node;
+			positions[depth] = nodePosition;
+			++depth;
+		}
+
+		private void pushLeftPath(Node node, long offset) {
+			while (node != null) {
+				long nodePosition = offset + length(node.left);
+				push(node, nodePosition);
+				node = node.left;
+			}
+		}
+
+		boolean hasNext() {
+			return depth > 0;
+		}
+
+		/**
+		 * Moves to the next piece.
+		 *
+		 * @return the next piece, not <code>null</code>. Its position field is not
+		 *         valid, use {@link #position()}.
+		 */
+		Range next() {
+			--depth;
+			Node node = nodes[depth];
+			position = positions[depth];
+			nodes[depth] = null;
+			pushLeftPath(node.right, position + node.range.length);
+
+			return node.range;
+		}
+
+		/**
+		 * Gets the start position of the piece last returned by {@link #next()}.
+		 *
+		 * @return the position in the content
+		 */
+		long position() {
+			return position;
+		}
+	}
+
+	private Node root;
+	private Object owner = new Object();
+	private int seed = 0x2545F491;
+
+	// results of split(), avoids allocating pairs on each call
+	private Node splitLeft;
+	private Node splitRight;
+
+	BinaryContentPieceTree() {
+	}
+
+	private static int count(Node node) {
+		return node == null ? 0 : node.count;
+	}
+
+	private static long length(Node node) {
+		return node == null ? 0L : node.length;
+	}
+
+	private static void update(Node node) {
+		node.length = length(node.left) + node.range.length + length(node.right);
+		node.count = count(node.left) + 1 + count(node.right);
+	}
+
+	/**
+	 * Removes all pieces.
+	 */
+	void clear() {
+		root = null;
+	}
+
+	/**
+	 * Creates a tree with the same pieces. The trees share their nodes until
+	 * either of them is modified, so this is O(1).
+	 *
+	 * @return the copy, not <code>null</code>
+	 */
+	BinaryContentPieceTree copy() {
+		BinaryContentPieceTree result = new BinaryContentPieceTree();
+		result.root = root;
+		result.seed = seed * 31 + 17;
+		// from now on no tree owns the existing nodes
+		owner = new Object();
+
+		return result;
+	}
+
+	/**
+	 * Gets a cursor positioned before the piece that contains the given position.
+	 *
+	 * @param position
+	 *            the position in the content
+	 * @return the cursor, not <code>null</code>. It has no next piece if the
+	 *         position is not within the content.
+	 */
+	Cursor cursor(long position) {
+		Cursor cursor = new Cursor();
+		Node node = root;
+		long offset = 0L;
+		while (node != null) {
+			long nodePosition = offset + length(node.left);
+			if (position < nodePosition) {
+				cursor.push(node, nodePosition);
+				node = node.left;
+			} else if (position >= nodePosition + node.range.length) {
+				offset = nodePosition + node.range.length;
+				node = node.right;
+			} else {
+				cursor.push(node, nodePosition);
+				node = null;
+			}
+		}
+
+		return cursor;
+	}
+
+	/**
+	 * Gets a copy of the piece that contains the given position.
+	 *
+	 * @param position
+	 *            the position in the content
+	 * @return a clone of the piece with a valid position field or
+	 *         <code>null</code> if the position is not within the content
+	 */
+	Range getRangeAt(long position) {
+		Node node = root;
+		long offset = 0L;
+		while (node != null) {
+			long nodePosition = offset + length(node.left);
+			if (position < nodePosition) {
+				node = node.left;
+			} else if (position >= nodePosition + node.range.length) {
+				offset = nodePosition + node.range.length;
+				node = node.right;
+			} else {
+				Range result = node.range.clone();
+				result.position = nodePosition;
+				return result;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Inserts a piece at the given position, shifting the pieces that follow.
+	 * Splits the piece that contains the position if required.
+	 *
+	 * @param position
+	 *            insert point, between 0 and {@link #length()}
+	 * @param range
+	 *            the piece, not <code>null</code>. Ownership passes to the tree.
+	 */
+	void insert(long position, Range range) {
+		if (range.length < 1L) {
+			return;
+		}
+		split(root, position);
+		Node left = splitLeft;
+		Node right = splitRight;
+		root = merge(merge(left, new Node(range, nextPriority(), owner)), right);
+	}
+
+	/**
+	 * Total number of bytes in all pieces
+	 *
+	 * @return length of content in byte units
+	 */
+	long length() {
+		return length(root);
+	}
+
+	private Node merge(Node left, Node right) {
+		if (left == null) {
+			return right;
+		}
+		if (right == null) {
+			return left;
+		}
+		if (left.priority > right.priority) {
+			left = mutable(left);
+			left.right = merge(left.right, right);
+			update(left);
+			return left;
+		}
+		right = mutable(right);
+		right.left = merge(left, right.left);
+		update(right);
+		return right;
+	}
+
+	/*
+	 * Returns the node itself if this tree owns it, a copy otherwise.
+	 */
+	private Node mutable(Node node) {
+		if (node.owner == owner) {
+			return node;
+		}
+		Node result = new Node(node.range.clone(), node.priority, owner);
+		result.left = node.left;
+		result.right = node.right;
+		result.length = node.length;
+		result.count = node.count;
+
+		return result;
+	}
+
+	private int nextPriority() {
+		// xorshift, good enough to keep the tree balanced
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	}
+
+	/**
+	 * Removes the bytes in the given interval, shifting the pieces that follow.
+	 * Pieces that are only partially covered by the interval are split.
+	 *
+	 * @param position
+	 *            start point
+	 * @param length
+	 *            number of bytes to remove
+	 * @param removed
+	 *            receives the removed pieces in order and with valid position
+	 *            fields or <code>null</code>
+	 */
+	void remove(long position, long length, List<Range> removed) {
+		if (length < 1L) {
+			return;
+		}
+		split(root, position);
+		Node left = splitLeft;
+		split(splitRight, length);
+		Node middle = splitLeft;
+		Node right = splitRight;
+		root = merge(left, right);
+		if (removed != null) {
+			collect(middle, position, removed);
+		}
+	}
+
+	private void collect(Node node, long offset, List<Range> result) {
+		while (node != null) {
+			collect(node.left, offset, result);
+			long nodePosition = offset + length(node.left);
+			// the receiver may modify the pieces, do not hand out shared ones
+			Range range = node.owner == owner ? node.range : node.range.clone();
+			range.position = nodePosition;
+			result.add(range);
+			offset = nodePosition + range.length;
+			node = node.right;
+		}
+	}
+
+	/**
+	 * Number of pieces in the tree
+	 *
+	 * @return count of Ranges
+	 */
+	int size() {
+		return count(root);
+	}
+
+	/**
+	 * Splits the tree so that the left part contains exactly the first
+	 * <code>position</code> bytes. Results go to {@link #splitLeft} and
+	 * {@link #splitRight}.
+	 */
+	private void split(Node node, long position) {
+		if (node == null) {
+			splitLeft = null;
+			splitRight = null;
+			return;
+		}
+
+		node = mutable(node);
+		long leftLength = length(node.left);
+		long pieceLength = node.range.length;
+		if (position <= leftLength) {
+			split(node.left, position);
+			node.left = splitRight;
+			update(node);
+			splitRight = node;
+		} else if (position >= leftLength + pieceLength) {
+			split(node.right, position - leftLength - pieceLength);
+			node.right = splitLeft;
+			update(node);
+			splitLeft = node;
+		} else {
+			long delta = position - leftLength;
+			Range tail = node.range.clone();
+			tail.length -= delta;
+			tail.dataOffset += delta;
+			node.range.length = delta;
+			Node right = merge(new Node(tail, nextPriority(), owner), node.right);
+			node.right = null;
+			update(node);
+			splitLeft = node;
+			splitRight = right;
+		}
+	}
+}
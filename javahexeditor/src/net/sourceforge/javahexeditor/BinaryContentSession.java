@@ -0,0 +1,811 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import net.sourceforge.javahexeditor.BinaryContent.Range;
+import net.sourceforge.javahexeditor.BinaryContentActionHistory.Entry;
+
+/**
+ * Journal of an edit session of a BinaryContent in a sidecar file, so the
+ * unsaved state can be restored after a crash. The file is an append-only
+ * sequence of frames. Data frames hold the bytes that are inserted or typed
+ * in, the arena of the content appends them as they come, so the pieces
+ * reference the file instead of memory. Record frames describe the pieces
+ * that replaced a modified interval and the changes of the undo history.
+ * Every {@link #CHECKPOINT_INTERVAL} bytes of records a checkpoint with all
+ * pieces and the whole history is written, so a restore only reads the last
+ * checkpoint and the records after it. No bytes are copied on a restore, the
+ * pieces reference the backing files and the session file again. Pieces of the
+ * temporary files of javahexeditor, like pasted clipboard files, are copied
+ * into the session, since these files are deleted or reused.
+ * <p>
+ * Records are protected by a checksum. A restore stops at the first
+ * incomplete or damaged frame, which is what a crash leaves behind. The file
+ * is locked while the session is open, so only one content uses it.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentSession {
+
+	/**
+	 * Number of bytes of records after which a checkpoint is written. Current
+	 * value is 1 MB.
+	 */
+	static final long CHECKPOINT_INTERVAL = 1024 * 1024;
+
+	private static final int MAGIC = 0x4A485853; // "JHXS"
+	private static final int VERSION = 1;
+
+	private static final byte FRAME_DATA = 1;
+	private static final byte FRAME_CHECKPOINT = 2;
+	private static final byte FRAME_EDIT = 3;
+	private static final byte FRAME_ACTIONS = 4;
+
+	private static final byte DATA_SESSION = 0;
+	private static final byte DATA_FILE = 1;
+	private static final byte DATA_FILL = 2;
+	private static final byte DATA_FILE_INDEX = 3;
+
+	// pieces of temporary files are copied in data frames of at most this size
+	static final long MAX_COPY_SIZE = 1024L * 1024 * 1024;
+
+	private static final File TEMP_FOLDER = new File(System.getProperty("java.io.tmpdir", ".")).getAbsoluteFile();
+
+	private final BinaryContent content;
+	private final File baseFile;
+	private final File file;
+	private final RandomAccessFile journal;
+	private final FileChannel channel;
+	private long size; // end of the last complete frame
+	private long recordsSize; // bytes of records since the last checkpoint
+	private boolean discarded;
+
+	// buffers already written to the session, mapped to {offset, length}
+	private final Map<ByteBuffer, long[]> dataOffsets = new IdentityHashMap<ByteBuffer, long[]>();
+
+	// parts of temporary files copied to the session, {offset, length, session offset}
+	private final Map<RandomAccessFile, List<long[]>> copiedParts;
+
+	// paths are written once per record, later pieces refer to their index
+	private final Map<File, Integer> recordFiles = new HashMap<File, Integer>();
+	private final List<String> recordPaths = new ArrayList<String>();
+
+	// data shared by the pieces while restoring
+	private Map<String, RandomAccessFile> restoredFiles;
+	private Map<ByteBuffer, BinaryContentFill> restoredFills;
+
+	// state of the undo history in the session
+	private boolean hasHistory;
+	private List<Entry> entries = new ArrayList<Entry>();
+	private int actionsIndex;
+
+	// modified bytes since the last sync
+	private long start = -1L;
+	private long end;
+	private long lengthBefore;
+
+	private BinaryContentSession(BinaryContent content, File baseFile, File file) throws IOException {
+		this.content = content;
+		this.baseFile = baseFile.getAbsoluteFile();
+		this.file = file;
+		copiedParts = new IdentityHashMap<RandomAccessFile, List<long[]>>();
+		journal = RandomAccessFileFactory.createRandomAccessFile(file, "rw");
+		channel = journal.getChannel();
+		FileLock lock = null;
+		try {
+			lock = channel.tryLock();
+		} catch (OverlappingFileLockException ex) {
+			// locked by this process
+		} catch (IOException ex) {
+			journal.close();
+			throw ex;
+		}
+		if (lock == null) {
+			journal.close();
+			throw new IOException("Session file '" + file.getPath() + "' is in use.");
+		}
+	}
+
+	/**
+	 * Opens the session of a content. If the session file belongs to the backing
+	 * file in its current state, the pieces and the undo history of the content
+	 * are restored from it. Otherwise a new session is started.
+	 *
+	 * @param content
+	 *            the content that has just been opened on the backing file, not
+	 *            <code>null</code>
+	 * @param baseFile
+	 *            the backing file, not <code>null</code>
+	 * @param file
+	 *            the session file, not <code>null</code>
+	 * @return the session, not <code>null</code>
+	 * @throws IOException
+	 *             if the session file cannot be written, or a file it references
+	 *             cannot be opened anymore
+	 */
+	static BinaryContentSession open(BinaryContent content, File baseFile, File file) throws IOException {
+		BinaryContentSession result = new BinaryContentSession(content, baseFile, file);
+		try {
+			byte[] header = createHeader(baseFile);
+			if (!result.restore(header)) {
+				result.startNew(header);
+			}
+		} catch (IOException ex) {
+			result.journal.close();
+			throw ex;
+		}
+
+		return result;
+	}
+
+	private static byte[] createHeader(File baseFile) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(baseFile.getCanonicalPath());
+		out.writeLong(baseFile.length());
+		out.writeLong(baseFile.lastModified());
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Copies bytes into a data frame.
+	 *
+	 * @param position
+	 *            position of the new Range
+	 * @param src
+	 *            the remaining bytes are copied, its position is not changed
+	 * @param dirty
+	 *            dirty flag of the new Range
+	 * @return a new Range that references the copied bytes in the session file,
+	 *         not <code>null</code>
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	Range append(long position, ByteBuffer src, boolean dirty) throws IOException {
+		long length = src.remaining();
+		Range result = new Range(position, length);
+		result.data = journal;
+		result.file = file;
+		result.dataOffset = writeData(src);
+		result.dirty = dirty;
+
+		return result;
+	}
+
+	/**
+	 * Closes the session file. It is deleted if the session has been discarded
+	 * or the content has no unsaved changes.
+	 *
+	 * @param keep
+	 *            <code>true</code> to keep the file unless it has been discarded
+	 * @return the file instance that has been closed, not <code>null</code>
+	 */
+	RandomAccessFile close(boolean keep) {
+		try {
+			journal.close();
+		} catch (IOException ex) {
+			// deleted on exit then
+		}
+		if (discarded || !keep) {
+			if (!file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+
+		return journal;
+	}
+
+	/**
+	 * Stops journaling. The session file is deleted when the session is closed.
+	 */
+	void discard() {
+		discarded = true;
+	}
+
+	/**
+	 * Gets the session file.
+	 *
+	 * @return the file, not <code>null</code>
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Tells whether the session has been discarded.
+	 *
+	 * @return <code>true</code> if changes are no longer journaled
+	 */
+	boolean isDiscarded() {
+		return discarded;
+	}
+
+	/**
+	 * Collects a modification of the content for the next sync.
+	 *
+	 * @param position
+	 *            start of the modified bytes
+	 * @param removed
+	 *            number of bytes removed
+	 * @param inserted
+	 *            number of bytes inserted
+	 */
+	void modified(long position, long removed, long inserted) {
+		if (start < 0L) {
+			start = position;
+			end = position + inserted;
+			lengthBefore = content.length() - inserted + removed;
+		} else {
+			// bytes after the modified ones move, others become part of them
+			end = end >= position + removed ? end + inserted - removed : position + inserted;
+			start = Math.min(start, position);
+		}
+	}
+
+	/**
+	 * Writes the modifications since the last sync. The content must not have
+	 * uncommitted changes.
+	 *
+	 * @param force
+	 *            <code>true</code> to force the written frames to the storage
+	 *            device
+	 * @throws IOException
+	 *             if writing fails
+	 */
+	void sync(boolean force) throws IOException {
+		if (discarded) {
+			return;
+		}
+
+		if (start >= 0L) {
+			long inserted = end - start;
+			long removed = inserted - (content.length() - lengthBefore);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			recordFiles.clear();
+			out.writeLong(start);
+			out.writeLong(removed);
+			out.writeBoolean(content.dirty);
+			out.writeBoolean(content.dirtySize);
+			writeRanges(out, content.myRanges, start, inserted);
+			out.close();
+			writeRecord(FRAME_EDIT, bytes.toByteArray());
+			start = -1L;
+		}
+
+		BinaryContentActionHistory actions = content.actions;
+		List<Entry> currentEntries = actions == null ? Collections.<Entry> emptyList() : actions.getEntries();
+		int currentIndex = actions == null ? 0 : actions.getIndex();
+		int kept = 0;
+		while (kept < entries.size() && kept < currentEntries.size()
+				&& entries.get(kept) == currentEntries.get(kept)) {
+			++kept;
+		}
+		if (hasHistory != (actions != null) || kept < entries.size() || kept < currentEntries.size()
+				|| actionsIndex != currentIndex) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			recordFiles.clear();
+			out.writeBoolean(actions != null);
+			out.writeInt(kept);
+			out.writeInt(currentEntries.size() - kept);
+			for (int i = kept; i < currentEntries.size(); ++i) {
+				writeEntry(out, currentEntries.get(i));
+			}
+			out.writeInt(currentIndex);
+			out.close();
+			writeRecord(FRAME_ACTIONS, bytes.toByteArray());
+			hasHistory = actions != null;
+			entries = new ArrayList<Entry>(currentEntries);
+			actionsIndex = currentIndex;
+		}
+
+		if (recordsSize > CHECKPOINT_INTERVAL) {
+			writeCheckpoint();
+		}
+		if (force) {
+			channel.force(false);
+		}
+	}
+
+	/*
+	 * Reads the last checkpoint and the records after it into the content.
+	 * Returns false if the file is not a session of the backing file.
+	 */
+	private boolean restore(byte[] header) throws IOException {
+		long fileSize = channel.size();
+		if (fileSize < header.length) {
+			return false;
+		}
+		ByteBuffer existingHeader = ByteBuffer.allocate(header.length);
+		read(existingHeader, 0L);
+		if (!Arrays.equals(header, existingHeader.array())) {
+			return false;
+		}
+
+		// find the last checkpoint and the records after it
+		long checkpoint = -1L;
+		List<long[]> records = new ArrayList<long[]>();
+		long position = header.length;
+		ByteBuffer frameHeader = ByteBuffer.allocate(5);
+		while (position + frameHeader.capacity() <= fileSize) {
+			frameHeader.clear();
+			read(frameHeader, position);
+			byte type = frameHeader.get(0);
+			long length = frameHeader.getInt(1) & 0xffffffffL;
+			long payload = position + frameHeader.capacity();
+			if (type == FRAME_DATA) {
+				if (payload + length > fileSize) {
+					break;
+				}
+				position = payload + length;
+				continue;
+			}
+			if (type != FRAME_CHECKPOINT && type != FRAME_EDIT && type != FRAME_ACTIONS
+					|| length > Integer.MAX_VALUE - 4 || payload + length + 4 > fileSize
+					|| readRecord(payload, (int) length) == null) {
+				break;
+			}
+			if (type == FRAME_CHECKPOINT) {
+				checkpoint = position;
+				records.clear();
+			} else if (checkpoint >= 0L) {
+				records.add(new long[] { type, payload, length });
+			}
+			position = payload + length + 4;
+		}
+		if (checkpoint < 0L) {
+			return false;
+		}
+		size = position;
+		channel.truncate(size);
+
+		restoredFiles = new HashMap<String, RandomAccessFile>();
+		restoredFills = new HashMap<ByteBuffer, BinaryContentFill>();
+		frameHeader.clear();
+		read(frameHeader, checkpoint);
+		readCheckpoint(readRecord(checkpoint + 5, frameHeader.getInt(1)));
+		for (int i = 0; i < records.size(); ++i) {
+			long[] record = records.get(i);
+			DataInputStream in = readRecord(record[1], (int) record[2]);
+			if (record[0] == FRAME_EDIT) {
+				readEdit(in);
+			} else {
+				readActions(in);
+			}
+			recordsSize += record[2];
+		}
+		restoredFiles = null;
+		restoredFills = null;
+		if (hasHistory) {
+			BinaryContentActionHistory actions = new BinaryContentActionHistory(content);
+			actions.restore(entries, actionsIndex);
+			content.actions = actions;
+		}
+
+		return true;
+	}
+
+	private void readActions(DataInputStream in) throws IOException {
+		hasHistory = in.readBoolean();
+		int kept = in.readInt();
+		entries.subList(kept, entries.size()).clear();
+		for (int count = in.readInt(); count > 0; --count) {
+			entries.add(readEntry(in));
+		}
+		actionsIndex = in.readInt();
+	}
+
+	private void readCheckpoint(DataInputStream in) throws IOException {
+		content.dirty = in.readBoolean();
+		content.dirtySize = in.readBoolean();
+		content.myRanges = readTree(in);
+		entries.clear();
+		readActions(in);
+	}
+
+	private void readEdit(DataInputStream in) throws IOException {
+		long position = in.readLong();
+		long removed = in.readLong();
+		content.dirty = in.readBoolean();
+		content.dirtySize = in.readBoolean();
+		BinaryContentPieceTree ranges = content.myRanges;
+		ranges.remove(position, removed, null);
+		for (int count = in.readInt(); count > 0; --count) {
+			Range range = readRange(in, false);
+			range.position = position;
+			ranges.insert(position, range);
+			position += range.length;
+		}
+	}
+
+	private Entry readEntry(DataInputStream in) throws IOException {
+		Integer type = Integer.valueOf(in.readInt());
+		if (type.equals(BinaryContentActionHistory.TYPE_BATCH)) {
+			long position = in.readLong();
+			long exclusiveEndBefore = in.readLong();
+			long exclusiveEndAfter = in.readLong();
+			BinaryContentPieceTree rangesBefore = readTree(in);
+			BinaryContentPieceTree rangesAfter = readTree(in);
+			return new Entry(rangesBefore, rangesAfter, position, exclusiveEndBefore, exclusiveEndAfter);
+		}
+
+		int count = in.readInt();
+		List<Range> ranges = new ArrayList<Range>(count);
+		for (int i = 0; i < count; ++i) {
+			ranges.add(readRange(in, true));
+		}
+
+		return new Entry(type, ranges);
+	}
+
+	private Range readRange(DataInputStream in, boolean withPosition) throws IOException {
+		long position = withPosition ? in.readLong() : 0L;
+		Range result = new Range(position, in.readLong());
+		result.dirty = in.readBoolean();
+		byte kind = in.readByte();
+		if (kind == DATA_SESSION) {
+			result.data = journal;
+			result.file = file;
+		} else if (kind == DATA_FILE || kind == DATA_FILE_INDEX) {
+			String path;
+			if (kind == DATA_FILE) {
+				path = in.readUTF();
+				recordPaths.add(path);
+			} else {
+				int index = in.readInt();
+				if (index < 0 || index >= recordPaths.size()) {
+					throw new IOException("Unknown file index " + index + " in session file '" + file.getPath() + "'.");
+				}
+				path = recordPaths.get(index);
+			}
+			RandomAccessFile dataFile = restoredFiles.get(path);
+			if (dataFile == null) {
+				dataFile = RandomAccessFileFactory.acquireRandomAccessFile(new File(path));
+				restoredFiles.put(path, dataFile);
+			} else {
+				RandomAccessFileFactory.retainRandomAccessFile(dataFile);
+			}
+			content.files.add(dataFile);
+			result.data = dataFile;
+			result.file = new File(path);
+		} else if (kind == DATA_FILL) {
+			byte[] pattern = new byte[in.readInt()];
+			in.readFully(pattern);
+			BinaryContentFill fill = restoredFills.get(ByteBuffer.wrap(pattern));
+			if (fill == null) {
+				fill = new BinaryContentFill(pattern);
+				restoredFills.put(ByteBuffer.wrap(pattern), fill);
+			}
+			result.data = fill;
+		} else {
+			throw new IOException("Unknown kind of data " + kind + " in session file '" + file.getPath() + "'.");
+		}
+		result.dataOffset = in.readLong();
+
+		return result;
+	}
+
+	/*
+	 * Reads and checks the payload of a record, null if it is damaged
+	 */
+	private DataInputStream readRecord(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+		read(buffer, position);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), 0, length);
+		if ((int) crc.getValue() != buffer.getInt(length)) {
+			return null;
+		}
+		recordPaths.clear();
+
+		return new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, length));
+	}
+
+	private BinaryContentPieceTree readTree(DataInputStream in) throws IOException {
+		BinaryContentPieceTree result = new BinaryContentPieceTree();
+		for (int count = in.readInt(); count > 0; --count) {
+			Range range = readRange(in, false);
+			range.position = result.length();
+			result.insert(range.position, range);
+		}
+
+		return result;
+	}
+
+	private void read(ByteBuffer dst, long position) throws IOException {
+		while (dst.hasRemaining()) {
+			if (channel.read(dst, position + dst.position()) < 0) {
+				throw new IOException("Unexpected end of session file '" + file.getPath() + "'.");
+			}
+		}
+	}
+
+	private void startNew(byte[] header) throws IOException {
+		channel.truncate(0L);
+		size = 0L;
+		write(ByteBuffer.wrap(header));
+		hasHistory = content.actions != null;
+		writeCheckpoint();
+		channel.force(false);
+	}
+
+	private void write(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			size += channel.write(src, size);
+		}
+	}
+
+	private void writeCheckpoint() throws IOException {
+		BinaryContentActionHistory actions = content.actions;
+		List<Entry> currentEntries = actions == null ? Collections.<Entry> emptyList() : actions.getEntries();
+		int currentIndex = actions == null ? 0 : actions.getIndex();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		recordFiles.clear();
+		out.writeBoolean(content.dirty);
+		out.writeBoolean(content.dirtySize);
+		writeRanges(out, content.myRanges, 0L, content.myRanges.length());
+		out.writeBoolean(actions != null);
+		out.writeInt(0);
+		out.writeInt(currentEntries.size());
+		for (int i = 0; i < currentEntries.size(); ++i) {
+			writeEntry(out, currentEntries.get(i));
+		}
+		out.writeInt(currentIndex);
+		out.close();
+		writeRecord(FRAME_CHECKPOINT, bytes.toByteArray());
+		hasHistory = actions != null;
+		entries = new ArrayList<Entry>(currentEntries);
+		actionsIndex = currentIndex;
+		recordsSize = 0L;
+		start = -1L;
+	}
+
+	/*
+	 * Writes a data frame, returns the offset of its payload
+	 */
+	private long writeData(ByteBuffer src) throws IOException {
+		ByteBuffer frameHeader = ByteBuffer.allocate(5);
+		frameHeader.put(FRAME_DATA);
+		frameHeader.putInt(src.remaining());
+		frameHeader.flip();
+		long oldSize = size;
+		try {
+			write(frameHeader);
+			long result = size;
+			write(src.duplicate());
+			return result;
+		} catch (IOException ex) {
+			size = oldSize;
+			throw ex;
+		}
+	}
+
+	private void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+		out.writeInt(entry.getActionType().intValue());
+		if (entry.getActionType() == BinaryContentActionHistory.TYPE_BATCH) {
+			out.writeLong(entry.getPosition());
+			out.writeLong(entry.getExclusiveEndBefore());
+			out.writeLong(entry.getExclusiveEndAfter());
+			writeRanges(out, entry.getRangesBefore(), 0L, entry.getRangesBefore().length());
+			writeRanges(out, entry.getRangesAfter(), 0L, entry.getRangesAfter().length());
+			return;
+		}
+
+		List<Range> ranges = entry.getRanges();
+		List<long[]> parts = new ArrayList<long[]>();
+		List<Range> parents = new ArrayList<Range>();
+		for (int i = 0; i < ranges.size(); ++i) {
+			Range range = ranges.get(i);
+			addParts(parents, parts, range, range.dataOffset, range.length, range.position);
+		}
+		out.writeInt(parts.size());
+		for (int i = 0; i < parts.size(); ++i) {
+			long[] part = parts.get(i);
+			out.writeLong(part[2]);
+			writeRange(out, parents.get(i), part[0], part[1]);
+		}
+	}
+
+	/*
+	 * Adds the part of a piece to be written, pieces of temporary files are cut
+	 * into parts that fit into a data frame
+	 */
+	private void addParts(List<Range> parents, List<long[]> parts, Range range, long dataOffset, long length,
+			long position) {
+		long partSize = isTemporary(range) ? MAX_COPY_SIZE : length;
+		for (long done = 0L; done < length; done += partSize) {
+			parents.add(range);
+			parts.add(new long[] { dataOffset + done, Math.min(partSize, length - done), position + done });
+		}
+	}
+
+	/*
+	 * Copies the part of a temporary file into a data frame once, returns the
+	 * offset of the copy
+	 */
+	private long copyData(RandomAccessFile source, long dataOffset, long length) throws IOException {
+		List<long[]> copied = copiedParts.get(source);
+		if (copied == null) {
+			copied = new ArrayList<long[]>();
+			copiedParts.put(source, copied);
+		}
+		for (int i = 0; i < copied.size(); ++i) {
+			long[] part = copied.get(i);
+			if (part[0] <= dataOffset && dataOffset + length <= part[0] + part[1]) {
+				return part[2] + dataOffset - part[0];
+			}
+		}
+
+		ByteBuffer frameHeader = ByteBuffer.allocate(5);
+		frameHeader.put(FRAME_DATA);
+		frameHeader.putInt((int) length);
+		frameHeader.flip();
+		long oldSize = size;
+		try {
+			write(frameHeader);
+			long result = size;
+			FileChannel sourceChannel = source.getChannel();
+			while (size < result + length) {
+				channel.position(size);
+				long count = sourceChannel.transferTo(dataOffset + size - result, result + length - size, channel);
+				if (count < 1) {
+					throw new IOException("Unexpected end of temporary file at position "
+							+ (dataOffset + size - result) + ".");
+				}
+				size += count;
+			}
+			copied.add(new long[] { dataOffset, length, result });
+			return result;
+		} catch (IOException ex) {
+			size = oldSize;
+			throw ex;
+		}
+	}
+
+	/*
+	 * Tells whether the piece is in a temporary file of javahexeditor, like a
+	 * pasted clipboard file or the journal of another content
+	 */
+	private boolean isTemporary(Range range) {
+		if (!(range.data instanceof RandomAccessFile) || range.data == journal || range.file == null) {
+			return false;
+		}
+		File dataFile = range.file.getAbsoluteFile();
+		return !dataFile.equals(baseFile) && !dataFile.equals(file.getAbsoluteFile())
+				&& TEMP_FOLDER.equals(dataFile.getParentFile()) && dataFile.getName().startsWith("javahexeditor");
+	}
+
+	private void writeRange(DataOutputStream out, Range range, long dataOffset, long length) throws IOException {
+		out.writeLong(length);
+		out.writeBoolean(range.dirty);
+		if (range.data == journal || range.data instanceof RandomAccessFile
+				&& file.getAbsoluteFile().equals(range.file.getAbsoluteFile())) {
+			// pasted pieces reference the session file through a shared instance
+			out.writeByte(DATA_SESSION);
+		} else if (isTemporary(range)) {
+			// temporary files are deleted or overwritten by the next copy
+			out.writeByte(DATA_SESSION);
+			dataOffset = copyData((RandomAccessFile) range.data, dataOffset, length);
+		} else if (range.data instanceof RandomAccessFile) {
+			Integer index = recordFiles.get(range.file);
+			if (index == null) {
+				recordFiles.put(range.file, Integer.valueOf(recordFiles.size()));
+				out.writeByte(DATA_FILE);
+				out.writeUTF(range.file.getAbsolutePath());
+			} else {
+				out.writeByte(DATA_FILE_INDEX);
+				out.writeInt(index.intValue());
+			}
+		} else if (range.data instanceof BinaryContentFill) {
+			byte[] pattern = ((BinaryContentFill) range.data).getPattern();
+			out.writeByte(DATA_FILL);
+			out.writeInt(pattern.length);
+			out.write(pattern);
+		} else {
+			// bytes in memory are written to the session once
+			ByteBuffer buffer = (ByteBuffer) range.data;
+			long extent = Math.max(buffer.limit(), dataOffset + length);
+			long[] written = dataOffsets.get(buffer);
+			if (written == null || written[1] < extent) {
+				ByteBuffer src = buffer.duplicate();
+				src.clear();
+				src.limit((int) extent);
+				written = new long[] { writeData(src), extent };
+				dataOffsets.put(buffer, written);
+			}
+			out.writeByte(DATA_SESSION);
+			dataOffset += written[0];
+		}
+		out.writeLong(dataOffset);
+	}
+
+	/*
+	 * Writes the pieces of an interval, cut at its boundaries
+	 */
+	private void writeRanges(DataOutputStream out, BinaryContentPieceTree ranges, long position, long length)
+			throws IOException {
+		long exclusiveEnd = position + length;
+		List<long[]> parts = new ArrayList<long[]>();
+		List<Range> parents = new ArrayList<Range>();
+		for (BinaryContentPieceTree.Cursor i = ranges.cursor(position); i.hasNext();) {
+			Range range = i.next();
+			long rangePosition = i.position();
+			if (rangePosition >= exclusiveEnd) {
+				break;
+			}
+			long offset = Math.max(0L, position - rangePosition);
+			addParts(parents, parts, range, range.dataOffset + offset,
+					Math.min(range.length, exclusiveEnd - rangePosition) - offset, 0L);
+		}
+		out.writeInt(parts.size());
+		for (int i = 0; i < parts.size(); ++i) {
+			long[] part = parts.get(i);
+			writeRange(out, parents.get(i), part[0], part[1]);
+		}
+	}
+
+	private void writeRecord(byte type, byte[] payload) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer frame = ByteBuffer.allocate(payload.length + 9);
+		frame.put(type);
+		frame.putInt(payload.length);
+		frame.put(payload);
+		frame.putInt((int) crc.getValue());
+		frame.flip();
+		long oldSize = size;
+		try {
+			write(frame);
+		} catch (IOException ex) {
+			size = oldSize;
+			throw ex;
+		}
+		if (type != FRAME_CHECKPOINT) {
+			recordsSize += payload.length;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.ProgressMonitorWrapper;
+import org.eclipse.core.runtime.SubMonitor;
+
+import net.sourceforge.javahexeditor.BinaryContent.Range;
+
+/**
+ * Immutable view of a BinaryContent at the time
+ * {@link BinaryContent#snapshot()} was called. It shares the pieces with the
+ * content, no data is copied. All methods can be called from any thread, so
+ * searches, hashes or exports can run in the background while the content is
+ * edited. A snapshot becomes invalid when its content is disposed.
+ *
+ * @author Peter Dell
+ */
+public final class BinaryContentSnapshot {
+
+	private final BinaryContent content;
+	private final BinaryContentPieceTree ranges;
+	private final long length;
+
+	BinaryContentSnapshot(BinaryContent content, BinaryContentPieceTree ranges) {
+		this.content = content;
+		this.ranges = ranges;
+		length = ranges.length();
+	}
+
+	/**
+	 * Reads a sequence of bytes from this snapshot into the given buffer, starting
+	 * at the given position
+	 *
+	 * @param dst
+	 *            where to write the read result to
+	 * @param position
+	 *            starting read point
+	 * @return number of bytes read
+	 * @throws IOException
+	 *             if a file that backs the content cannot be read
+	 */
+	public int get(ByteBuffer dst, long position) throws IOException {
+		if (position < 0L) {
+			throw new IllegalArgumentException("Parameter 'position' must not be negative, specified value is "
+					+ position + ".");
+		}
+
+		int dstInitialRemaining = dst.remaining();
+		long positionSoFar = position;
+		for (BinaryContentPieceTree.Cursor i = ranges.cursor(position); i.hasNext() && dst.hasRemaining();) {
+			Range range = i.next();
+			positionSoFar += content.fillWithPartOfRange(dst, range, positionSoFar - i.position(),
+					Integer.MAX_VALUE);
+		}
+
+		return dstInitialRemaining - dst.remaining();
+	}
+
+	/**
+	 * Reads a sequence of bytes from this snapshot into the given file, reporting
+	 * the progress. The bytes are written to a temporary file in the same
+	 * directory first, which then replaces the given file. So the given file
+	 * stays intact if writing fails or is canceled, even if it backs the content.
+	 * After replacing a file that backs the content, the content has to be
+	 * reopened on it.
+	 *
+	 * @param destinationFile
+	 *            where to write the read result to
+	 * @param start
+	 *            first byte in sequence
+	 * @param length
+	 *            number of bytes to read
+	 * @param monitor
+	 *            receives one unit of work per kilobyte written and is checked
+	 *            for cancellation, may be <code>null</code>
+	 * @return number of bytes read
+	 * @throws IOException
+	 * @throws OperationCanceledException
+	 *             if the monitor has been canceled, the given file is untouched
+	 */
+	public long get(File destinationFile, long start, long length, IProgressMonitor monitor) throws IOException {
+		if (start < 0L || length < 0L || start + length > this.length) {
+			return 0L;
+		}
+
+		return content.write(ranges, destinationFile, start, length, monitor);
+	}
+
+	/**
+	 * Gets the content this snapshot has been taken from.
+	 *
+	 * @return the content, not <code>null</code>
+	 */
+	public BinaryContent getContent() {
+		return content;
+	}
+
+	/**
+	 * Number of bytes in the snapshot
+	 *
+	 * @return length of snapshot in byte units
+	 */
+	public long length() {
+		return length;
+	}
+
+	/*
+	 * Writes the pieces that are not backed by the given file at their positions
+	 * into it, followed by a single force. Nothing is written if the length
+	 * differs or parts of the file would have to be moved within it. The caller
+	 * must have checked BinaryContent.canSaveInPlace(File) in the thread that
+	 * modifies the content.
+	 *
+	 * The monitor reports the modified bytes written, but an in-place write
+	 * cannot be cancelled part-way: once the first piece is written, stopping
+	 * would leave the file half old and half new, so cancellation is only
+	 * honoured before anything is written.
+	 */
+	boolean saveInPlace(File destinationFile, IProgressMonitor monitor) throws IOException {
+		if (destinationFile.length() != length) {
+			return false;
+		}
+
+		List<Range> modified = new ArrayList<Range>();
+		for (BinaryContentPieceTree.Cursor i = ranges.cursor(0L); i.hasNext();) {
+			Range range = i.next();
+			long position = i.position();
+			if (range.data instanceof RandomAccessFile && destinationFile.equals(range.file)) {
+				if (range.dataOffset != position) {
+					// bytes of the file would have to be moved within the file
+					return false;
+				}
+			} else {
+				Range clone = range.clone();
+				clone.position = position;
+				modified.add(clone);
+			}
+		}
+
+		long modifiedLength = 0L;
+		for (Range range : modified) {
+			modifiedLength += range.length;
+		}
+		if (monitor != null && monitor.isCanceled()) {
+			throw new OperationCanceledException();
+		}
+		// from here on the progress is only reported
+		IProgressMonitor uncancelable = null;
+		if (monitor != null) {
+			uncancelable = new ProgressMonitorWrapper(monitor) {
+				@Override
+				public boolean isCanceled() {
+					return false;
+				}
+			};
+		}
+		SubMonitor progress = SubMonitor.convert(uncancelable, (int) Math.min(Integer.MAX_VALUE,
+				modifiedLength >> 10));
+
+		RandomAccessFile dst = RandomAccessFileFactory.createRandomAccessFile(destinationFile, "rw");
+		IOException preCloseException = null;
+		try {
+			FileChannel channel = dst.getChannel();
+			for (Range range : modified) {
+				content.writeRange(channel, range, 0L, range.length, range.position, progress);
+			}
+			channel.force(true);
+		} catch (IOException e) {
+			preCloseException = e;
+		}
+		try {
+			dst.close();
+		} catch (IOException e) {
+			if (preCloseException == null) {
+				throw e;
+			}
+		}
+		if (preCloseException != null) {
+			throw preCloseException;
+		}
+		RandomAccessFileFactory.detachRandomAccessFile(destinationFile);
+
+		return true;
+	}
+
+	/**
+	 * Creates a read-only channel over this snapshot, starting at position 0.
+	 * Writing or truncating throws a NonWritableChannelException.
+	 *
+	 * @return the channel, not <code>null</code>
+	 */
+	public SeekableByteChannel newChannel() {
+		return new BinaryContentChannel(this);
+	}
+
+	/**
+	 * Creates a stream that reads this snapshot from position 0 to the end.
+	 *
+	 * @return the stream, not <code>null</code>
+	 */
+	public InputStream newInputStream() {
+		return Channels.newInputStream(newChannel());
+	}
+}
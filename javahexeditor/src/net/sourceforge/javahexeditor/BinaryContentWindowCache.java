@@ -0,0 +1,300 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read layer for file backed Ranges. Files are memory mapped in fixed size
+ * windows, so repeated reads of the same region are served from memory instead
+ * of issuing a read on the file channel each time. The least recently used
+ * windows are dropped from the cache when the total number of mapped bytes
+ * exceeds the budget. The JDK has no way to unmap a buffer explicitly, so a
+ * dropped window stays mapped until it has been garbage collected. On Windows a
+ * file with a live mapping can neither be replaced nor deleted, therefore
+ * mapping is off there unless a budget is set. Windows start at multiples of
+ * the window size, so files larger than 2 GB are handled as well. If a window
+ * cannot be mapped or is larger than the budget, the read falls back to the
+ * file channel, so the mapped bytes never exceed the budget. The lock is held
+ * only to look up or map a window, the bytes are copied outside of it, so
+ * threads reading different parts do not wait for each other.
+ *
+ * @author Peter Dell
+ */
+final class BinaryContentWindowCache {
+
+	/**
+	 * Default size of a mapped window. Current value is 32 MB.
+	 */
+	static final int DEFAULT_WINDOW_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Default maximum number of mapped bytes. Current value is 256 MB, or 0 on
+	 * Windows, where mapped files could not be saved.
+	 */
+	static final long DEFAULT_BUDGET = isWindows() ? 0L : 256L * 1024 * 1024;
+
+	private static final class Key {
+		RandomAccessFile file;
+		long windowStart;
+
+		Key(RandomAccessFile file, long windowStart) {
+			this.file = file;
+			this.windowStart = windowStart;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return file == other.file && windowStart == other.windowStart;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(file) * 31 + (int) (windowStart ^ (windowStart >>> 32));
+		}
+	}
+
+	private final int windowSize;
+	private long budget;
+	private long mappedBytes;
+	private final LinkedHashMap<Key, MappedByteBuffer> windows;
+	private final Key lookupKey;
+
+	/**
+	 * Creates a cache with the default window size and budget.
+	 */
+	BinaryContentWindowCache() {
+		this(DEFAULT_WINDOW_SIZE, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param windowSize
+	 *            size of a mapped window, positive
+	 * @param budget
+	 *            maximum number of mapped bytes, 0 disables mapping
+	 */
+	BinaryContentWindowCache(int windowSize, long budget) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException(
+					"Parameter 'windowSize' must be positive, specified value is " + windowSize + ".");
+		}
+		this.windowSize = windowSize;
+		setBudget(budget);
+		windows = new LinkedHashMap<Key, MappedByteBuffer>(16, 0.75f, true);
+		lookupKey = new Key(null, 0L);
+	}
+
+	/**
+	 * Drops all windows. They are unmapped when they have been garbage collected.
+	 */
+	synchronized void clear() {
+		windows.clear();
+		mappedBytes = 0L;
+	}
+
+	private void evict(long required) {
+		Iterator<Map.Entry<Key, MappedByteBuffer>> i = windows.entrySet().iterator();
+		while (mappedBytes + required > budget && i.hasNext()) {
+			mappedBytes -= i.next().getValue().capacity();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Reads a single byte.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @param position
+	 *            position in the file
+	 * @return the byte as value from 0 to 255 or -1 at the end of the file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	int get(RandomAccessFile file, long position) throws IOException {
+		MappedByteBuffer window;
+		synchronized (this) {
+			window = getWindow(file, position);
+		}
+		if (window == null) {
+			// the file may be shared, do not move its file pointer
+			ByteBuffer dst = ByteBuffer.allocate(1);
+			if (file.getChannel().read(dst, position) < 1) {
+				return -1;
+			}
+			return dst.get(0) & 0x0ff;
+		}
+		int offset = (int) (position - windowStart(position));
+		if (offset >= window.capacity()) {
+			return -1;
+		}
+
+		return window.get(offset) & 0x0ff;
+	}
+
+	/**
+	 * Gets the maximum number of mapped bytes.
+	 *
+	 * @return the budget in bytes
+	 */
+	synchronized long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Gets the number of bytes currently mapped.
+	 *
+	 * @return the number of bytes
+	 */
+	synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	private MappedByteBuffer getWindow(RandomAccessFile file, long position) throws IOException {
+		if (budget < 1L) {
+			return null;
+		}
+
+		long windowStart = windowStart(position);
+		lookupKey.file = file;
+		lookupKey.windowStart = windowStart;
+		MappedByteBuffer window = windows.get(lookupKey);
+		lookupKey.file = null;
+		if (window != null && position - windowStart < window.capacity()) {
+			return window;
+		}
+
+		// not mapped yet or the file has grown since
+		long size = Math.min(windowSize, file.length() - windowStart);
+		if (window != null) {
+			windows.remove(new Key(file, windowStart));
+			mappedBytes -= window.capacity();
+			if (size <= window.capacity()) {
+				return null;
+			}
+		}
+		if (size <= 0L || size > budget) {
+			// a window that does not fit into the budget is read instead
+			return null;
+		}
+		evict(size);
+		try {
+			window = file.getChannel().map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+		} catch (IOException ex) {
+			// no address space left for instance, use plain reads then
+			return null;
+		}
+		windows.put(new Key(file, windowStart), window);
+		mappedBytes += size;
+
+		return window;
+	}
+
+	/**
+	 * Reads a sequence of bytes into a buffer.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @param position
+	 *            position in the file of the first byte to read
+	 * @param dst
+	 *            the buffer to read into
+	 * @param length
+	 *            number of bytes to read, at most <code>dst.remaining()</code>
+	 * @return the number of bytes read, less than length only at the end of the
+	 *         file
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	int read(RandomAccessFile file, long position, ByteBuffer dst, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			MappedByteBuffer window;
+			synchronized (this) {
+				window = getWindow(file, position);
+			}
+			int count;
+			if (window == null) {
+				int limit = dst.limit();
+				dst.limit(dst.position() + length - total);
+				count = file.getChannel().read(dst, position);
+				dst.limit(limit);
+			} else {
+				int offset = (int) (position - windowStart(position));
+				count = Math.min(length - total, window.capacity() - offset);
+				if (count > 0) {
+					// windows are never modified, and a dropped one stays mapped
+					// while it is referenced
+					ByteBuffer src = window.duplicate();
+					src.limit(offset + count);
+					src.position(offset);
+					dst.put(src);
+				}
+			}
+			if (count <= 0) {
+				break;
+			}
+			total += count;
+			position += count;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Sets the maximum number of mapped bytes. Windows are dropped as required,
+	 * they are unmapped when they have been garbage collected.
+	 *
+	 * @param budget
+	 *            the budget in bytes, 0 disables mapping
+	 */
+	synchronized void setBudget(long budget) {
+		if (budget < 0L) {
+			throw new IllegalArgumentException(
+					"Parameter 'budget' must not be negative, specified value is " + budget + ".");
+		}
+		this.budget = budget;
+		if (windows != null) {
+			evict(0L);
+		}
+	}
+
+	private static boolean isWindows() {
+		return System.getProperty("os.name", "").startsWith("Windows");
+	}
+
+	private long windowStart(long position) {
+		return position - position % windowSize;
+	}
+}
@@ -25,6 +25,7 @@ import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.List;
 
+import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.ModifyEvent;
 import org.eclipse.swt.events.ModifyListener;
@@ -50,8 +51,11 @@ import org.eclipse.swt.widgets.Label;
 import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.ProgressBar;
 import org.eclipse.swt.widgets.Shell;
+import org.eclipse.swt.widgets.Table;
+import org.eclipse.swt.widgets.TableItem;
 
 import net.sourceforge.javahexeditor.BinaryContentFinder.Match;
+import net.sourceforge.javahexeditor.BinaryContentFinder.Matches;
 import net.sourceforge.javahexeditor.common.ByteArrayUtility;
 import net.sourceforge.javahexeditor.common.NumberUtility;
 import net.sourceforge.javahexeditor.common.SWTUtility;
@@ -85,6 +89,17 @@ final class FindReplaceDialog extends Dialog {
 	HexTexts myTarget;
 	TextHexInputGroup lastFocused;
 
+	// the matches of the target are dropped when its content is modified
+	private final Listener targetModifyListener = new Listener() {
+		@Override
+		public void handleEvent(Event event) {
+			if (resultsTable != null && !resultsTable.isDisposed() && myTarget.getMatches() == null
+					&& resultsTable.getItemCount() > 0) {
+				refreshResultsTable();
+			}
+		}
+	};
+
 	boolean lastForward = true;
 	boolean lastFindHexButtonSelected = true;
 	boolean lastReplaceHexButtonSelected = true;
@@ -103,15 +118,52 @@ final class FindReplaceDialog extends Dialog {
 
 	private Composite feedbackComposite;
 	Label feedbackLabel;
+	Table resultsTable;
+	FindAllProgress findAllProgress;
 	Composite progressComposite;
 	ProgressBar progressBar;
 	private Button progressBarStopButton;
 
 	private Button findButton;
+	private Button findAllButton;
 	private Button replaceButton;
 	private Button replaceAllButton;
 	private Button closeButton;
 
+	/**
+	 * Progress of a find all. Updated by the threads that search, but never
+	 * concurrently.
+	 */
+	private static final class FindAllProgress extends NullProgressMonitor {
+		private volatile int totalWork;
+		private volatile int worked;
+
+		public FindAllProgress() {
+		}
+
+		@Override
+		public void beginTask(String name, int work) {
+			totalWork = work;
+		}
+
+		@Override
+		public void worked(int work) {
+			worked += work;
+		}
+
+		/**
+		 * Gets the part of the content that has been searched.
+		 *
+		 * @return value between 0 and 1
+		 */
+		public double getDone() {
+			if (totalWork <= 0) {
+				return 0.0;
+			}
+			return Math.min(1.0, (double) worked / totalWork);
+		}
+	}
+
 	/**
 	 * Group with text/hex selector and text input
 	 */
@@ -281,7 +333,9 @@ final class FindReplaceDialog extends Dialog {
 		});
 		long max = myTarget.myContent.length();
 		long min = myTarget.getCaretPos();
-		if (backwardRadioButton.getSelection()) {
+		if (findAllProgress != null) {
+			min = 0L;
+		} else if (backwardRadioButton.getSelection()) {
 			max = min;
 			min = 0L;
 		}
@@ -303,7 +357,15 @@ final class FindReplaceDialog extends Dialog {
 				}
 
 				int selection = 0;
-				if (myTarget.myFinder != null) {
+				if (findAllProgress != null) {
+					selection = (int) (progressBar.getMaximum() * findAllProgress.getDone());
+					// the matches are dropped when the content is modified while searching
+					Matches matches = myTarget.getMatches();
+					if (matches != null) {
+						sendInfoMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_SEARCHING_FOUND,
+								NumberUtility.getDecimalString(matches.size())));
+					}
+				} else if (myTarget.myFinder != null) {
 					selection = (int) (myTarget.myFinder.getSearchPosition() >>> finalFactor);
 					if (backwardRadioButton.getSelection()) {
 						selection = progressBar.getMaximum() - selection;
@@ -332,7 +394,11 @@ final class FindReplaceDialog extends Dialog {
 			throw new IllegalArgumentException("Parameter 'findReplaceHistory' must not be null.");
 		}
 
+		if (myTarget != null && !myTarget.isDisposed()) {
+			myTarget.removeListener(SWT.Modify, targetModifyListener);
+		}
 		myTarget = target;
+		myTarget.addListener(SWT.Modify, targetModifyListener);
 
 		this.findList = findReplaceHistory.getFindList();
 		this.replaceList = findReplaceHistory.getReplaceList();
@@ -378,6 +444,9 @@ final class FindReplaceDialog extends Dialog {
 
 		sendInfoMessage(Texts.FIND_REPLACE_DIALOG_MESSAGE_SPECIFY_VALUE_TO_FIND);
 
+		// the results of the last find all in the target, if still valid
+		refreshResultsTable();
+
 		lastFocused = findGroup;
 		lastFocused.textCombo.setFocus();
 		dataToUI();
@@ -428,6 +497,45 @@ final class FindReplaceDialog extends Dialog {
 		feedbackLabel.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, false));
 	}
 
+	private void createResultsTable() {
+		resultsTable = new Table(shell, SWT.VIRTUAL | SWT.SINGLE | SWT.BORDER | SWT.FULL_SELECTION);
+		GridData gridData = new GridData(SWT.FILL, SWT.FILL, true, true);
+		gridData.heightHint = resultsTable.getItemHeight() * 8;
+		resultsTable.setLayoutData(gridData);
+		// the items are created when they become visible
+		resultsTable.addListener(SWT.SetData, new Listener() {
+			@Override
+			public void handleEvent(Event event) {
+				TableItem item = (TableItem) event.item;
+				int index = resultsTable.indexOf(item);
+				Matches matches = myTarget.getMatches();
+				if (matches != null && index < matches.size()) {
+					item.setText(NumberUtility.getDecimalAndHexString(matches.get(index).getStartPosition()));
+				}
+			}
+		});
+		resultsTable.addSelectionListener(new SelectionAdapter() {
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				myTarget.selectMatch(resultsTable.getSelectionIndex());
+			}
+		});
+		setResultsTableVisible(false);
+	}
+
+	private void refreshResultsTable() {
+		Matches matches = myTarget.getMatches();
+		resultsTable.clearAll();
+		resultsTable.setItemCount(matches == null ? 0 : matches.size());
+		setResultsTableVisible(resultsTable.getItemCount() > 0);
+	}
+
+	private void setResultsTableVisible(boolean visible) {
+		resultsTable.setVisible(visible);
+		((GridData) resultsTable.getLayoutData()).exclude = !visible;
+		resultsTable.getParent().pack();
+	}
+
 	private void sendInfoMessage(String message) {
 		feedbackLabel.setForeground(null);
 		feedbackLabel.setText(message);
@@ -470,7 +578,7 @@ final class FindReplaceDialog extends Dialog {
 	private void createButtonBarComposite() {
 
 		Composite buttonBar = new Composite(shell, SWT.NONE);
-		buttonBar.setLayout(new GridLayout(5, false));
+		buttonBar.setLayout(new GridLayout(6, false));
 		buttonBar.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, false, 2, 1));
 
 		// This Label does not show anything.
@@ -488,6 +596,16 @@ final class FindReplaceDialog extends Dialog {
 			}
 		});
 
+		findAllButton = new Button(buttonBar, SWT.NONE);
+		findAllButton.setText(Texts.FIND_REPLACE_DIALOG_FIND_ALL_BUTTON_LABEL);
+		findAllButton.addSelectionListener(defaultSelectionAdapter);
+		findAllButton.addSelectionListener(new SelectionAdapter() {
+			@Override
+			public void widgetSelected(SelectionEvent e) {
+				doFindAll();
+			}
+		});
+
 		replaceButton = new Button(buttonBar, SWT.NONE);
 		replaceButton.setText(Texts.FIND_REPLACE_DIALOG_REPLACE_BUTTON_LABEL);
 		replaceButton.addSelectionListener(defaultSelectionAdapter);
@@ -556,6 +674,7 @@ final class FindReplaceDialog extends Dialog {
 		createDirectionGroup();
 		createOptionsGroup();
 		createFeedbackComposite();
+		createResultsTable();
 		createProgressComposite();
 		createButtonBarComposite();
 
@@ -598,6 +717,41 @@ final class FindReplaceDialog extends Dialog {
 		endOfRun();
 	}
 
+	void doFindAll() {
+		findAllProgress = new FindAllProgress();
+		prepareToRun();
+		progressBarStopButton.setText(Texts.FIND_REPLACE_DIALOG_STOP_SEARCHING_BUTTON_LABEL);
+		String findLiteral = findGroup.textCombo.getText();
+
+		if (findLiteral.length() > 0) {
+			try {
+				Matches matches = myTarget.findAll(findLiteral, findGroup.hexRadioButton.getSelection(),
+						ignoreCaseCheckBox.getSelection(), findAllProgress);
+				if (myTarget.getMatches() != matches) {
+					sendErrorMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_MATCHES_INVALIDATED,
+							findLiteral));
+				} else if (matches.size() > 0) {
+					sendInfoMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_MANY_FOUND,
+							NumberUtility.getDecimalString(matches.size()), findLiteral));
+				} else {
+					sendErrorMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_NOT_FOUND, findLiteral));
+				}
+				if (!resultsTable.isDisposed()) {
+					refreshResultsTable();
+				}
+			} catch (NumberFormatException ex) {
+				sendErrorMessage(ex.getMessage());
+			} catch (IOException ex) {
+				sendErrorMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_ERROR_WHILE_SEARCHING,
+						findLiteral, ex.getLocalizedMessage()));
+			}
+		} else {
+			sendErrorMessage(Texts.FIND_REPLACE_DIALOG_MESSAGE_SPECIFY_VALUE_TO_FIND);
+		}
+		findAllProgress = null;
+		endOfRun();
+	}
+
 	void doReplace() {
 		replace();
 		doFind();
@@ -648,6 +802,7 @@ final class FindReplaceDialog extends Dialog {
 		ignoreCaseCheckBox.setEnabled(!searching);
 
 		findButton.setEnabled(!searching);
+		findAllButton.setEnabled(!searching);
 		replaceButton.setEnabled(!searching);
 		replaceAllButton.setEnabled(!searching);
 
@@ -662,6 +817,7 @@ final class FindReplaceDialog extends Dialog {
 			selectionLength = myTarget.getSelection().getLength();
 		}
 		findButton.setEnabled(somethingToFind);
+		findAllButton.setEnabled(somethingToFind);
 		replaceButton.setEnabled(selectionLength > 0L && somethingToFind);
 		replaceAllButton.setEnabled(somethingToFind);
 	}
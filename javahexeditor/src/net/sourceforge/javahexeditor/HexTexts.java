@@ -30,6 +30,8 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
 import org.eclipse.swt.custom.StyledText;
@@ -68,7 +70,9 @@ import org.eclipse.swt.widgets.ScrollBar;
 import org.eclipse.swt.widgets.Text;
 
 import net.sourceforge.javahexeditor.BinaryContent.RangeSelection;
+import net.sourceforge.javahexeditor.BinaryContentComparer.Difference;
 import net.sourceforge.javahexeditor.BinaryContentFinder.Match;
+import net.sourceforge.javahexeditor.BinaryContentFinder.Matches;
 import net.sourceforge.javahexeditor.common.ByteArrayUtility;
 import net.sourceforge.javahexeditor.common.SWTUtility;
 import net.sourceforge.javahexeditor.common.TextUtility;
@@ -132,18 +136,26 @@ public final class HexTexts extends Composite {
 	boolean myCaretStickToStart = false; // stick to end
 	BinaryContentClipboard myClipboard;
 	BinaryContent myContent;
+	private int myDifferenceIndex = -1;
+	private BinaryContentComparer.Differences myDifferences;
+	private boolean myDifferencesLeft;
 	BinaryContentFinder myFinder;
 	boolean myInserting = false;
 	private KeyListener myKeyAdapter = new MyKeyAdapter();
 	int myLastFocusedTextArea = -1; // 1 or 2;
 	private long myLastLocationPosition = -1L;
 	private List<SelectionListener> myLongSelectionListeners;
+	private Matches myMatches;
 	private long myPreviousFindEnd = -1;
 	private boolean myPreviousFindIgnoredCase = false;
 	private String myPreviousFindString;
 	private boolean myPreviousFindStringWasHex = false;
 	private int myPreviousLine = -1;
 	private long myPreviousRedrawStart = -1;
+	// content changes since the last redraw, end is Long.MAX_VALUE when bytes moved
+	private long myModifiedStart = -1L;
+	private long myModifiedEnd = -1L;
+	private final MyRangeModifyListener myRangeModifyListener = new MyRangeModifyListener();
 	long myStart = 0L;
 	long myTextAreasStart = 0L;
 	long myEnd = 0L;
@@ -510,7 +522,7 @@ public final class HexTexts extends Composite {
 					Runnable delayed = new Runnable() {
 						@Override
 						public void run() {
-							redrawTextAreas(true);
+							redrawModifiedLines();
 							runnableEnd();
 						}
 					};
@@ -549,6 +561,57 @@ public final class HexTexts extends Composite {
 		}
 	}
 
+	private final class MyFindAllRunnable implements Runnable {
+		private final BinaryContentSnapshot snapshot;
+		private final Matches matches;
+		private final IProgressMonitor monitor;
+		private IOException exception;
+
+		public MyFindAllRunnable(Matches matches, IProgressMonitor monitor) {
+			snapshot = myContent.snapshot();
+			this.matches = matches;
+			this.monitor = monitor;
+		}
+
+		@Override
+		public void run() {
+			try {
+				myFinder.findAll(snapshot, matches, monitor);
+			} catch (IOException ex) {
+				exception = ex;
+			} catch (OperationCanceledException ex) {
+				// keep the matches found so far
+			}
+		}
+
+		public IOException getException() {
+			return exception;
+		}
+	}
+
+	private final class MyRangeModifyListener implements BinaryContent.RangeModifyListener {
+		@Override
+		public void modified(long position, long removed, long inserted) {
+			// an overwrite changes its own bytes only, the other changes move the
+			// bytes up to the end of the content
+			long end = removed == inserted ? position + inserted : Long.MAX_VALUE;
+			if (myModifiedStart < 0L || position < myModifiedStart) {
+				myModifiedStart = position;
+			}
+			myModifiedEnd = Math.max(myModifiedEnd, end);
+
+			// the positions of the matches are no longer valid, those of the
+			// differences only if bytes have moved
+			if (myMatches != null) {
+				myMatches = null;
+				redrawTextAreas(true);
+			}
+			if (removed != inserted) {
+				myDifferences = null;
+			}
+		}
+	}
+
 	/**
 	 * Create a binary text editor
 	 *
@@ -852,6 +915,9 @@ public final class HexTexts extends Composite {
 			@Override
 			public void widgetDisposed(org.eclipse.swt.events.DisposeEvent e) {
 				if (myContent != null) {
+					// closing abandons the unsaved changes, only a crash leaves
+					// them in the session
+					myContent.discardSession();
 					myContent.dispose();
 				}
 			}
@@ -1066,9 +1132,8 @@ public final class HexTexts extends Composite {
 				redrawTextAreas(false);
 				if (myInserting) {
 					updateScrollBar();
-					redrawTextAreas(true);
 				}
-				refreshSelections();
+				redrawModifiedLines();
 				runnableEnd();
 			}
 		};
@@ -1249,6 +1314,88 @@ public final class HexTexts extends Composite {
 		return result;
 	}
 
+	/**
+	 * Finds all matches of a literal in the background and highlights them. The
+	 * matches can be navigated with {@link #selectMatch(int)} and keep the
+	 * positions at the time of the search. They are cleared when the content is
+	 * replaced.
+	 *
+	 * @param findString
+	 *            the literal to find
+	 * @param isHexString
+	 *            consider the literal as an hex string, see
+	 *            {@link #findAndSelect(String, boolean, boolean, boolean)}
+	 * @param ignoreCase
+	 *            match upper case with lower case characters
+	 * @param monitor
+	 *            receives the progress of the search, may be <code>null</code>
+	 * @return the matches found, also when the search has been stopped, not
+	 *         <code>null</code>
+	 * @throws IOException
+	 *             if a file that backs the content cannot be read
+	 */
+	public Matches findAll(String findString, boolean isHexString, boolean ignoreCase, IProgressMonitor monitor)
+			throws NumberFormatException, IOException {
+		if (findString == null) {
+			throw new IllegalArgumentException("Parameter 'findString' must not be null.");
+		}
+
+		// the next find starts with a new finder
+		myPreviousFindString = null;
+		myFinder = createFinder(findString, isHexString, ignoreCase);
+		Matches matches = new Matches();
+		myMatches = matches;
+		MyFindAllRunnable findAllRunnable = new MyFindAllRunnable(matches, monitor);
+		SWTUtility.blockUntilFinished(findAllRunnable);
+		redrawTextAreas(true);
+		if (findAllRunnable.getException() != null) {
+			throw findAllRunnable.getException();
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Gets the differences set with
+	 * {@link #setDifferences(BinaryContentComparer.Differences, boolean)}. They
+	 * are dropped when bytes are inserted or deleted.
+	 *
+	 * @return the differences or <code>null</code>
+	 */
+	public BinaryContentComparer.Differences getDifferences() {
+		return myDifferences;
+	}
+
+	/**
+	 * Gets the matches of the last {@link #findAll} call. They are dropped when
+	 * the content is modified, since their positions are no longer valid. A
+	 * SWT.Modify event is sent after the modification.
+	 *
+	 * @return the matches or <code>null</code>
+	 */
+	public Matches getMatches() {
+		return myMatches;
+	}
+
+	/**
+	 * Selects a match of the last {@link #findAll} call.
+	 *
+	 * @param index
+	 *            the index of the match
+	 * @return whether there is such a match
+	 */
+	public boolean selectMatch(int index) {
+		if (myMatches == null || index < 0 || index >= myMatches.size()) {
+			return false;
+		}
+
+		Match match = myMatches.get(index);
+		myCaretStickToStart = false;
+		setSelection(match.getStartPosition(), match.getEndPosition());
+
+		return true;
+	}
+
 	// Used by "find" and by "replace".
 	private Match findAndSelectInternal(String findString, boolean isHexString, boolean searchForward,
 			boolean ignoreCase, boolean updateGui) throws NumberFormatException {
@@ -1316,9 +1463,41 @@ public final class HexTexts extends Composite {
 
 	private void getHighlightRangesInScreen(long start, int length) {
 		highlightRangesInScreen.clear();
+		List<Long> ranges = new ArrayList<Long>();
+		if (myMatches != null) {
+			myMatches.getRanges(start, start + length, ranges);
+		}
+		long location = -1L;
 		if (myLastLocationPosition >= start && myLastLocationPosition < start + length) {
-			highlightRangesInScreen.add(Integer.valueOf((int) (myLastLocationPosition - myTextAreasStart)));
-			highlightRangesInScreen.add(Integer.valueOf(1));
+			location = myLastLocationPosition;
+		}
+
+		// the location is merged with the ranges of the matches it touches
+		int i = 0;
+		while (i < ranges.size() || location >= 0L) {
+			int rangeStart;
+			int rangeEnd;
+			if (location >= 0L && (i == ranges.size() || location < ranges.get(i).longValue())) {
+				rangeStart = (int) (location - myTextAreasStart);
+				rangeEnd = rangeStart + 1;
+				location = -1L;
+			} else {
+				rangeStart = (int) (ranges.get(i).longValue() - myTextAreasStart);
+				rangeEnd = rangeStart + ranges.get(i + 1).intValue();
+				i += 2;
+			}
+			int size = highlightRangesInScreen.size();
+			if (size > 0) {
+				int previousStart = highlightRangesInScreen.get(size - 2).intValue();
+				int previousEnd = previousStart + highlightRangesInScreen.get(size - 1).intValue();
+				if (previousEnd >= rangeStart) {
+					highlightRangesInScreen.set(size - 1,
+							Integer.valueOf(Math.max(previousEnd, rangeEnd) - previousStart));
+					continue;
+				}
+			}
+			highlightRangesInScreen.add(Integer.valueOf(rangeStart));
+			highlightRangesInScreen.add(Integer.valueOf(rangeEnd - rangeStart));
 		}
 	}
 
@@ -1362,6 +1541,20 @@ public final class HexTexts extends Composite {
 		return oldPos;
 	}
 
+	private BinaryContentFinder createFinder(String findString, boolean isHexString, boolean ignoreCase)
+			throws NumberFormatException {
+		if (isHexString) {
+			byte[] byteArray = ByteArrayUtility.parseString(findString);
+			return new BinaryContentFinder(byteArray, myContent);
+		}
+
+		BinaryContentFinder result = new BinaryContentFinder(findString, myContent);
+		if (ignoreCase) {
+			result.setCaseSensitive(false);
+		}
+		return result;
+	}
+
 	/**
 	 * 
 	 * @param findString
@@ -1382,15 +1575,7 @@ public final class HexTexts extends Composite {
 			myPreviousFindStringWasHex = isHexString;
 			myPreviousFindIgnoredCase = ignoreCase;
 
-			if (isHexString) {
-				byte[] byteArray = ByteArrayUtility.parseString(findString);
-				myFinder = new BinaryContentFinder(byteArray, myContent);
-			} else {
-				myFinder = new BinaryContentFinder(findString, myContent);
-				if (ignoreCase) {
-					myFinder.setCaseSensitive(false);
-				}
-			}
+			myFinder = createFinder(findString, isHexString, ignoreCase);
 			myFinder.setNewStart(getCaretPos());
 		}
 		if (myPreviousFindEnd != getCaretPos()) {
@@ -1582,7 +1767,6 @@ public final class HexTexts extends Composite {
 		long total = myClipboard.getContents(myContent, caretPos, myInserting);
 		setStartAndEnd(caretPos, caretPos + total);
 		myCaretStickToStart = false;
-		redrawTextAreas(true);
 		restoreStateAfterModify();
 	}
 
@@ -1657,6 +1841,10 @@ public final class HexTexts extends Composite {
 			}
 		}
 		myPreviousRedrawStart = myTextAreasStart;
+		if (mode == SET_TEXT) {
+			myModifiedStart = -1L;
+			myModifiedEnd = -1L;
+		}
 
 		StringBuilder newText = cookAddresses(newLinesStart, linesShifted * myBytesPerLine);
 
@@ -1677,6 +1865,73 @@ public final class HexTexts extends Composite {
 		refreshCaretsPosition();
 	}
 
+	/**
+	 * Redraws the lines on screen with the content changes since the last redraw.
+	 * Changes off screen are skipped unless they moved the bytes on screen, and
+	 * everything is redrawn when the screen has scrolled.
+	 */
+	private void redrawModifiedLines() {
+		if (myContent == null || styledText1.isDisposed()) {
+			return;
+		}
+
+		long screenEnd = myTextAreasStart + myBytesPerLine * numberOfLines;
+		if (myTextAreasStart != myPreviousRedrawStart
+				|| myModifiedEnd == Long.MAX_VALUE && myModifiedStart < screenEnd) {
+			redrawTextAreas(true);
+			return;
+		}
+
+		long start = Math.max(myModifiedStart, myTextAreasStart);
+		long end = Math.min(myModifiedEnd, screenEnd);
+		myModifiedStart = -1L;
+		myModifiedEnd = -1L;
+		if (start < end) {
+			// whole lines, as the highlighted ranges may start before the change
+			start -= (start - myTextAreasStart) % myBytesPerLine;
+			long endInLine = (end - myTextAreasStart) % myBytesPerLine;
+			if (endInLine > 0L) {
+				end = Math.min(screenEnd, end + myBytesPerLine - endInLine);
+			}
+			ArrayList<Long> changeRanges = new ArrayList<Long>();
+			int actuallyRead = 0;
+			try {
+				actuallyRead = myContent.get(ByteBuffer.wrap(tmpRawBuffer, 0, (int) (end - start)), changeRanges,
+						start);
+			} catch (IOException e) {
+				actuallyRead = 0;
+			}
+			int offset = (int) (start - myTextAreasStart);
+			styledText1.replaceTextRange(offset * 3, actuallyRead * 3, cookTexts(true, actuallyRead).toString());
+			styledText2.replaceTextRange(offset, actuallyRead, cookTexts(false, actuallyRead).toString());
+			getHighlightRangesInScreen(start, actuallyRead);
+			List<StyleRange> viewRanges = mergeRanges(changeRanges, highlightRangesInScreen);
+			List<StyleRange> charRanges = new ArrayList<StyleRange>();
+			List<StyleRange> hexRanges = new ArrayList<StyleRange>();
+			if (viewRanges != null) {
+				for (StyleRange styleRange : viewRanges) {
+					// matches may start or end on the lines around
+					int rangeStart = Math.max(offset, styleRange.start);
+					int rangeEnd = Math.min(offset + actuallyRead, styleRange.start + styleRange.length);
+					if (rangeStart < rangeEnd) {
+						styleRange.start = rangeStart;
+						styleRange.length = rangeEnd - rangeStart;
+						charRanges.add(styleRange);
+						styleRange = (StyleRange) styleRange.clone();
+						styleRange.start *= 3;
+						styleRange.length *= 3;
+						hexRanges.add(styleRange);
+					}
+				}
+			}
+			styledText2.replaceStyleRanges(offset, actuallyRead, charRanges.toArray(new StyleRange[charRanges.size()]));
+			styledText1.replaceStyleRanges(offset * 3, actuallyRead * 3,
+					hexRanges.toArray(new StyleRange[hexRanges.size()]));
+		}
+		refreshSelections();
+		refreshCaretsPosition();
+	}
+
 	void refreshCaretsPosition() {
 		drawUnfocusedCaret(false);
 		long caretLocation = getCaretPos() - myTextAreasStart;
@@ -1799,7 +2054,6 @@ public final class HexTexts extends Composite {
 		}
 		myEnd = myStart + newSelection.limit() - newSelection.position();
 		myCaretStickToStart = false;
-		redrawTextAreas(true);
 		restoreStateAfterModify();
 	}
 
@@ -1839,20 +2093,28 @@ public final class HexTexts extends Composite {
 		long replacements = 0;
 		long lastStartPosition = 0;
 		stopSearching = false;
-		while (!stopSearching) {
+		// all replacements are undone at once
+		myContent.beginBatch();
+		try {
+			while (!stopSearching) {
 
-			Match match = findAndSelectInternal(findString, isFindHexString, searchForward, ignoreCase, false);
-			if (match.isFound()) {
-				replacements++;
-				lastStartPosition = match.getStartPosition();
-				replace(replaceString, isReplaceHexString);
-			} else {
-				stopSearching = true;
-				if (match.getException() != null) {
-					throw match.getException();
+				Match match = findAndSelectInternal(findString, isFindHexString, searchForward, ignoreCase, false);
+				if (match.isFound()) {
+					replacements++;
+					lastStartPosition = match.getStartPosition();
+					replace(replaceString, isReplaceHexString);
+				} else {
+					stopSearching = true;
+					if (match.getException() != null) {
+						throw match.getException();
+					}
 				}
 			}
+		} finally {
+			myContent.endBatch();
 		}
+		// the changes of a batch are only reported at its end
+		redrawModifiedLines();
 		if (replacements > 0) {
 			RangeSelection selection = getSelection();
 			setSelection(selection.start, selection.end);
@@ -1863,7 +2125,7 @@ public final class HexTexts extends Composite {
 
 	private void restoreStateAfterModify() {
 		ensureCaretIsVisible();
-		redrawTextAreas(true);
+		redrawModifiedLines();
 		updateScrollBar();
 
 		notifyListeners(SWT.Modify, null);
@@ -1909,6 +2171,71 @@ public final class HexTexts extends Composite {
 		showMark(start);
 	}
 
+	/**
+	 * Selects the next difference set with
+	 * {@link #setDifferences(BinaryContentComparer.Differences, boolean)}. It is
+	 * the one after the selected difference, or the first one that starts at or
+	 * after the selection.
+	 *
+	 * @return whether there is a next difference
+	 */
+	public boolean selectNextDifference() {
+		if (myDifferences == null) {
+			return false;
+		}
+
+		int index = isDifferenceSelected() ? myDifferenceIndex + 1
+				: myDifferences.findNext(myStart, myDifferencesLeft);
+		return selectDifference(index);
+	}
+
+	/**
+	 * Selects the previous difference set with
+	 * {@link #setDifferences(BinaryContentComparer.Differences, boolean)}. It is
+	 * the one before the selected difference, or the last one that starts
+	 * before the selection.
+	 *
+	 * @return whether there is a previous difference
+	 */
+	public boolean selectPreviousDifference() {
+		if (myDifferences == null) {
+			return false;
+		}
+
+		int index = isDifferenceSelected() ? myDifferenceIndex - 1
+				: myDifferences.findPrevious(myStart, myDifferencesLeft);
+		return selectDifference(index);
+	}
+
+	private boolean isDifferenceSelected() {
+		if (myDifferenceIndex < 0 || myDifferenceIndex >= myDifferences.size()) {
+			return false;
+		}
+
+		Difference difference = myDifferences.get(myDifferenceIndex);
+		if (myDifferencesLeft) {
+			return myStart == difference.getLeftStart() && myEnd == difference.getLeftEnd();
+		}
+		return myStart == difference.getRightStart() && myEnd == difference.getRightEnd();
+	}
+
+	private boolean selectDifference(int index) {
+		if (index < 0 || index >= myDifferences.size()) {
+			return false;
+		}
+
+		myDifferenceIndex = index;
+		Difference difference = myDifferences.get(index);
+		myCaretStickToStart = false;
+		if (myDifferencesLeft) {
+			setSelection(difference.getLeftStart(), difference.getLeftEnd());
+		} else {
+			setSelection(difference.getRightStart(), difference.getRightEnd());
+		}
+
+		return true;
+	}
+
 	void select(long start, long end) {
 		myUpANibble = 0;
 		boolean selection = (myStart != myEnd);
@@ -1962,12 +2289,17 @@ public final class HexTexts extends Composite {
 	public void setContentProvider(BinaryContent newContent) {
 		boolean firstContent = (myContent == null);
 		if (myContent != null && myContent != newContent) {
+			myContent.removeRangeModifyListener(myRangeModifyListener);
 			myContent.dispose();
 		}
 		myContent = newContent;
 		myFinder = null;
+		myDifferences = null;
+		myMatches = null;
 		if (myContent != null) {
 			myContent.setActionsHistory();
+			myContent.removeRangeModifyListener(myRangeModifyListener);
+			myContent.addRangeModifyListener(myRangeModifyListener);
 		}
 
 		if (firstContent || myEnd > myContent.length() || myTextAreasStart >= myContent.length()) {
@@ -1985,6 +2317,24 @@ public final class HexTexts extends Composite {
 		notifyListeners(SWT.Modify, null);
 	}
 
+	/**
+	 * Sets the differences to navigate with {@link #selectNextDifference()} and
+	 * {@link #selectPreviousDifference()}. A comparison can still be adding to
+	 * them. They are cleared when the content is replaced or bytes are inserted
+	 * or deleted.
+	 *
+	 * @param differences
+	 *            the differences or <code>null</code>
+	 * @param left
+	 *            <code>true</code> if this editor shows the left content of the
+	 *            comparison
+	 */
+	public void setDifferences(BinaryContentComparer.Differences differences, boolean left) {
+		myDifferences = differences;
+		myDifferencesLeft = left;
+		myDifferenceIndex = -1;
+	}
+
 	/**
 	 * Causes the receiver to have the keyboard focus. Within Eclipse, never call
 	 * setFocus() before the workbench has called
@@ -2096,8 +2446,8 @@ public final class HexTexts extends Composite {
 	}
 
 	/**
-	 * Stop findAndSelect() or replaceAll() calls. Long running searches can be
-	 * stopped from another thread.
+	 * Stop findAndSelect(), findAll() or replaceAll() calls. Long running
+	 * searches can be stopped from another thread.
 	 */
 	public void stopSearching() {
 		stopSearching = true;
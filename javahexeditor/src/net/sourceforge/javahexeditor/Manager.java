@@ -28,7 +28,9 @@ import java.util.List;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyledText;
 import org.eclipse.swt.events.DisposeEvent;
@@ -47,6 +49,8 @@ import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
 
 import net.sourceforge.javahexeditor.BinaryContent.RangeSelection;
+import net.sourceforge.javahexeditor.common.Log;
+import net.sourceforge.javahexeditor.common.NumberUtility;
 import net.sourceforge.javahexeditor.common.ResourceUtility;
 import net.sourceforge.javahexeditor.common.SWTUtility;
 import net.sourceforge.javahexeditor.common.TextUtility;
@@ -69,6 +73,9 @@ public final class Manager {
 	private static final String OS_PATH = "net/sourceforge/javahexeditor/Manager.os";
 	private static final String VERSION_PATH = "net/sourceforge/javahexeditor/Manager.version";
 
+	// Reads the files of all editors when memory mapping is off, on Windows
+	private static final BinaryContentPageCache PAGE_CACHE = new BinaryContentPageCache();
+
 	// Logic components
 	private FileToucher fileToucher;
 
@@ -87,6 +94,7 @@ public final class Manager {
 	private Composite textsParent;
 	HexTexts hexTexts;
 	private StatusLine statusLine;
+	private long statusLineSize = -1L; // content size shown in the status line
 
 	private FindReplaceDialog findDialog;
 	private GoToDialog goToDialog;
@@ -390,6 +398,114 @@ public final class Manager {
 		}
 	}
 
+	/**
+	 * Compares the content with a file chosen by the user. The differences are
+	 * then selected with {@link #doSelectNextDifference()} and
+	 * {@link #doSelectPreviousDifference()}.
+	 */
+	public void doCompare() {
+		if (hexTexts == null) {
+			return;
+		}
+
+		FileDialog fileDialog = createFileDialog(shell, SWT.OPEN);
+		fileDialog.setText(Texts.MANAGER_COMPARE_DIALOG_TITLE);
+		String filePath = fileDialog.open();
+		if (filePath == null) {
+			return;
+		}
+
+		// compare in a worker thread on snapshots, the editor does not accept
+		// changes in the meantime, so the differences stay valid
+		File file = new File(filePath);
+		final BinaryContentComparer.Differences differences = new BinaryContentComparer.Differences();
+		final IOException[] exception = new IOException[1];
+		BinaryContent other = null;
+		hexTexts.setEnabled(false);
+		try {
+			other = new BinaryContent(file);
+			final BinaryContentComparer comparer = new BinaryContentComparer(content, other);
+			SWTUtility.blockUntilFinished(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						comparer.compare(differences, null);
+					} catch (IOException ex) {
+						exception[0] = ex;
+					}
+				}
+			});
+		} catch (IOException ex) {
+			exception[0] = ex;
+		} finally {
+			if (other != null) {
+				other.dispose();
+			}
+			if (!hexTexts.isDisposed()) {
+				hexTexts.setEnabled(true);
+			}
+		}
+		if (hexTexts.isDisposed()) {
+			return;
+		}
+		if (exception[0] != null) {
+			SWTUtility.showErrorMessage(shell, Texts.MANAGER_COMPARE_DIALOG_TITLE,
+					Texts.MANAGER_COMPARE_MESSAGE_CANNOT_COMPARE, file.getAbsolutePath(), exception[0].getMessage());
+			return;
+		}
+
+		hexTexts.setDifferences(differences, true);
+		if (differences.size() == 0) {
+			SWTUtility.showMessage(shell, SWT.ICON_INFORMATION | SWT.OK, Texts.MANAGER_COMPARE_DIALOG_TITLE,
+					Texts.MANAGER_COMPARE_MESSAGE_NO_DIFFERENCES, file.getAbsolutePath());
+		} else {
+			SWTUtility.showMessage(shell, SWT.ICON_INFORMATION | SWT.OK, Texts.MANAGER_COMPARE_DIALOG_TITLE,
+					Texts.MANAGER_COMPARE_MESSAGE_DIFFERENCES, NumberUtility.getDecimalString(differences.size()),
+					file.getAbsolutePath());
+			hexTexts.setFocus();
+			if (!hexTexts.selectNextDifference()) {
+				hexTexts.selectPreviousDifference();
+			}
+		}
+	}
+
+	/**
+	 * Determines if differences of a comparison can be selected.
+	 *
+	 * @return <code>true</code> if the last comparison found differences that
+	 *         are still valid
+	 */
+	public boolean hasDifferences() {
+		if (hexTexts == null) {
+			return false;
+		}
+
+		BinaryContentComparer.Differences differences = hexTexts.getDifferences();
+		return differences != null && differences.size() > 0;
+	}
+
+	/**
+	 * Selects the next difference found by {@link #doCompare()}.
+	 */
+	public void doSelectNextDifference() {
+		if (hexTexts == null) {
+			return;
+		}
+
+		hexTexts.selectNextDifference();
+	}
+
+	/**
+	 * Selects the previous difference found by {@link #doCompare()}.
+	 */
+	public void doSelectPreviousDifference() {
+		if (hexTexts == null) {
+			return;
+		}
+
+		hexTexts.selectPreviousDifference();
+	}
+
 	public void doOpen(File forceThisFile, boolean createNewFile, String charset) throws CoreException {
 		String filePath = "";
 		if (forceThisFile == null && !createNewFile) {
@@ -443,14 +559,45 @@ public final class Manager {
 	 *             If the operation fails
 	 */
 	public void doSaveSelectionAs(File file) throws IOException {
-		if (isFileBeingRead(file)) {
+		doSaveSelectionAs(file, null);
+	}
+
+	/**
+	 * Perform save-selected-as action on selected data. May be called from a
+	 * thread other than the user interface thread.
+	 *
+	 * @param file
+	 *            The file, not <code>null</code>.
+	 * @param monitor
+	 *            The progress monitor or <code>null</code>.
+	 *
+	 * @throws IOException
+	 *             If the operation fails
+	 * @throws OperationCanceledException
+	 *             If the monitor has been canceled, the file is then untouched
+	 */
+	public void doSaveSelectionAs(File file, IProgressMonitor monitor) throws IOException {
+		// the content may only be used in the user interface thread
+		final File targetFile = file;
+		final RangeSelection[] selection = new RangeSelection[1];
+		final BinaryContentSnapshot[] snapshot = new BinaryContentSnapshot[1];
+		runInDisplayThread(new Runnable() {
+			@Override
+			public void run() {
+				if (!isFileBeingRead(targetFile)) {
+					selection[0] = hexTexts.getSelection();
+					content.endChanges();
+					snapshot[0] = content.snapshot();
+				}
+			}
+		});
+		if (snapshot[0] == null) {
 			throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE_IN_USE,
 					file.getAbsolutePath()));
 		}
-
-		RangeSelection selection = hexTexts.getSelection();
+		SubMonitor progress = SubMonitor.convert(monitor, Texts.EDITOR_MESSAGE_SAVING_FILE_PLEASE_WAIT, 1);
 		try {
-			content.get(file, selection.start, selection.getLength());
+			snapshot[0].get(file, selection[0].start, selection[0].getLength(), progress.split(1));
 		} catch (IOException ex) {
 			throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_SAVE_FILE,
 					file.getAbsolutePath(), ex.getMessage()));
@@ -578,12 +725,16 @@ public final class Manager {
 	 *             if the input file cannot be read
 	 */
 	public void openFile(File contentFile, String charset) throws CoreException {
+		if (content != null) {
+			// the unsaved changes of the previous file have been abandoned
+			content.discardSession();
+		}
 		this.contentFile = contentFile;
 		if (contentFile == null) {
 			content = new BinaryContent();
 		} else {
 			try {
-				content = new BinaryContent(contentFile);
+				content = openContent(contentFile, true);
 			} catch (IOException ex) {
 				this.contentFile = null;
 				throw new CoreException(new Status(IStatus.ERROR, ID,
@@ -602,6 +753,45 @@ public final class Manager {
 
 	}
 
+	/*
+	 * Opens a file with a session that journals the edits next to it. If a
+	 * previous session has not been closed, the user decides whether to restore
+	 * its unsaved changes. Without a session, for example in a read-only folder,
+	 * the edits are not journaled.
+	 */
+	private BinaryContent openContent(File file, boolean askToRestore) throws IOException {
+		File sessionFile = BinaryContent.getSessionFile(file);
+		BinaryContent result;
+		try {
+			result = new BinaryContent(file, sessionFile);
+		} catch (IOException ex) {
+			Log.logError("Cannot open session file '{0}'", new Object[] { sessionFile.getAbsolutePath() }, ex);
+			return setPageCache(new BinaryContent(file));
+		}
+		if (result.isDirty() && (!askToRestore || SWTUtility.showMessage(shell, SWT.ICON_QUESTION | SWT.YES | SWT.NO,
+				Texts.MANAGER_OPEN_DIALOG_TITLE_RESTORE_SESSION, Texts.MANAGER_OPEN_DIALOG_MESSAGE_RESTORE_SESSION,
+				file.getAbsolutePath()) != SWT.YES)) {
+			result.discardSession();
+			result.dispose();
+			result = openContent(file, false);
+		}
+
+		return setPageCache(result);
+	}
+
+	/*
+	 * Without memory mapped windows every read of the file goes to the file
+	 * system. The blocks read are then kept in the page cache that all editors
+	 * share, and the blocks that follow are read ahead while scrolling.
+	 */
+	private static BinaryContent setPageCache(BinaryContent result) {
+		if (result.getMappedBytesBudget() == 0L) {
+			result.setPageCache(PAGE_CACHE);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Reuse the status line control from another manager. Useful for multiple open
 	 * editors
@@ -616,9 +806,23 @@ public final class Manager {
 		statusLine = other.statusLine;
 	}
 
+	/*
+	 * Runs a task in the user interface thread and waits until it is finished.
+	 */
+	private void runInDisplayThread(Runnable task) {
+		Display display = hexTexts.getDisplay();
+		if (display.getThread() == Thread.currentThread()) {
+			task.run();
+		} else {
+			display.syncExec(task);
+		}
+	}
+
 	/**
 	 * Perform save-as action currently opened file. 
 	 * When successful, the specified file is the new currently opened file.
+	 * May be called from a thread other than the user interface thread, the
+	 * editor is updated in the user interface thread.
 	 *
 	 * @param file
 	 *            The new file, not <code>null</code>.
@@ -626,30 +830,74 @@ public final class Manager {
 	 *            The progress monitor or <code>null</code>.
 	 * @throws IOException
 	 *             If the operation fails
+	 * @throws OperationCanceledException
+	 *             If the monitor has been canceled, the file is then untouched.
+	 *             When only the modified parts are written back into the
+	 *             file itself, cancellation is honoured before the first byte
+	 *             is written only, that write then runs to its end.
 	 */
 	public void saveAsFile(File file, IProgressMonitor monitor) throws IOException {
 		if (file == null) {
 			throw new IllegalArgumentException("Parameter 'file' must not be null.");
 		}
 
-		if (!file.equals(contentFile) && isFileBeingRead(file)) {
+		// the content may only be used in the user interface thread, the file is
+		// written from a snapshot
+		final File targetFile = file;
+		final BinaryContentSnapshot[] snapshot = new BinaryContentSnapshot[1];
+		final boolean[] inPlace = new boolean[1];
+		runInDisplayThread(new Runnable() {
+			@Override
+			public void run() {
+				if (targetFile.equals(contentFile) || !isFileBeingRead(targetFile)) {
+					content.endChanges();
+					snapshot[0] = content.snapshot();
+					inPlace[0] = targetFile.equals(contentFile) && content.canSaveInPlace(targetFile);
+				}
+			}
+		});
+		if (snapshot[0] == null) {
 			throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE_IN_USE,
 					file.getAbsolutePath()));
 		}
-
+		SubMonitor progress = SubMonitor.convert(monitor, Texts.EDITOR_MESSAGE_SAVING_FILE_PLEASE_WAIT, 100);
 		try {
-			content.get(file);
-			content.dispose();
+			// only the modified parts need to be written if nothing has moved
+			// and nobody else reads the file, the old content is disposed afterwards
+			SubMonitor writeProgress = progress.split(90);
+			if (!inPlace[0] || !snapshot[0].saveInPlace(file, writeProgress)) {
+				snapshot[0].get(file, 0L, snapshot[0].length(), writeProgress);
+			}
 		} catch (IOException ex) {
 			throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_SAVE_FILE,
 					file.getAbsolutePath(), ex.getMessage()));
 		}
+		fileToucher.touchFile(file, progress.split(10));
 
-		content = new BinaryContent(file);
-		contentFile = file;
-		fileToucher.touchFile(contentFile, monitor);
-
-		hexTexts.setContentProvider(content);
+		// the old content releases its session file before the new content of
+		// the same file locks it, both happen in the user interface thread
+		final IOException[] exception = new IOException[1];
+		runInDisplayThread(new Runnable() {
+			@Override
+			public void run() {
+				// the saved changes must not be restored
+				content.discardSession();
+				content.dispose();
+				try {
+					content = openContent(targetFile, false);
+					contentFile = targetFile;
+				} catch (IOException ex) {
+					exception[0] = ex;
+					content = new BinaryContent();
+					contentFile = null;
+				}
+				hexTexts.setContentProvider(content);
+			}
+		});
+		if (exception[0] != null) {
+			throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_READ_FROM_SAVED_FILE,
+					file.getAbsolutePath()), exception[0]);
+		}
 	}
 
 	/**
@@ -677,19 +925,31 @@ public final class Manager {
 	}
 
 	private void updateStatusLine() {
+		statusLineSize = -1L;
+		updateStatusLineAfterModify();
+	}
+
+	/**
+	 * Event handler for updating the status line. Most modify events are caret and
+	 * selection changes, so the size is only updated when it has changed.
+	 */
+	void updateStatusLineAfterModify() {
 		if (statusLine != null) {
 			statusLine.updateInsertMode(hexTexts == null ? true : !hexTexts.isOverwriteMode());
 			if (hexTexts != null && hexTexts.getContent() != null) {
 				long size = hexTexts.getContent().length();
-				statusLine.updatePositionWidth(size);
-				statusLine.updateSizeWidth(size);
+				if (size != statusLineSize) {
+					statusLine.updatePositionWidth(size);
+					statusLine.updateSizeWidth(size);
+					statusLine.updateSize(size);
+					statusLineSize = size;
+				}
 				if (hexTexts.isSelected()) {
 					statusLine.updateSelection(hexTexts.getSelection());
 				} else {
 					statusLine.updatePosition(hexTexts.getCaretPos());
 				}
 				statusLine.updateValue(hexTexts.getActualValue());
-				statusLine.updateSize(size);
 
 			} else {
 				statusLine.updatePositionWidth(0);
@@ -697,6 +957,7 @@ public final class Manager {
 				statusLine.clearPosition();
 				statusLine.clearValue();
 				statusLine.clearSize();
+				statusLineSize = -1L;
 			}
 		}
 	}
@@ -790,11 +1051,4 @@ public final class Manager {
 		updateStatusLine();
 	}
 
-	/**
-	 * Event handler for updating the status line.
-	 */
-	void updateStatusLineAfterModify() {
-		updateStatusLine();
-	}
-
 }
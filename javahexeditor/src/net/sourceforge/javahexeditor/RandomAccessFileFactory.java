@@ -24,18 +24,85 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 /**
  * Central factory to track creation of RandomAccessFile instance.
+ * <p>
+ * Files that are only read, like the files that back a BinaryContent, are
+ * shared. There is one open instance per canonical file, no matter how many
+ * Ranges refer to it. Each {@link #acquireRandomAccessFile(File)} must be
+ * paired with a {@link #releaseRandomAccessFile(RandomAccessFile)}, the file is
+ * closed with the last release. Shared instances must only be read with
+ * positional reads on their channel, as other threads may use them at the
+ * same time.
  *
  * @author Peter Dell
  */
 public final class RandomAccessFileFactory {
 
-	private static final List<RandomAccessFile> instances = new ArrayList<RandomAccessFile>(3);
+	private static final class SharedFile {
+		final File key;
+		final RandomAccessFile file;
+		final Object fileKey;
+		final long lastModified;
+		int references;
+
+		SharedFile(File key, RandomAccessFile file, Object fileKey, long lastModified) {
+			this.key = key;
+			this.file = file;
+			this.fileKey = fileKey;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private static final Set<RandomAccessFile> instances = Collections
+			.newSetFromMap(new IdentityHashMap<RandomAccessFile, Boolean>());
+	private static final Map<File, SharedFile> sharedFiles = new HashMap<File, SharedFile>();
+	private static final Map<RandomAccessFile, SharedFile> sharedInstances = new IdentityHashMap<RandomAccessFile, SharedFile>();
 	private static final boolean debug = false;
 
+	/**
+	 * Gets the shared read-only instance for a file, opening it if required.
+	 * The instance is opened again if the file has been replaced or modified
+	 * since, instances acquired before stay valid.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @return the instance, not <code>null</code>
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public static RandomAccessFile acquireRandomAccessFile(File file) throws IOException {
+		File key = getKey(file);
+		Object fileKey = null;
+		try {
+			fileKey = Files.readAttributes(key.toPath(), BasicFileAttributes.class).fileKey();
+		} catch (IOException ex) {
+			// not supported, rely on the modification time only
+		}
+		long lastModified = key.lastModified();
+		synchronized (instances) {
+			SharedFile sharedFile = sharedFiles.get(key);
+			if (sharedFile != null && (sharedFile.lastModified != lastModified
+					|| fileKey != null && !fileKey.equals(sharedFile.fileKey))) {
+				sharedFiles.remove(key);
+				sharedFile = null;
+			}
+			if (sharedFile == null) {
+				sharedFile = new SharedFile(key, createRandomAccessFile(file, "r"), fileKey, lastModified);
+				sharedFiles.put(key, sharedFile);
+				sharedInstances.put(sharedFile.file, sharedFile);
+			}
+			++sharedFile.references;
+			logContext("Acquired random access file for '" + key.getPath() + "', " + sharedFile.references
+					+ " references");
+			return sharedFile.file;
+		}
+	}
+
 	public static RandomAccessFile createRandomAccessFile(final File file, final String mode)
 			throws FileNotFoundException {
 		RandomAccessFile raf = new RandomAccessFile(file, mode) {
@@ -57,6 +124,101 @@ public final class RandomAccessFileFactory {
 		return raf;
 	}
 
+	/**
+	 * Makes the next {@link #acquireRandomAccessFile(File)} of the file open a
+	 * new instance. Must be called after a file has been written, so no cached
+	 * content of the old instance is used for it. Instances acquired before stay
+	 * valid.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 */
+	public static void detachRandomAccessFile(File file) {
+		File key = getKey(file);
+		synchronized (instances) {
+			sharedFiles.remove(key);
+		}
+	}
+
+	private static File getKey(File file) {
+		try {
+			return file.getCanonicalFile();
+		} catch (IOException ex) {
+			return file.getAbsoluteFile();
+		}
+	}
+
+	/**
+	 * Gets the number of random access files created by this factory that are
+	 * currently open.
+	 *
+	 * @return the number of open files
+	 */
+	public static int getOpenCount() {
+		synchronized (instances) {
+			return instances.size();
+		}
+	}
+
+	/**
+	 * Gets the number of open shared instances.
+	 *
+	 * @return the number of files, including replaced files still in use
+	 */
+	public static int getSharedCount() {
+		synchronized (instances) {
+			return sharedInstances.size();
+		}
+	}
+
+	/**
+	 * Gets the number of references to the current shared instance of a file.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @return the number of acquires not released yet, 0 if the file is not open
+	 */
+	public static int getReferenceCount(File file) {
+		File key = getKey(file);
+		synchronized (instances) {
+			SharedFile sharedFile = sharedFiles.get(key);
+			return sharedFile == null ? 0 : sharedFile.references;
+		}
+	}
+
+	/**
+	 * Tells whether all references to the shared instances of a file, including
+	 * replaced instances still in use, are contained in the given list. Then
+	 * nobody else reads the file through this factory.
+	 *
+	 * @param file
+	 *            the file, not <code>null</code>
+	 * @param references
+	 *            one element per reference held, may contain instances of other
+	 *            files, not <code>null</code>
+	 * @return <code>true</code> if the file is open and referenced only by the
+	 *         given list
+	 */
+	public static boolean isReferencedOnlyBy(File file, List<RandomAccessFile> references) {
+		File key = getKey(file);
+		synchronized (instances) {
+			int total = 0;
+			for (SharedFile sharedFile : sharedInstances.values()) {
+				if (sharedFile.key.equals(key)) {
+					total += sharedFile.references;
+				}
+			}
+			int own = 0;
+			for (RandomAccessFile reference : references) {
+				SharedFile sharedFile = sharedInstances.get(reference);
+				if (sharedFile != null && sharedFile.key.equals(key)) {
+					++own;
+				}
+			}
+			return own > 0 && own == total;
+		}
+	}
+
 	public static void log(String message) {
 		if (debug) {
 			System.out.println("RandomAccessFileFactory: " + message);
@@ -72,4 +234,56 @@ public final class RandomAccessFileFactory {
 			System.err.flush();
 		}
 	}
+
+	/**
+	 * Releases a shared instance. The file is closed when the last reference has
+	 * been released.
+	 *
+	 * @param file
+	 *            an instance returned by {@link #acquireRandomAccessFile(File)}
+	 * @return <code>true</code> if the file has been closed
+	 * @throws IOException
+	 *             if closing the file fails
+	 */
+	public static boolean releaseRandomAccessFile(RandomAccessFile file) throws IOException {
+		SharedFile sharedFile;
+		synchronized (instances) {
+			sharedFile = sharedInstances.get(file);
+			if (sharedFile == null) {
+				throw new IllegalArgumentException("Parameter 'file' is not a shared instance or already closed.");
+			}
+			if (--sharedFile.references > 0) {
+				return false;
+			}
+			sharedInstances.remove(file);
+			if (sharedFiles.get(sharedFile.key) == sharedFile) {
+				sharedFiles.remove(sharedFile.key);
+			}
+		}
+		file.close();
+
+		return true;
+	}
+
+	/**
+	 * Adds a reference to a shared instance, so it stays open until it has been
+	 * released once more.
+	 *
+	 * @param file
+	 *            the instance, not <code>null</code>
+	 * @return <code>true</code> if the reference has been added,
+	 *         <code>false</code> if the instance is not shared or already closed
+	 */
+	public static boolean retainRandomAccessFile(RandomAccessFile file) {
+		synchronized (instances) {
+			SharedFile sharedFile = sharedInstances.get(file);
+			if (sharedFile == null) {
+				return false;
+			}
+			++sharedFile.references;
+			logContext("Retained random access file for '" + sharedFile.key.getPath() + "', "
+					+ sharedFile.references + " references");
+			return true;
+		}
+	}
 }
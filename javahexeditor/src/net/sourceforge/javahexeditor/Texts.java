@@ -46,6 +46,9 @@ public final class Texts extends NLS {
 	public static String EDITOR_TRIM_MENU_ITEM_LABEL;
 	public static String EDITOR_SELECT_BLOCK_MENU_ITEM_LABEL;
 	public static String EDITOR_GO_TO_MENU_ITEM_LABEL;
+	public static String EDITOR_COMPARE_MENU_ITEM_LABEL;
+	public static String EDITOR_NEXT_DIFFERENCE_MENU_ITEM_LABEL;
+	public static String EDITOR_PREVIOUS_DIFFERENCE_MENU_ITEM_LABEL;
 
 	// Find Replace Dialog
 	public static String FIND_REPLACE_DIALOG_TITLE;
@@ -61,14 +64,18 @@ public final class Texts extends NLS {
 	public static String FIND_REPLACE_DIALOG_IGNORE_CASE_CHECKBOX_LABEL;
 
 	public static String FIND_REPLACE_DIALOG_FIND_BUTTON_LABEL;
+	public static String FIND_REPLACE_DIALOG_FIND_ALL_BUTTON_LABEL;
 	public static String FIND_REPLACE_DIALOG_REPLACE_BUTTON_LABEL;
 	public static String FIND_REPLACE_DIALOG_REPLACE_ALL_BUTTON_LABEL;
 
 	public static String FIND_REPLACE_DIALOG_MESSAGE_SPECIFY_VALUE_TO_FIND;
 	public static String FIND_REPLACE_DIALOG_MESSAGE_SEARCHING;
+	public static String FIND_REPLACE_DIALOG_MESSAGE_SEARCHING_FOUND;
 	public static String FIND_REPLACE_DIALOG_STOP_SEARCHING_BUTTON_LABEL;
 
 	public static String FIND_REPLACE_DIALOG_MESSAGE_FOUND;
+	public static String FIND_REPLACE_DIALOG_MESSAGE_MANY_FOUND;
+	public static String FIND_REPLACE_DIALOG_MESSAGE_MATCHES_INVALIDATED;
 	public static String FIND_REPLACE_DIALOG_MESSAGE_NOT_FOUND;
 	public static String FIND_REPLACE_DIALOG_MESSAGE_ERROR_WHILE_SEARCHING;
 
@@ -92,6 +99,13 @@ public final class Texts extends NLS {
 	public static String MANAGER_OPEN_MESSAGE_CANNOT_OPEN_FILE;
 	public static String MANAGER_OPEN_MESSAGE_CANNOT_DETERMINE_CHARSET_OF_FILE;
 	public static String MANAGER_OPEN_TITLE_FILE_FROM_HISTORY;
+	public static String MANAGER_OPEN_DIALOG_TITLE_RESTORE_SESSION;
+	public static String MANAGER_OPEN_DIALOG_MESSAGE_RESTORE_SESSION;
+
+	public static String MANAGER_COMPARE_DIALOG_TITLE;
+	public static String MANAGER_COMPARE_MESSAGE_NO_DIFFERENCES;
+	public static String MANAGER_COMPARE_MESSAGE_DIFFERENCES;
+	public static String MANAGER_COMPARE_MESSAGE_CANNOT_COMPARE;
 
 	public static String MANAGER_SAVE_DIALOG_TITLE_SAVE_SELECTION_AS;
 	public static String MANAGER_SAVE_DIALOG_TITLE_SAVE_AS;
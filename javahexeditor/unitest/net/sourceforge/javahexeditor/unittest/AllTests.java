@@ -74,6 +74,7 @@ public class AllTests {
 		suite.addTestSuite(HexTextsTest.class);
 		suite.addTestSuite(UndoRedoTest.class);
 		suite.addTestSuite(FinderTest.class);
+		suite.addTestSuite(ComparerTest.class);
 		// $JUnit-END$
 		return suite;
 	}
@@ -21,13 +21,30 @@
 package net.sourceforge.javahexeditor.unittest;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import junit.framework.TestCase;
 import net.sourceforge.javahexeditor.BinaryContent;
+import net.sourceforge.javahexeditor.BinaryContentClip;
+import net.sourceforge.javahexeditor.BinaryContentPageCache;
+import net.sourceforge.javahexeditor.BinaryContentSnapshot;
+import net.sourceforge.javahexeditor.RandomAccessFileFactory;
 
 public final class BinaryContentTest extends TestCase {
 
@@ -56,6 +73,204 @@ public final class BinaryContentTest extends TestCase {
 		super.tearDown();
 	}
 
+	public void testArena() {
+		try {
+			byte[] source = new byte[] { 1, 2, 3 };
+			content.insert(ByteBuffer.wrap(source), 10L);
+			content.overwrite(ByteBuffer.wrap(source, 1, 2), 0L);
+			content.insert((byte) 4, 100L);
+			content.insert((byte) 5, 101L);
+			source[0] = 9;
+			data.position(0);
+			assertEquals(8, content.get(data, 8L));
+			assertEquals(1, data.get(2));
+			assertEquals(2, data.get(3));
+			data.clear();
+			assertEquals(8, content.get(data, 0L));
+			assertEquals(3, data.get(1));
+			assertEquals(5L, content.getArenaSize());
+
+			data.clear();
+			content.delete(0L, 1L); // commits the typed in bytes
+			assertEquals(7L, content.getArenaSize());
+			assertEquals(8, content.get(data, 99L));
+			assertEquals(5, data.get(1));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testBatch() {
+		try {
+			final int[] notifications = new int[1];
+			content.setActionsHistory();
+			content.addModifyListener(new BinaryContent.ModifyListener() {
+				@Override
+				public void modified() {
+					++notifications[0];
+				}
+			});
+			content.beginBatch();
+			for (int i = 0; i < 100; ++i) {
+				content.overwrite((byte) 0, 2L * i);
+			}
+			content.beginBatch();
+			content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 250L);
+			content.endBatch();
+			content.delete(0L, 1L);
+			assertFalse(content.canUndo());
+			assertEquals(0, notifications[0]);
+			content.endBatch();
+			assertEquals(1, notifications[0]);
+			assertEquals(258L, content.length());
+			assertEquals(8, content.get(data, 0L));
+			assertEquals(1, data.get(0));
+			assertEquals(0, data.get(1));
+			data.clear();
+			assertEquals(8, content.get(data, 248L));
+			assertEquals(2, data.get(2));
+
+			assertTrue(content.canUndo());
+			long[] interval = content.undo();
+			assertFalse(content.canUndo());
+			assertEquals(0L, interval[0]);
+			assertEquals(250L, interval[1]);
+			assertEquals(2, notifications[0]);
+			ByteBuffer all = ByteBuffer.allocate(256);
+			assertEquals(256, content.get(all, 0L));
+			for (int i = 0; i < 256; ++i) {
+				assertEquals((byte) i, all.get(i));
+			}
+
+			interval = content.redo();
+			assertEquals(0L, interval[0]);
+			assertEquals(252L, interval[1]);
+			assertEquals(258L, content.length());
+			data.clear();
+			assertEquals(8, content.get(data, 248L));
+			assertEquals(2, data.get(2));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testChannel() {
+		try {
+			content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+			content.overwrite((byte) 4, 0L);
+			SeekableByteChannel channel = content.newChannel();
+			content.delete(0L, 100L);
+			assertEquals(259L, channel.size());
+			ByteBuffer all = ByteBuffer.allocate(300);
+			while (channel.read(all) > 0) {
+				// read to the end
+			}
+			assertEquals(259, all.position());
+			assertEquals(4, all.get(0));
+			assertEquals(3, all.get(12));
+			assertEquals(-1, channel.read(all));
+
+			data.clear();
+			channel.position(11L);
+			assertEquals(8, channel.read(data));
+			assertEquals(19L, channel.position());
+			assertEquals(2, data.get(0));
+			try {
+				channel.write(data);
+				fail("NonWritableChannelException expected");
+			} catch (NonWritableChannelException e) {
+				// expected
+			}
+			channel.close();
+			try {
+				channel.read(data);
+				fail("ClosedChannelException expected");
+			} catch (ClosedChannelException e) {
+				// expected
+			}
+
+			InputStream inputStream = content.newInputStream();
+			byte[] bytes = new byte[200];
+			int length = 0;
+			for (int count; (count = inputStream.read(bytes, length, bytes.length - length)) > 0;) {
+				length += count;
+			}
+			inputStream.close();
+			assertEquals(159, length);
+			assertEquals((byte) 97, bytes[0]);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testClip() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			BinaryContent fileContent = new BinaryContent(file);
+			fileContent.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+			BinaryContentClip clip = fileContent.getClip(8L, 8L);
+			fileContent.dispose();
+			assertEquals(8L, clip.length());
+			assertEquals(2, RandomAccessFileFactory.getReferenceCount(file));
+
+			content.setActionsHistory();
+			content.insert(clip, 100L);
+			content.overwrite(clip, 0L);
+			assertEquals(264L, content.length());
+			assertEquals(8, content.get(data, 100L));
+			assertEquals(Arrays.toString(new byte[] { 8, 9, 1, 2, 3, 10, 11, 12 }), Arrays.toString(data.array()));
+			data.clear();
+			assertEquals(8, content.get(data, 0L));
+			assertEquals(Arrays.toString(new byte[] { 8, 9, 1, 2, 3, 10, 11, 12 }), Arrays.toString(data.array()));
+			clip.dispose();
+			assertEquals(4, RandomAccessFileFactory.getReferenceCount(file));
+
+			content.undo();
+			data.clear();
+			assertEquals(8, content.get(data, 0L));
+			assertEquals(7, data.get(7));
+			content.undo();
+			assertEquals(256L, content.length());
+			content.dispose();
+			assertEquals(0, RandomAccessFileFactory.getReferenceCount(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testCompact() {
+		try {
+			content.setActionsHistory();
+			content.setFragmentationThreshold(0);
+			for (int i = 10; i < 110; ++i) {
+				content.overwrite(ByteBuffer.wrap(new byte[] { (byte) (i + 1) }), i);
+			}
+			assertEquals(102, content.getPieceCount());
+
+			content.setFragmentationThreshold(50);
+			content.overwrite(ByteBuffer.wrap(new byte[] { 0 }), 200L);
+			assertEquals(5, content.getPieceCount());
+			ByteBuffer all = ByteBuffer.allocate(256);
+			assertEquals(256, content.get(all, 0L));
+			for (int i = 0; i < 256; ++i) {
+				assertEquals(i == 200 ? 0 : (byte) (i >= 10 && i < 110 ? i + 1 : i), all.get(i));
+			}
+
+			while (content.canUndo()) {
+				content.undo();
+			}
+			all.clear();
+			assertEquals(256, content.get(all, 0L));
+			for (int i = 0; i < 256; ++i) {
+				assertEquals((byte) i, all.get(i));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testCopyManyFileMaps() {
 		try {
 			long length = BinaryContent.mappedFileBufferLength;
@@ -76,6 +291,90 @@ public final class BinaryContentTest extends TestCase {
 		}
 	}
 
+	public void testFill() {
+		try {
+			content.setActionsHistory();
+			long length = 1L << 32;
+			content.insertFill(new byte[] { 0 }, length, 10L);
+			assertEquals(256L + length, content.length());
+			assertEquals(8, content.get(data, 10L + length - 4L));
+			assertEquals(0, data.get(3));
+			assertEquals(10, data.get(4));
+			content.undo();
+			assertEquals(256L, content.length());
+
+			content.overwriteFill(new byte[] { 1, 2, 3 }, 20000L, 100L);
+			assertEquals(20100L, content.length());
+			data.clear();
+			assertEquals(8, content.get(data, 96L));
+			assertEquals(99, data.get(3));
+			assertEquals(1, data.get(4));
+			assertEquals(3, data.get(6));
+			content.delete(101L, 1L);
+
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			assertEquals(20099L, content.get(file, 0L, content.length()));
+			BinaryContent savedContent = new BinaryContent(file);
+			ByteBuffer saved = ByteBuffer.allocate(20099);
+			assertEquals(20099, savedContent.get(saved, 0L));
+			savedContent.dispose();
+			assertEquals(99, saved.get(99));
+			assertEquals(1, saved.get(100));
+			for (int i = 101; i < 20099; ++i) {
+				assertEquals((i + 1 - 100) % 3 + 1, saved.get(i));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testGetFileCanceled() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			NullProgressMonitor monitor = new NullProgressMonitor();
+			monitor.setCanceled(true);
+			try {
+				content.get(file, 0L, content.length(), monitor);
+				fail("OperationCanceledException expected");
+			} catch (OperationCanceledException e) {
+				// expected
+			}
+			assertEquals(0L, file.length());
+			File[] tempFiles = file.getParentFile().listFiles();
+			for (File tempFile : tempFiles) {
+				assertFalse(tempFile.getName().startsWith(file.getName() + '.'));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testGetFilePart() {
+		try {
+			content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+			content.insert(new File(getClass().getResource(AllTests.resourceData).getPath()), 100L);
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			assertEquals(300L, content.get(file, 5L, 300L));
+			assertEquals(300L, file.length());
+
+			BinaryContent savedContent = new BinaryContent(file);
+			ByteBuffer saved = ByteBuffer.allocate(300);
+			assertEquals(300, savedContent.get(saved, 0L));
+			savedContent.dispose();
+			ByteBuffer expected = ByteBuffer.allocate(300);
+			assertEquals(300, content.get(expected, 5L));
+			assertEquals(expected.flip(), saved.flip());
+			assertEquals(1, saved.get(5));
+			assertEquals(0, saved.get(95));
+			assertEquals((byte) 200, saved.get(95 + 200));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testDelete() {
 		try {
 			content.delete(0, 1);
@@ -100,6 +399,110 @@ public final class BinaryContentTest extends TestCase {
 		}
 	}
 
+	/*
+	 * Bytes typed in are kept in a gap buffer until the run ends. Typing at the
+	 * end, the start and the middle of the run moves the gap, more than 64 bytes
+	 * make it grow.
+	 */
+	public void testGapBufferInsert() {
+		try {
+			byte[] expected = getAll(content);
+			long position = 100L;
+			for (int i = 0; i < 200; ++i) {
+				int offset = i % 3 == 0 ? i : i % 3 == 1 ? 0 : i / 2;
+				content.insert((byte) (i + 1), position + offset);
+				expected = insert(expected, (int) position + offset, (byte) (i + 1));
+			}
+			assertEquals(2, content.getPieceCount());
+			assertTrue(Arrays.equals(expected, getAll(content)));
+
+			// bytes typed over extend the run to both sides
+			position = 300L;
+			for (int i = 0; i < 100; ++i) {
+				long overwritten = i % 2 == 0 ? position + i / 2 : position - 1 - i / 2;
+				content.overwrite((byte) i, overwritten);
+				expected[(int) overwritten] = (byte) i;
+			}
+			assertTrue(Arrays.equals(expected, getAll(content)));
+			assertTrue(Arrays.equals(expected, getAll(content.snapshot())));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testGapBufferDelete() {
+		try {
+			byte[] expected = getAll(content);
+			long position = 50L;
+			for (int i = 0; i < 100; ++i) {
+				content.insert((byte) (i + 1), position + i);
+				expected = insert(expected, (int) position + i, (byte) (i + 1));
+			}
+			// the gap is in the middle, the deletes reach across it
+			content.insert((byte) 33, position + 40);
+			expected = insert(expected, (int) position + 40, (byte) 33);
+			content.delete(position + 35, 10L);
+			expected = delete(expected, (int) position + 35, 10);
+			content.delete(position + 35, 1L);
+			expected = delete(expected, (int) position + 35, 1);
+			content.delete(position, 1L);
+			expected = delete(expected, (int) position, 1);
+			content.delete(position + 88, 1L);
+			expected = delete(expected, (int) position + 88, 1);
+			assertTrue(Arrays.equals(expected, getAll(content)));
+
+			// the run continues after the deletes
+			content.insert((byte) 44, position + 35);
+			expected = insert(expected, (int) position + 35, (byte) 44);
+			content.insert((byte) 55, position + 88);
+			expected = insert(expected, (int) position + 88, (byte) 55);
+			assertTrue(Arrays.equals(expected, getAll(content)));
+
+			// deleting the whole run drops it
+			content.delete(position, 90L);
+			expected = delete(expected, (int) position, 90);
+			assertTrue(Arrays.equals(expected, getAll(content)));
+			assertEquals(1, content.getPieceCount());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testGapBufferUndo() {
+		try {
+			content.setActionsHistory();
+			byte[] original = getAll(content);
+			for (int i = 0; i < 70; ++i) {
+				content.insert((byte) (i + 1), 10L + i);
+			}
+			byte[] firstRun = getAll(content);
+			for (int i = 0; i < 70; ++i) {
+				content.insert((byte) (i + 1), 200L + i);
+			}
+			byte[] secondRun = getAll(content);
+			for (int i = 0; i < 20; ++i) {
+				content.overwrite((byte) 7, 300L + i);
+			}
+			byte[] thirdRun = getAll(content);
+
+			content.undo();
+			assertTrue(Arrays.equals(secondRun, getAll(content)));
+			content.undo();
+			assertTrue(Arrays.equals(firstRun, getAll(content)));
+			content.undo();
+			assertTrue(Arrays.equals(original, getAll(content)));
+			assertFalse(content.canUndo());
+
+			content.redo();
+			content.redo();
+			content.redo();
+			assertTrue(Arrays.equals(thirdRun, getAll(content)));
+			assertFalse(content.canRedo());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testInsertByte() {
 		try {
 			content.insert((byte) 13, 256);
@@ -206,6 +609,88 @@ public final class BinaryContentTest extends TestCase {
 	/*
 	 * Test method for overwrite(byte)
 	 */
+	public void testMappedWindows() {
+		try {
+			// windows of 16 bytes, at most three of them mapped
+			content.setMappedWindows(16, 48L);
+			ByteBuffer buffer = ByteBuffer.allocate(256);
+			Random random = new Random(1);
+			for (int i = 0; i < 200; ++i) {
+				int position = random.nextInt(256);
+				buffer.clear();
+				buffer.limit(1 + random.nextInt(40));
+				int count = content.get(buffer, position);
+				assertEquals(Math.min(buffer.limit(), 256 - position), count);
+				for (int j = 0; j < count; ++j) {
+					assertEquals((byte) (position + j), buffer.get(j));
+				}
+				assertTrue(content.getMappedBytes() <= 48L);
+			}
+
+			// reading across all windows evicts the least recently used ones
+			buffer.clear();
+			assertEquals(256, content.get(buffer, 0L));
+			assertEquals((byte) 255, buffer.get(255));
+			assertEquals(48L, content.getMappedBytes());
+
+			content.setMappedBytesBudget(16L);
+			assertEquals(16L, content.getMappedBytes());
+			// a window larger than the budget is read instead of mapped
+			content.setMappedBytesBudget(8L);
+			assertEquals(0L, content.getMappedBytes());
+			data.clear();
+			assertEquals(8, content.get(data, 40L));
+			assertEquals(40, data.get(0));
+			assertEquals(47, data.get(7));
+			assertEquals(0L, content.getMappedBytes());
+			content.setMappedBytesBudget(0L);
+			assertEquals(0L, content.getMappedBytes());
+			data.clear();
+			assertEquals(8, content.get(data, 12L));
+			assertEquals(12, data.get(0));
+			assertEquals(19, data.get(7));
+			assertEquals(0L, content.getMappedBytes());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testMappedWindowsBeyond2GB() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			long large = Integer.MAX_VALUE + 1L;
+			RandomAccessFile sparseFile = new RandomAccessFile(file, "rw");
+			try {
+				sparseFile.setLength(large + 4096L);
+				sparseFile.seek(large - 4L);
+				sparseFile.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+				sparseFile.seek(large + 4095L);
+				sparseFile.write(9);
+			} finally {
+				sparseFile.close();
+			}
+
+			BinaryContent largeContent = new BinaryContent(file);
+			largeContent.setMappedWindows(4096, 8192L);
+			// across the window boundary at 2 GB
+			assertEquals(8, largeContent.get(data, large - 4L));
+			for (int i = 0; i < 8; ++i) {
+				assertEquals(i + 1, data.get(i));
+			}
+			largeContent.insert((byte) 0, 0L);
+			data.clear();
+			assertEquals(2, largeContent.get(data, large + 4095L));
+			assertEquals(0, data.get(0));
+			assertEquals(9, data.get(1));
+			assertEquals(8192L, largeContent.getMappedBytes());
+			largeContent.dispose();
+			file.delete();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testOverwriteByte() {
 		try {
 			assertEquals(8, content.get(data, 5));
@@ -234,6 +719,46 @@ public final class BinaryContentTest extends TestCase {
 		}
 	}
 
+	/*
+	 * Test method for overwrite(byte, int, int, long) on a file inserted in the
+	 * middle of the content
+	 */
+	public void testOverwriteNibbleInInsertedFile() {
+		try {
+			content.insert(new File(getClass().getResource(AllTests.resourceData).getPath()), 100L);
+			content.overwrite((byte) 0x0f, 0, 4, 110L);
+			data.position(0);
+			assertEquals(8, content.get(data, 109L));
+			assertEquals(9, data.get(0));
+			assertEquals((byte) 0xfa, data.get(1));
+			assertEquals(11, data.get(2));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testManyPieces() {
+		try {
+			// reference content: 0..255 with a marker inserted before every byte
+			for (int i = 255; i >= 0; --i) {
+				content.insert(ByteBuffer.wrap(new byte[] { (byte) 0xaa }), i);
+			}
+			content.delete(100, 50);
+			assertEquals(512 - 50, content.length());
+
+			ByteBuffer all = ByteBuffer.allocate(512);
+			assertEquals(512 - 50, content.get(all, 0));
+			for (int i = 0; i < 100; ++i) {
+				assertEquals(i % 2 == 0 ? (byte) 0xaa : (byte) (i / 2), all.get(i));
+			}
+			for (int i = 100; i < 512 - 50; ++i) {
+				assertEquals((i + 50) % 2 == 0 ? (byte) 0xaa : (byte) ((i + 50) / 2), all.get(i));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testOverwriteThenInsert() {
 		try {
 			content.overwrite((byte) 33, 128);
@@ -248,6 +773,369 @@ public final class BinaryContentTest extends TestCase {
 		}
 	}
 
+	public void testPageCache() {
+		try {
+			BinaryContentPageCache pageCache = new BinaryContentPageCache(16, 64L, false);
+			pageCache.setReadAhead(0);
+			content.setPageCache(pageCache);
+			for (int i = 0; i < 256; i += 8) {
+				data.position(0);
+				assertEquals(8, content.get(data, i));
+				assertEquals((byte) i, data.get(0));
+				assertEquals((byte) (i + 7), data.get(7));
+			}
+			assertEquals(16L, pageCache.getMisses());
+			assertEquals(16L, pageCache.getHits());
+
+			// read ahead in the background must not change what is read
+			pageCache = new BinaryContentPageCache(16, 64L, true);
+			content.setPageCache(pageCache);
+			for (int i = 248; i >= 0; i -= 8) {
+				data.position(0);
+				assertEquals(8, content.get(data, i));
+				assertEquals((byte) i, data.get(0));
+				assertEquals((byte) (i + 7), data.get(7));
+			}
+			assertEquals(32L, pageCache.getHits() + pageCache.getMisses());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSaveOverBackingFile() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			BinaryContent fileContent = new BinaryContent(file);
+			fileContent.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0L);
+			fileContent.delete(100L, 10L);
+			assertEquals(249L, fileContent.get(file));
+			fileContent.dispose();
+
+			BinaryContent savedContent = new BinaryContent(file);
+			ByteBuffer saved = ByteBuffer.allocate(249);
+			assertEquals(249, savedContent.get(saved, 0L));
+			savedContent.dispose();
+			assertEquals(1, saved.get(0));
+			assertEquals(0, saved.get(3));
+			assertEquals(96, saved.get(99));
+			assertEquals(107, saved.get(100));
+			assertEquals((byte) 255, saved.get(248));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSaveShortFileName() {
+		try {
+			File folder = File.createTempFile("JavaHexEditor", ".tmp");
+			folder.delete();
+			assertTrue(folder.mkdir());
+			File file = new File(folder, "a");
+			try {
+				assertEquals(content.length(), content.get(file));
+				assertEquals(content.length(), file.length());
+				// the temporary file has replaced the file
+				assertEquals(1, folder.list().length);
+			} finally {
+				file.delete();
+				folder.delete();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSaveInPlace() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			BinaryContent fileContent = new BinaryContent(file);
+			fileContent.overwrite((byte) 13, 3L);
+			// another reader of the file would see the new bytes
+			BinaryContent otherContent = new BinaryContent(file);
+			assertFalse(saveInPlace(fileContent, file));
+			otherContent.dispose();
+			fileContent.overwrite(ByteBuffer.wrap(new byte[] { 1, 2 }), 200L);
+			assertTrue(saveInPlace(fileContent, file));
+			assertFalse(fileContent.isDirty());
+			assertFalse(fileContent.canUndo());
+			assertEquals(256L, file.length());
+			fileContent.insert((byte) 0, 0L);
+			assertFalse(saveInPlace(fileContent, file));
+			fileContent.dispose();
+
+			BinaryContent savedContent = new BinaryContent(file);
+			ByteBuffer saved = ByteBuffer.allocate(256);
+			assertEquals(256, savedContent.get(saved, 0L));
+			savedContent.dispose();
+			for (int i = 0; i < 256; i++) {
+				byte expected = (byte) i;
+				if (i == 3) {
+					expected = 13;
+				} else if (i == 200 || i == 201) {
+					expected = (byte) (i - 199);
+				}
+				assertEquals(expected, saved.get(i));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static byte[] getAll(BinaryContent content) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) content.length());
+		assertEquals(buffer.capacity(), content.get(buffer, 0L));
+		return buffer.array();
+	}
+
+	private static byte[] getAll(BinaryContentSnapshot snapshot) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) snapshot.length());
+		assertEquals(buffer.capacity(), snapshot.get(buffer, 0L));
+		return buffer.array();
+	}
+
+	private static byte[] insert(byte[] bytes, int index, byte value) {
+		byte[] result = new byte[bytes.length + 1];
+		System.arraycopy(bytes, 0, result, 0, index);
+		result[index] = value;
+		System.arraycopy(bytes, index, result, index + 1, bytes.length - index);
+		return result;
+	}
+
+	private static byte[] delete(byte[] bytes, int index, int length) {
+		byte[] result = new byte[bytes.length - length];
+		System.arraycopy(bytes, 0, result, 0, index);
+		System.arraycopy(bytes, index + length, result, index, result.length - index);
+		return result;
+	}
+
+	/*
+	 * Calls the package private BinaryContent.saveInPlace(File), the content has
+	 * to be reopened after it.
+	 */
+	private static boolean saveInPlace(BinaryContent content, File file) throws IOException {
+		try {
+			Method method = BinaryContent.class.getDeclaredMethod("saveInPlace", File.class);
+			method.setAccessible(true);
+			return ((Boolean) method.invoke(content, file)).booleanValue();
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSession() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			File sessionFile = BinaryContent.getSessionFile(file);
+			sessionFile.deleteOnExit();
+			BinaryContent fileContent = new BinaryContent(file, sessionFile);
+			fileContent.setActionsHistory();
+			fileContent.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+			fileContent.overwrite((byte) 13, 3L);
+			fileContent.syncSession();
+			fileContent.dispose();
+			assertTrue(sessionFile.exists());
+
+			BinaryContent restoredContent = new BinaryContent(file, sessionFile);
+			try {
+				new BinaryContent(file, sessionFile);
+				fail("Session file must be locked");
+			} catch (IOException e) {
+				// expected
+			}
+			assertTrue(restoredContent.isDirty());
+			assertEquals(259L, restoredContent.length());
+			assertEquals(8, restoredContent.get(data, 8L));
+			assertEquals(Arrays.toString(new byte[] { 8, 9, 1, 2, 3, 10, 11, 12 }), Arrays.toString(data.array()));
+			data.clear();
+			assertEquals(8, restoredContent.get(data, 0L));
+			assertEquals(13, data.get(3));
+
+			restoredContent.undo();
+			data.clear();
+			assertEquals(8, restoredContent.get(data, 0L));
+			assertEquals(3, data.get(3));
+			restoredContent.undo();
+			assertEquals(256L, restoredContent.length());
+			assertFalse(restoredContent.canUndo());
+			restoredContent.discardSession();
+			restoredContent.dispose();
+			assertFalse(sessionFile.exists());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * Pasted clipboard files are reused, so the session keeps a copy of their bytes
+	 */
+	public void testSessionCopiesTemporaryFiles() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			File pastedFile = File.createTempFile("javahexeditorPasted", ".tmp");
+			pastedFile.deleteOnExit();
+			FileOutputStream stream = new FileOutputStream(pastedFile);
+			stream.write(new byte[] { 1, 2, 3, 4 });
+			stream.close();
+			File sessionFile = BinaryContent.getSessionFile(file);
+			sessionFile.deleteOnExit();
+			BinaryContent fileContent = new BinaryContent(file, sessionFile);
+			fileContent.insert(pastedFile, 10L);
+			fileContent.syncSession();
+			fileContent.dispose();
+
+			stream = new FileOutputStream(pastedFile);
+			stream.write(new byte[] { 5, 6, 7, 8 });
+			stream.close();
+			BinaryContent restoredContent = new BinaryContent(file, sessionFile);
+			assertEquals(260L, restoredContent.length());
+			assertEquals(8, restoredContent.get(data, 8L));
+			assertEquals(Arrays.toString(new byte[] { 8, 9, 1, 2, 3, 4, 10, 11 }), Arrays.toString(data.array()));
+			restoredContent.discardSession();
+			restoredContent.dispose();
+			assertFalse(sessionFile.exists());
+			pastedFile.delete();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSharedFile() {
+		try {
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			content.get(file);
+			BinaryContent fileContent = new BinaryContent(file);
+			for (int i = 0; i < 50; ++i) {
+				fileContent.insert(file, 10L);
+			}
+			BinaryContent otherContent = new BinaryContent(file);
+			assertEquals(52, RandomAccessFileFactory.getReferenceCount(file));
+			ByteBuffer all = ByteBuffer.allocate(256);
+			assertEquals(256, fileContent.get(all, 256L * 20 + 10L));
+			assertEquals(10, all.get(10));
+
+			fileContent.dispose();
+			assertEquals(1, RandomAccessFileFactory.getReferenceCount(file));
+			otherContent.get(file);
+			assertEquals(0, RandomAccessFileFactory.getReferenceCount(file));
+			otherContent.dispose();
+			assertEquals(0, RandomAccessFileFactory.getReferenceCount(file));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSpill() {
+		try {
+			content.setActionsHistory();
+			content.setSpillThreshold(0L);
+			content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+			content.overwrite((byte) 4, 0L);
+			content.overwrite((byte) 5, 1L);
+			content.delete(100L, 1L); // commits the typed in bytes
+			assertEquals(0L, content.getArenaSize());
+			assertEquals(5L, content.getJournalSize());
+			assertEquals(8, content.get(data, 0L));
+			assertEquals(4, data.get(0));
+			assertEquals(5, data.get(1));
+			data.clear();
+			assertEquals(8, content.get(data, 8L));
+			assertEquals(1, data.get(2));
+			assertEquals(3, data.get(4));
+
+			File file = File.createTempFile("JavaHexEditor", ".tmp");
+			file.deleteOnExit();
+			assertEquals(258L, content.get(file));
+			BinaryContent savedContent = new BinaryContent(file);
+			ByteBuffer saved = ByteBuffer.allocate(258);
+			assertEquals(258, savedContent.get(saved, 0L));
+			savedContent.dispose();
+			assertEquals(5, saved.get(1));
+			assertEquals(2, saved.get(11));
+
+			while (content.canUndo()) {
+				content.undo();
+			}
+			data.clear();
+			assertEquals(8, content.get(data, 8L));
+			assertEquals(10, data.get(2));
+			assertEquals(256L, content.length());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testSnapshot() {
+		try {
+			content.insert((byte) 100, 3L); // typed in, not committed yet
+			BinaryContentSnapshot snapshot = content.snapshot();
+			content.delete(0L, 10L);
+			content.overwrite(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0L);
+			content.insert(ByteBuffer.wrap(new byte[] { 4, 5 }), 100L);
+			assertEquals(249L, content.length());
+
+			assertEquals(257L, snapshot.length());
+			ByteBuffer buffer = ByteBuffer.allocate(300);
+			assertEquals(257, snapshot.get(buffer, 0L));
+			assertEquals(2, buffer.get(2));
+			assertEquals(100, buffer.get(3));
+			assertEquals(3, buffer.get(4));
+			assertEquals((byte) 255, buffer.get(256));
+
+			data.position(0);
+			assertEquals(8, snapshot.get(data, 100L));
+			assertEquals(99, data.get(0));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public void testRangeModifyListener() {
+		try {
+			final List<Long> events = new ArrayList<Long>();
+			content.setActionsHistory();
+			content.addRangeModifyListener(new BinaryContent.RangeModifyListener() {
+				@Override
+				public void modified(long position, long removed, long inserted) {
+					events.add(Long.valueOf(position));
+					events.add(Long.valueOf(removed));
+					events.add(Long.valueOf(inserted));
+				}
+			});
+			content.insert((byte) 1, 10L);
+			content.overwrite(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 255L);
+			content.delete(20L, 5L);
+			assertEquals(Arrays.asList(10L, 0L, 1L, 255L, 2L, 3L, 20L, 5L, 0L), events);
+
+			events.clear();
+			content.undo(); // the delete
+			assertEquals(Arrays.asList(20L, 0L, 5L), events);
+
+			events.clear();
+			content.beginBatch();
+			content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 100L);
+			content.delete(50L, 2L);
+			content.overwrite((byte) 1, 30L);
+			content.endBatch();
+			assertEquals(Arrays.asList(30L, 70L, 71L), events);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	public void testRangesModified() {
 		try {
 			List<Long> rangesModified = new ArrayList<Long>();
@@ -0,0 +1,142 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package net.sourceforge.javahexeditor.unittest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+
+import junit.framework.TestCase;
+import net.sourceforge.javahexeditor.BinaryContent;
+import net.sourceforge.javahexeditor.BinaryContentComparer;
+import net.sourceforge.javahexeditor.BinaryContentComparer.Difference;
+import net.sourceforge.javahexeditor.BinaryContentComparer.Differences;
+
+public final class ComparerTest extends TestCase {
+
+	private BinaryContent content;
+	private BinaryContent otherContent;
+
+	public ComparerTest(String name) {
+		super(name);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		File file = new File(getClass().getResource(AllTests.resourceData).getPath());
+		content = new BinaryContent(file);
+		otherContent = new BinaryContent(file);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		content.dispose();
+		otherContent.dispose();
+		super.tearDown();
+	}
+
+	private Differences compare(boolean insertionAware) {
+		Differences result = new Differences();
+		BinaryContentComparer comparer = new BinaryContentComparer(content, otherContent);
+		comparer.setInsertionAware(insertionAware);
+		try {
+			comparer.compare(result, null);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return result;
+	}
+
+	private void assertDifference(long leftStart, long leftLength, long rightStart, long rightLength,
+			Difference difference) {
+		assertEquals(leftStart, difference.getLeftStart());
+		assertEquals(leftLength, difference.getLeftLength());
+		assertEquals(rightStart, difference.getRightStart());
+		assertEquals(rightLength, difference.getRightLength());
+	}
+
+	public void testCompare() throws IOException {
+		assertEquals(0, compare(false).size());
+
+		otherContent.overwrite(ByteBuffer.wrap(new byte[] { 0, 0, 0 }), 10L);
+		otherContent.overwrite((byte) 0, 14L);
+		otherContent.insert(ByteBuffer.wrap(new byte[] { 1, 2 }), 256L);
+		Differences differences = compare(false);
+		assertEquals(3, differences.size());
+		assertDifference(10L, 3L, 10L, 3L, differences.get(0));
+		assertDifference(14L, 1L, 14L, 1L, differences.get(1));
+		assertDifference(256L, 0L, 256L, 2L, differences.get(2));
+
+		// the tail continues a difference at the end of the shorter content
+		content.overwrite((byte) 0, 255L);
+		differences = compare(false);
+		assertEquals(3, differences.size());
+		assertDifference(255L, 1L, 255L, 3L, differences.get(2));
+	}
+
+	public void testCompareInsertionAware() throws IOException {
+		otherContent.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), 50L);
+		otherContent.delete(150L, 10L);
+		otherContent.overwrite((byte) 0, 200L);
+		assertEquals(1, compare(false).size());
+
+		Differences differences = compare(true);
+		assertEquals(3, differences.size());
+		assertDifference(50L, 0L, 50L, 4L, differences.get(0));
+		assertDifference(146L, 10L, 150L, 0L, differences.get(1));
+		assertDifference(206L, 1L, 200L, 1L, differences.get(2));
+	}
+
+	public void testDifferences() throws IOException {
+		otherContent.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }), 50L);
+		otherContent.overwrite((byte) 0, 100L);
+		Differences differences = compare(true);
+		assertEquals(2, differences.size());
+
+		assertEquals(0, differences.findNext(0L, true));
+		assertEquals(0, differences.findNext(50L, true));
+		assertEquals(1, differences.findNext(51L, true));
+		assertEquals(-1, differences.findNext(97L, true));
+		assertEquals(1, differences.findNext(100L, false));
+		assertEquals(-1, differences.findPrevious(50L, true));
+		assertEquals(0, differences.findPrevious(96L, true));
+		assertEquals(1, differences.findPrevious(97L, true));
+	}
+
+	public void testStopComparing() throws IOException {
+		otherContent.overwrite((byte) 0, 10L);
+		BinaryContentComparer comparer = new BinaryContentComparer(content, otherContent);
+		comparer.stopComparing();
+		Differences differences = new Differences();
+		try {
+			comparer.compare(differences, new NullProgressMonitor());
+			fail("Comparison must be canceled");
+		} catch (OperationCanceledException e) {
+			// expected
+		}
+		assertEquals(0, differences.size());
+	}
+}
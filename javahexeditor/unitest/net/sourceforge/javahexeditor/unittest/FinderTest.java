@@ -21,12 +21,19 @@
 package net.sourceforge.javahexeditor.unittest;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
 
 import junit.framework.TestCase;
 import net.sourceforge.javahexeditor.BinaryContent;
 import net.sourceforge.javahexeditor.BinaryContentFinder;
 import net.sourceforge.javahexeditor.BinaryContentFinder.Match;
+import net.sourceforge.javahexeditor.BinaryContentFinder.MatchListener;
+import net.sourceforge.javahexeditor.BinaryContentFinder.Matches;
 
 public final class FinderTest extends TestCase {
 
@@ -66,6 +73,77 @@ public final class FinderTest extends TestCase {
 		return match;
 	}
 
+	private List<String> getAllMatches(BinaryContentFinder finder) {
+		List<String> result = new ArrayList<String>();
+		finder.setNewStart(0L);
+		for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+			result.add(match.getStartPosition() + "+" + match.getLength());
+		}
+		return result;
+	}
+
+	private static List<String> findNaive(byte[] data, byte[] sequence, boolean caseSensitive) {
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i + sequence.length <= data.length; ++i) {
+			int j = 0;
+			while (j < sequence.length && (data[i + j] == sequence[j] || !caseSensitive
+					&& Character.isLetter(data[i + j]) && (data[i + j] ^ 0x20) == sequence[j])) {
+				++j;
+			}
+			if (j == sequence.length) {
+				result.add(i + "+" + sequence.length);
+			}
+		}
+		return result;
+	}
+
+	private List<String> findAll(BinaryContentFinder finder, BinaryContent aContent) {
+		final List<String> result = new ArrayList<String>();
+		try {
+			finder.findAll(aContent.snapshot(), new MatchListener() {
+				@Override
+				public void matchFound(long startPosition, int length) {
+					result.add(startPosition + "+" + length);
+				}
+			}, null);
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
+		return result;
+	}
+
+	public void testFindAll() throws IOException {
+
+		finder = new BinaryContentFinder(new byte[] { (byte) 0x0a }, content);
+		assertEquals(getAllMatches(finder), findAll(finder, content));
+		finder = new BinaryContentFinder(new byte[] { 0, 0 }, longContent);
+		List<String> matches = findAll(finder, longContent);
+		assertEquals(bufferSize, matches.size());
+		assertEquals(getAllMatches(finder), matches);
+
+		BinaryContent content3 = new BinaryContent(
+				new File(getClass().getResource(AllTests.resourceUnicode).getPath()));
+		finder = new BinaryContentFinder("her", content3);
+		finder.setCaseSensitive(false);
+		assertEquals(getAllMatches(finder), findAll(finder, content3));
+		content3.dispose();
+
+		// matches on both sides of the chunk boundaries
+		BinaryContent content4 = new BinaryContent();
+		content4.insert(ByteBuffer.allocate(3 * BinaryContentFinder.FIND_ALL_CHUNK_SIZE), 0L);
+		byte[] sequence = { 1, 2, 3, 4, 5 };
+		for (int chunk = 1; chunk < 3; ++chunk) {
+			for (int offset = -8; offset < 3; offset += 5) {
+				content4.overwrite(ByteBuffer.wrap(sequence), chunk * BinaryContentFinder.FIND_ALL_CHUNK_SIZE + offset);
+			}
+		}
+		finder = new BinaryContentFinder(sequence, content4);
+		matches = findAll(finder, content4);
+		assertEquals(6, matches.size());
+		assertEquals(getAllMatches(finder), matches);
+		content4.dispose();
+	}
+
 	public void testFindBackwards() {
 
 		finder = new BinaryContentFinder(new byte[] { (byte) 0x0a }, content);
@@ -97,6 +175,66 @@ public final class FinderTest extends TestCase {
 
 	}
 
+	public void testFindLongSequence() {
+
+		byte[] sequence = new byte[100];
+		for (int i = 0; i < sequence.length; ++i) {
+			sequence[i] = (byte) (i + 100);
+		}
+		finder = new BinaryContentFinder(sequence, content);
+		assertEquals(100, getNextMatch(finder).getStartPosition());
+		assertFalse(getNextMatch(finder).isFound());
+		finder.setNewStart(256L);
+		finder.setDirectionForward(false);
+		assertEquals(100, getNextMatch(finder).getStartPosition());
+		assertFalse(getNextMatch(finder).isFound());
+
+		sequence[50] = 0;
+		finder = new BinaryContentFinder(sequence, content);
+		assertFalse(getNextMatch(finder).isFound());
+
+		finder = new BinaryContentFinder(new byte[] { 'a', 'b', 'c' }, content);
+		assertEquals('a', getNextMatch(finder).getStartPosition());
+		assertFalse(getNextMatch(finder).isFound());
+		finder.setCaseSensitive(false);
+		finder.setNewStart(0L);
+		assertEquals('A', getNextMatch(finder).getStartPosition());
+		assertEquals('a', getNextMatch(finder).getStartPosition());
+		finder.setNewStart(256L);
+		finder.setDirectionForward(false);
+		assertEquals('a', getNextMatch(finder).getStartPosition());
+		assertEquals('A', getNextMatch(finder).getStartPosition());
+	}
+
+	public void testMatches() throws IOException {
+
+		BinaryContent content3 = new BinaryContent(
+				new File(getClass().getResource(AllTests.resourceUnicode).getPath()));
+		finder = new BinaryContentFinder("her", content3);
+		finder.setCaseSensitive(false);
+		Matches matches = new Matches();
+		finder.findAll(content3.snapshot(), matches, null);
+		content3.dispose();
+		assertEquals(4, matches.size());
+		assertEquals(3, matches.get(1).getStartPosition());
+		assertEquals(6, matches.get(1).getLength());
+
+		assertEquals(0, matches.findNext(0L));
+		assertEquals(1, matches.findNext(3L));
+		assertEquals(-1, matches.findNext(35L));
+		assertEquals(-1, matches.findPrevious(2L));
+		assertEquals(3, matches.findPrevious(48L));
+
+		// overlapping matches are merged and cut at the part
+		List<Long> ranges = new ArrayList<Long>();
+		matches.getRanges(4L, 40L, ranges);
+		assertEquals(4, ranges.size());
+		assertEquals(Long.valueOf(4L), ranges.get(0));
+		assertEquals(Long.valueOf(5L), ranges.get(1));
+		assertEquals(Long.valueOf(33L), ranges.get(2));
+		assertEquals(Long.valueOf(7L), ranges.get(3));
+	}
+
 	/*
 	 * Test method for 'net.sourceforge.javahexeditor.Find.getNextMatch()'
 	 */
@@ -158,6 +296,105 @@ public final class FinderTest extends TestCase {
 		assertFalse(getNextMatch(finder).isFound());
 	}
 
+	/*
+	 * Parts double from MAP_SIZE up to the maximum part size while nothing is found
+	 */
+	public void testGrowingParts() throws IOException {
+
+		// 200 matches, with gaps of up to 3 MB between them
+		byte[] data = new byte[5 * 1024 * 1024];
+		byte[] sequence = { 1, 2, 3, 4, 5 };
+		Random random = new Random(1);
+		List<String> expected = new ArrayList<String>();
+		int position = 7;
+		for (int i = 0; i < 200; ++i) {
+			System.arraycopy(sequence, 0, data, position, sequence.length);
+			expected.add(position + "+" + sequence.length);
+			position += i == 99 ? 3 * 1024 * 1024 : sequence.length + random.nextInt(BinaryContentFinder.MAP_SIZE / 4);
+		}
+		File file = File.createTempFile("javahexeditor", ".bin");
+		FileOutputStream stream = new FileOutputStream(file);
+		try {
+			stream.write(data);
+		} finally {
+			stream.close();
+		}
+
+		BinaryContent content3 = new BinaryContent();
+		content3.insert(ByteBuffer.wrap(data), 0L);
+		BinaryContent content4 = new BinaryContent(file);
+		try {
+			for (BinaryContent aContent : new BinaryContent[] { content3, content4 }) {
+				finder = new BinaryContentFinder(sequence, aContent);
+				assertEquals(expected, getAllMatches(finder));
+				assertEquals(expected, findAll(finder, aContent));
+				List<String> backwards = new ArrayList<String>();
+				finder.setNewStart(data.length);
+				finder.setDirectionForward(false);
+				for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+					backwards.add(0, match.getStartPosition() + "+" + match.getLength());
+				}
+				assertEquals(expected, backwards);
+			}
+		} finally {
+			content3.dispose();
+			content4.dispose();
+			file.delete();
+		}
+	}
+
+	/*
+	 * Sequences up to four bytes are found eight bytes at a time
+	 */
+	public void testShortSequences() throws IOException {
+
+		// matches at every offset within and across the words
+		byte[] sequence = { 1, 2, 3, 4 };
+		for (int offset = 0; offset < 16; ++offset) {
+			BinaryContent content3 = new BinaryContent();
+			content3.insert(ByteBuffer.allocate(24), 0L);
+			content3.overwrite(ByteBuffer.wrap(sequence), offset);
+			finder = new BinaryContentFinder(sequence, content3);
+			assertEquals(offset, getNextMatch(finder).getStartPosition());
+			assertFalse(getNextMatch(finder).isFound());
+			content3.dispose();
+		}
+
+		// tails shorter than a word, bytes with the high bit set next to the
+		// first byte, letters of either case and bytes that differ in 0x20 only
+		byte[] alphabet = { 0, 1, 0x7f, (byte) 0x80, (byte) 0x81, (byte) 0xff, 'a', 'A', 'b', 'B', '@', '`' };
+		Random random = new Random(1);
+		for (int i = 0; i < 500; ++i) {
+			byte[] data = new byte[1 + random.nextInt(40)];
+			for (int j = 0; j < data.length; ++j) {
+				data[j] = alphabet[random.nextInt(alphabet.length)];
+			}
+			sequence = new byte[1 + random.nextInt(Math.min(4, data.length))];
+			int start = random.nextInt(data.length - sequence.length + 1);
+			System.arraycopy(data, start, sequence, 0, sequence.length);
+			boolean caseSensitive = random.nextBoolean();
+			if (!caseSensitive) {
+				sequence[0] ^= sequence[0] >= 'a' && sequence[0] <= 'b' ? 0x20 : 0;
+			}
+			List<String> expected = findNaive(data, sequence, caseSensitive);
+
+			BinaryContent content3 = new BinaryContent();
+			content3.insert(ByteBuffer.wrap(data), 0L);
+			finder = new BinaryContentFinder(sequence, content3);
+			finder.setCaseSensitive(caseSensitive);
+			assertEquals(expected, getAllMatches(finder));
+			assertEquals(expected, findAll(finder, content3));
+			List<String> backwards = new ArrayList<String>();
+			finder.setNewStart(data.length);
+			finder.setDirectionForward(false);
+			for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+				backwards.add(0, match.getStartPosition() + "+" + match.getLength());
+			}
+			assertEquals(expected, backwards);
+			content3.dispose();
+		}
+	}
+
 	public void testSetNewStart() {
 
 		finder = new BinaryContentFinder(new byte[] { (byte) 254 }, content);
@@ -6,6 +6,9 @@ import java.util.List;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
+import org.eclipse.swt.custom.StyledText;
+import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Shell;
 
@@ -163,4 +166,34 @@ public final class HexTextsTest extends TestCase {
 		assertEquals(4, (merged.get(1)).start);
 		assertEquals(2, (merged.get(1)).length);
 	}
+
+	private static void getTexts(Composite composite, StringBuilder texts) {
+		for (Control control : composite.getChildren()) {
+			if (control instanceof StyledText) {
+				texts.append(((StyledText) control).getText()).append('\n');
+			} else if (control instanceof Composite) {
+				getTexts((Composite) control, texts);
+			}
+		}
+	}
+
+	/*
+	 * Replace all changes the bytes in a batch, which reports them at its end only
+	 */
+	public void testReplaceAllRedraws() throws Exception {
+		content.overwrite((byte) 'A', 2L);
+		content.overwrite((byte) 'A', 5L);
+		hexTexts.setContentProvider(content);
+		hexTexts.setSelection(0L, 0L);
+		StringBuilder texts = new StringBuilder();
+		getTexts(hexTexts, texts);
+		assertTrue(texts.indexOf("A") >= 0);
+
+		long[] result = hexTexts.replaceAll("A", false, true, false, "B", false);
+		assertEquals(2L, result[0]);
+		texts.setLength(0);
+		getTexts(hexTexts, texts);
+		assertTrue(texts.indexOf("A") < 0);
+		assertTrue(texts.indexOf("B") >= 0);
+	}
 }